@@ -10,8 +10,6 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
-import org.springframework.core.task.TaskExecutor;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.util.FileCopyUtils;
 import org.springframework.web.method.support.HandlerMethodArgumentResolver;
@@ -27,8 +25,6 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ServiceLoader;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,9 +43,6 @@ public class Application {
     @Value("${defaultMarkup:commonmark}")
     private String defaultMarkup;
 
-    @Value("${propertyProvidersTimeout:2000}")
-    private long propertyProvidersTimeout;
-
     public static void main(String[] args) {
         logger.info("Starting Olog Service");
         configureTruststore();
@@ -96,36 +89,11 @@ public class Application {
         return notifiers;
     }
 
-    /**
-     * {@link TaskExecutor} used when calling {@link LogEntryNotifier}s.
-     *
-     * @return A {@link TaskExecutor}
-     */
-    @Bean
-    public TaskExecutor taskExecutor() {
-        ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
-        taskExecutor.setCorePoolSize(3);
-        taskExecutor.setMaxPoolSize(10);
-        taskExecutor.setQueueCapacity(25);
-
-        return taskExecutor;
-    }
-
     @Bean
     public String defaultMarkup() {
         return defaultMarkup;
     }
 
-    @Bean
-    public ExecutorService executorService() {
-        return Executors.newCachedThreadPool();
-    }
-
-    @Bean
-    public Long propertyProvidersTimeout(){
-        return propertyProvidersTimeout;
-    }
-
     @Bean
     public AcceptHeaderResolver acceptHeaderResolver(){
         return new AcceptHeaderResolver();
@@ -6,6 +6,7 @@
 package org.phoebus.olog;
 
 import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSUploadStream;
 import com.mongodb.client.gridfs.model.GridFSFile;
 import com.mongodb.client.gridfs.model.GridFSUploadOptions;
 import org.bson.BsonString;
@@ -13,12 +14,17 @@ import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.phoebus.olog.entity.Attachment;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Repository;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,6 +39,7 @@ public class AttachmentRepository implements CrudRepository<Attachment, String>
     private GridFsTemplate gridFsTemplate;
     @SuppressWarnings("unused")
     @Autowired
+    @Qualifier("gridFSBucket")
     private GridFSBucket gridFSBucket;
 
     /**
@@ -68,6 +75,56 @@ public class AttachmentRepository implements CrudRepository<Attachment, String>
         return null;
     }
 
+    /**
+     * Saves an attachment read from a stream, e.g. a request body, without buffering it in memory or
+     * on disk. The data is copied into GridFS one chunk at a time, while the size is checked and the
+     * digest computed. If reading fails or the size limit is exceeded, the chunks already written are
+     * deleted.
+     * <p>
+     * The id of the entity is handled as in {@link #save(Attachment)}. Its {@link Attachment#getAttachment()}
+     * is not used.
+     *
+     * @param entity      The entity to persist.
+     * @param inputStream The attachment data.
+     * @param maxSize     The maximum number of bytes accepted.
+     * @param digest      Updated with the attachment data.
+     * @return The persisted entity with non-null and non-empty id.
+     * @throws IOException if the data cannot be read.
+     */
+    public Attachment save(Attachment entity, InputStream inputStream, long maxSize, MessageDigest digest) throws IOException {
+        GridFSUploadOptions options = new GridFSUploadOptions()
+                .metadata(new Document("meta-data", entity.getFileMetadataDescription()));
+        GridFSUploadStream uploadStream;
+        if (entity.getId() != null && !entity.getId().isEmpty()) {
+            uploadStream = gridFSBucket.openUploadStream(new BsonString(entity.getId()), entity.getFilename(), options);
+        } else {
+            uploadStream = gridFSBucket.openUploadStream(entity.getFilename(), options);
+        }
+        try {
+            // One GridFS chunk per write
+            byte[] buffer = new byte[gridFSBucket.getChunkSizeBytes()];
+            long size = 0;
+            int length;
+            while ((length = inputStream.readNBytes(buffer, 0, buffer.length)) > 0) {
+                size += length;
+                if (size > maxSize) {
+                    throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                            "Attachment " + entity.getFilename() + " exceeds " + maxSize + " bytes");
+                }
+                digest.update(buffer, 0, length);
+                uploadStream.write(buffer, 0, length);
+            }
+            uploadStream.close();
+        } catch (IOException | RuntimeException e) {
+            uploadStream.abort();
+            throw e;
+        }
+        if (entity.getId() == null || entity.getId().isEmpty()) {
+            entity.setId(uploadStream.getObjectId().toString());
+        }
+        return entity;
+    }
+
     @Override
     public <S extends Attachment> Iterable<S> saveAll(Iterable<S> entities) {
         // TODO Auto-generated method stub
@@ -117,10 +174,14 @@ public class AttachmentRepository implements CrudRepository<Attachment, String>
         return 0;
     }
 
+    /**
+     * Deletes an attachment from GridFS. Nothing is done if the id does not identify an attachment.
+     *
+     * @param id The unique GridFS id of an attachment.
+     */
     @Override
     public void deleteById(String id) {
-        // TODO Auto-generated method stub
-
+        gridFsTemplate.delete(new Query(where("_id").is(id)));
     }
 
     @Override
@@ -143,8 +204,8 @@ public class AttachmentRepository implements CrudRepository<Attachment, String>
 
     @Override
     public void deleteAllById(Iterable ids) {
-        while (ids.iterator().hasNext()) {
-            deleteById((String) ids.iterator().next());
+        for (Object id : ids) {
+            deleteById((String) id);
         }
     }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch.core.UpdateRequest;
+import co.elastic.clients.json.JsonData;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.tika.Tika;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.HttpHeaders;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Extracts the text of attachments in the background and adds it to the <code>attachmentText</code> field of
+ * the owning log entry, such that log entries are found by the content of their attachments.
+ * <p>
+ * Attachments of the content types listed in <code>attachment.text.extraction.types</code> are queued once
+ * they have been added to a log entry. The queue is worked off by <code>attachment.text.extraction.threads</code>
+ * threads. When it holds <code>attachment.text.extraction.queue.size</code> attachments, further attachments are
+ * not extracted, such that uploads never wait for extraction. Extracted and dropped attachments are counted as
+ * <code>olog.attachment.text.extracted</code> and <code>olog.attachment.text.dropped</code>.
+ * <p>
+ * Text attachments are read as UTF-8. Other content types are parsed by the Tika parsers found on the class
+ * path, e.g. PDF requires <code>tika-parsers</code>. Configured content types no parser supports are logged and
+ * skipped on startup. The text of an attachment is truncated to <code>attachment.text.extraction.max.length</code>
+ * characters.
+ */
+@Service
+public class AttachmentTextExtractor {
+
+    private static final Logger logger = Logger.getLogger(AttachmentTextExtractor.class.getName());
+
+    /**
+     * Adds <code>params.text</code> to the attachment text of a log entry.
+     */
+    static final String APPEND_TEXT_SCRIPT =
+            "if (ctx._source.attachmentText == null) { ctx._source.attachmentText = [] } "
+                    + "ctx._source.attachmentText.add(params.text)";
+
+    @Value("${elasticsearch.log.index:olog_logs}")
+    private String ES_LOG_INDEX;
+
+    @Value("${attachment.text.extraction.enabled:true}")
+    private boolean enabled;
+
+    @Value("${attachment.text.extraction.types:text/plain,text/csv}")
+    private String[] types;
+
+    @Value("${attachment.text.extraction.threads:2}")
+    private int threads;
+
+    @Value("${attachment.text.extraction.queue.size:1000}")
+    private int queueSize;
+
+    @Value("${attachment.text.extraction.max.length:100000}")
+    private int maxLength;
+
+    @Autowired
+    @Qualifier("client")
+    private ElasticsearchClient client;
+
+    @Autowired
+    private AttachmentRepository attachmentRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Tika tika = new Tika();
+    private Set<String> extractedTypes;
+    private ThreadPoolExecutor executor;
+    private Counter extracted;
+    private Counter dropped;
+
+    @PostConstruct
+    public void init() {
+        Set<org.apache.tika.mime.MediaType> parsedTypes = tika.getParser().getSupportedTypes(new ParseContext());
+        extractedTypes = Arrays.stream(types).map(type -> type.strip().toLowerCase())
+                .filter(type -> {
+                    if (type.startsWith("text/") || parsedTypes.contains(org.apache.tika.mime.MediaType.parse(type))) {
+                        return true;
+                    }
+                    logger.log(Level.WARNING, "No Tika parser on the class path for " + type
+                            + ", text of such attachments is not extracted");
+                    return false;
+                })
+                .collect(Collectors.toSet());
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread thread = new Thread(r, "olog-attachment-text-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        extracted = meterRegistry.counter("olog.attachment.text.extracted");
+        dropped = meterRegistry.counter("olog.attachment.text.dropped");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queues the attachments of a new log entry for extraction.
+     *
+     * @param log The log entry as indexed, including its persisted attachments.
+     */
+    public void submit(Log log) {
+        submit(String.valueOf(log.getId()), log.getAttachments());
+    }
+
+    /**
+     * Queues attachments added to a log entry for extraction. Returns immediately, attachments which are not
+     * of an extracted content type or do not fit in the queue are skipped.
+     *
+     * @param logId       The id of the log entry.
+     * @param attachments The persisted attachments.
+     */
+    public void submit(String logId, Collection<Attachment> attachments) {
+        if (!enabled || attachments == null) {
+            return;
+        }
+        for (Attachment attachment : attachments) {
+            String contentType = getContentType(attachment);
+            if (attachment.getId() == null || contentType == null || !extractedTypes.contains(contentType)) {
+                continue;
+            }
+            try {
+                executor.execute(() -> extract(logId, attachment.getId(), contentType));
+            } catch (RejectedExecutionException e) {
+                dropped.increment();
+                logger.log(Level.WARNING, "Text extraction queue full, skipping attachment " + attachment.getId()
+                        + " of log entry " + logId);
+            }
+        }
+    }
+
+    /**
+     * @param attachment An attachment.
+     * @return The content type of the attachment, without parameters, from its description or else from its
+     * file name. <code>null</code> if it cannot be determined.
+     */
+    static String getContentType(Attachment attachment) {
+        MediaType mediaType = null;
+        if (attachment.getFileMetadataDescription() != null) {
+            try {
+                mediaType = MediaType.parseMediaType(attachment.getFileMetadataDescription());
+            } catch (InvalidMediaTypeException e) {
+                // A description rather than a content type
+            }
+        }
+        if (mediaType == null) {
+            mediaType = ContentTypeResolver.determineMediaType(attachment.getFilename());
+        }
+        return mediaType == null ? null : (mediaType.getType() + "/" + mediaType.getSubtype()).toLowerCase();
+    }
+
+    private void extract(String logId, String attachmentId, String contentType) {
+        String text;
+        try {
+            Optional<Attachment> attachment = attachmentRepository.findById(attachmentId);
+            if (attachment.isEmpty()) {
+                return;
+            }
+            try (InputStream inputStream = attachment.get().getAttachment().getInputStream()) {
+                text = extractText(inputStream, contentType);
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to extract text of attachment " + attachmentId + " of log entry " + logId, e);
+            return;
+        }
+        if (text.isBlank()) {
+            return;
+        }
+        try {
+            client.update(UpdateRequest.<Log, Log>of(u ->
+                    u.index(ES_LOG_INDEX).id(logId)
+                            .script(s -> s.inline(i -> i.source(APPEND_TEXT_SCRIPT)
+                                    .params("text", JsonData.of(text))))
+                            .retryOnConflict(3)), Log.class);
+            extracted.increment();
+        } catch (ElasticsearchException e) {
+            if (e.status() == HttpStatus.NOT_FOUND.value()) {
+                logger.log(Level.WARNING, "Log entry " + logId + " not found, text of attachment " + attachmentId + " not indexed");
+            } else {
+                logger.log(Level.WARNING, "Failed to index text of attachment " + attachmentId + " of log entry " + logId, e);
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to index text of attachment " + attachmentId + " of log entry " + logId, e);
+        }
+    }
+
+    /**
+     * @param inputStream The content of an attachment.
+     * @param contentType The content type of the attachment.
+     * @return The text of the attachment, at most <code>attachment.text.extraction.max.length</code> characters.
+     * Empty if no Tika parser supports the content type.
+     * @throws IOException   if the attachment cannot be read.
+     * @throws TikaException if the attachment cannot be parsed.
+     */
+    String extractText(InputStream inputStream, String contentType) throws IOException, TikaException {
+        if (contentType.startsWith("text/")) {
+            Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
+            char[] buffer = new char[maxLength];
+            int length = 0;
+            int read;
+            while (length < maxLength && (read = reader.read(buffer, length, maxLength - length)) != -1) {
+                length += read;
+            }
+            return new String(buffer, 0, length);
+        }
+        Metadata metadata = new Metadata();
+        metadata.set(HttpHeaders.CONTENT_TYPE, contentType);
+        return tika.parseToString(inputStream, metadata, maxLength);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldSort;
+import co.elastic.clients.elasticsearch._types.SortOptions;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import org.phoebus.olog.entity.Logbook;
+import org.phoebus.olog.entity.Property;
+import org.phoebus.olog.entity.State;
+import org.phoebus.olog.entity.Tag;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory catalog of all logbooks, tags and properties, including inactive ones, ordered by name.
+ * <p>
+ * Each section is loaded in full from Elasticsearch by its repository, the first time it is needed, and then
+ * kept up to date by the writes of the repository. Every change increments the version of the catalog,
+ * which is used as ETag by the endpoints listing logbooks, tags and properties.
+ * <p>
+ * Changes made by other Olog instances sharing the same Elasticsearch indices are picked up by reloading a
+ * section once it is older than {@link #refreshInterval}. A reload that changes the section increments the
+ * version. If a reload fails, the section is kept as is and reloaded again after the interval.
+ */
+@Service
+public class Catalog {
+
+    private static final Logger logger = Logger.getLogger(Catalog.class.getName());
+
+    /**
+     * Number of documents read per search request when a section is loaded.
+     */
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * Distinguishes the versions of this service instance from those before a restart.
+     */
+    private final String instanceId = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Age in milliseconds after which a section is reloaded.
+     */
+    @Value("${catalog.refresh.interval:30000}")
+    private long refreshInterval = 30000;
+
+    private final Section<Logbook> logbooks = new Section<>(Logbook::getName, Logbook::getState);
+    private final Section<Tag> tags = new Section<>(Tag::getName, Tag::getState);
+    private final Section<Property> properties = new Section<>(Property::getName, Property::getState);
+
+    /**
+     * @return The version of the catalog, incremented by each change.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return The version of the catalog as ETag value. It must be read before the catalog is accessed,
+     * such that a change made in between results in a newer ETag for the next request. Sections older than
+     * the refresh interval are reloaded first, such that changes made by other instances change the ETag.
+     */
+    public String getETag() {
+        logbooks.refresh();
+        tags.refresh();
+        properties.refresh();
+        return "\"" + instanceId + "-" + version.get() + "\"";
+    }
+
+    void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    public Section<Logbook> getLogbooks() {
+        return logbooks;
+    }
+
+    public Section<Tag> getTags() {
+        return tags;
+    }
+
+    public Section<Property> getProperties() {
+        return properties;
+    }
+
+    /**
+     * Reads all documents of an index, sorted by name, using <code>search_after</code> pagination.
+     *
+     * @param client The Elasticsearch client.
+     * @param index  The index holding logbooks, tags or properties.
+     * @param type   The document class.
+     * @return All documents of the index.
+     * @throws IOException The Elasticsearch client may throw this
+     */
+    static <T> List<T> readAll(ElasticsearchClient client, String index, Class<T> type) throws IOException {
+        List<T> documents = new ArrayList<>();
+        List<String> searchAfter = new ArrayList<>();
+        while (true) {
+            final List<String> after = new ArrayList<>(searchAfter);
+            SearchRequest searchRequest = SearchRequest.of(s -> {
+                s.index(index)
+                        .query(q -> q.matchAll(m -> m))
+                        .timeout("10s")
+                        .size(PAGE_SIZE)
+                        .sort(SortOptions.of(so -> so.field(FieldSort.of(f -> f.field("name")))));
+                if (!after.isEmpty()) {
+                    s.searchAfter(after);
+                }
+                return s;
+            });
+            SearchResponse<T> response = client.search(searchRequest, type);
+            List<Hit<T>> hits = response.hits().hits();
+            hits.forEach(hit -> documents.add(hit.source()));
+            if (hits.size() < PAGE_SIZE) {
+                return documents;
+            }
+            searchAfter = hits.get(hits.size() - 1).sort();
+        }
+    }
+
+    /**
+     * The logbooks, tags or properties of the catalog.
+     *
+     * @param <T> {@link Logbook}, {@link Tag} or {@link Property}
+     */
+    public class Section<T> {
+        private final Function<T, String> nameFunction;
+        private final Function<T, State> stateFunction;
+        private final ConcurrentSkipListMap<String, T> items = new ConcurrentSkipListMap<>();
+        private volatile boolean loaded;
+        private volatile long loadTime;
+        private volatile Loader<T> loader;
+
+        private Section(Function<T, String> nameFunction, Function<T, State> stateFunction) {
+            this.nameFunction = nameFunction;
+            this.stateFunction = stateFunction;
+        }
+
+        /**
+         * Loads the section unless already loaded within the refresh interval. Writes to the section wait for
+         * the load to complete.
+         *
+         * @param loader Reads all items from Elasticsearch.
+         * @throws IOException The Elasticsearch client may throw this, only if the section was never loaded
+         */
+        public void load(Loader<T> loader) throws IOException {
+            if (loaded && !isExpired()) {
+                return;
+            }
+            synchronized (this) {
+                if (loaded && !isExpired()) {
+                    return;
+                }
+                this.loader = loader;
+                Map<String, T> loadedItems = new HashMap<>();
+                try {
+                    loader.load().forEach(item -> loadedItems.put(nameFunction.apply(item), item));
+                } catch (IOException | RuntimeException e) {
+                    if (!loaded) {
+                        throw e;
+                    }
+                    logger.log(Level.WARNING, "Failed to reload catalog, keeping the loaded items", e);
+                    loadTime = System.nanoTime();
+                    return;
+                }
+                boolean changed = !loaded || !isSame(loadedItems);
+                items.keySet().retainAll(loadedItems.keySet());
+                items.putAll(loadedItems);
+                loadTime = System.nanoTime();
+                loaded = true;
+                if (changed) {
+                    version.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Reloads the section if it is older than the refresh interval. Does nothing if the section was never loaded.
+         */
+        void refresh() {
+            Loader<T> currentLoader = loader;
+            if (currentLoader != null && isExpired()) {
+                try {
+                    load(currentLoader);
+                } catch (IOException e) {
+                    // Not thrown once loaded
+                }
+            }
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - loadTime >= TimeUnit.MILLISECONDS.toNanos(refreshInterval);
+        }
+
+        private boolean isSame(Map<String, T> loadedItems) {
+            if (loadedItems.size() != items.size()) {
+                return false;
+            }
+            for (Map.Entry<String, T> entry : loadedItems.entrySet()) {
+                T item = items.get(entry.getKey());
+                if (!Objects.equals(item, entry.getValue())
+                        || !Objects.equals(stateFunction.apply(item), stateFunction.apply(entry.getValue()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return All items, ordered by name.
+         */
+        public Collection<T> getAll() {
+            return items.values();
+        }
+
+        /**
+         * @param name The name of an item.
+         * @return The item, active or not, or <code>null</code> if there is no such item.
+         */
+        public T get(String name) {
+            return items.get(name);
+        }
+
+        /**
+         * Adds or replaces an item after it has been written to Elasticsearch. Ignored until the section
+         * is loaded, as the load will pick up the write.
+         *
+         * @param item The item as written.
+         */
+        public void put(T item) {
+            synchronized (this) {
+                if (loaded) {
+                    items.put(nameFunction.apply(item), item);
+                    version.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * @param items Items written to Elasticsearch.
+         */
+        public void putAll(Iterable<? extends T> items) {
+            items.forEach(this::put);
+        }
+    }
+
+    /**
+     * Reads all items of a {@link Section} from Elasticsearch.
+     */
+    @FunctionalInterface
+    public interface Loader<T> {
+        Collection<T> load() throws IOException;
+    }
+}
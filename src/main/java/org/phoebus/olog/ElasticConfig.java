@@ -1,13 +1,15 @@
 package org.phoebus.olog;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
 import co.elastic.clients.elasticsearch._types.Refresh;
 import co.elastic.clients.elasticsearch.core.IndexRequest;
 import co.elastic.clients.elasticsearch.core.IndexResponse;
 import co.elastic.clients.elasticsearch.indices.CreateIndexRequest;
 import co.elastic.clients.elasticsearch.indices.CreateIndexResponse;
 import co.elastic.clients.elasticsearch.indices.ExistsRequest;
-import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import co.elastic.clients.elasticsearch.indices.PutMappingRequest;
+import co.elastic.clients.elasticsearch.indices.PutMappingResponse;
 import co.elastic.clients.transport.ElasticsearchTransport;
 import co.elastic.clients.transport.endpoints.BooleanResponse;
 import co.elastic.clients.transport.rest_client.RestClientTransport;
@@ -24,6 +26,7 @@ import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -57,6 +60,8 @@ public class ElasticConfig {
     private String ES_LOG_INDEX;
     @Value("${elasticsearch.sequence.index:olog_sequence}")
     private String ES_SEQ_INDEX;
+    @Value("${elasticsearch.idempotency.index:olog_idempotency_keys}")
+    private String ES_IDEMPOTENCY_INDEX;
 
     @Value("${elasticsearch.cluster.name:elasticsearch}")
     private String clusterName;
@@ -88,7 +93,7 @@ public class ElasticConfig {
             // Create the Java API Client with the same low level client
             ElasticsearchTransport transport = new RestClientTransport(
                     httpClient,
-                    new JacksonJsonpMapper()
+                    LogDocumentModule.jsonpMapper()
             );
             client = new ElasticsearchClient(transport);
             esInitialized.set(!Boolean.parseBoolean(createIndices));
@@ -164,20 +169,54 @@ public class ElasticConfig {
 
         // Olog Log Template
         try (InputStream is = ElasticConfig.class.getResourceAsStream("/log_entry_mapping.json")) {
+            byte[] definition = is.readAllBytes();
             BooleanResponse exits = client.indices().exists(ExistsRequest.of(e -> e.index(ES_LOG_INDEX)));
             if(!exits.value()) {
 
                 CreateIndexResponse result = client.indices().create(
                         CreateIndexRequest.of(
-                                c -> c.index(ES_LOG_INDEX).withJson(is)));
+                                c -> c.index(ES_LOG_INDEX).withJson(new ByteArrayInputStream(definition))));
                 logger.info("Created index: " + ES_LOG_INDEX + " : acknowledged " + result.acknowledged());
+            } else if (!LogIndexMigration.migrateIfNeeded(client, ES_LOG_INDEX, ES_SEQ_INDEX, definition)) {
+                updateMapping(client, ES_LOG_INDEX, new ByteArrayInputStream(definition));
+            }
+        } catch (IOException | ElasticsearchException e) {
+            logger.log(Level.WARNING, "Failed to create or update index " + ES_LOG_INDEX, e);
+        }
+
+        // Olog Idempotency Key Index
+        try (InputStream is = ElasticConfig.class.getResourceAsStream("/idempotency_mapping.json")) {
+            BooleanResponse exits = client.indices().exists(ExistsRequest.of(e -> e.index(ES_IDEMPOTENCY_INDEX)));
+            if(!exits.value()) {
+
+                CreateIndexResponse result = client.indices().create(
+                        CreateIndexRequest.of(
+                                c -> c.index(ES_IDEMPOTENCY_INDEX).withJson(is)));
+                logger.info("Created index: " + ES_IDEMPOTENCY_INDEX + " : acknowledged " + result.acknowledged());
             }
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Failed to create index " + ES_LOG_INDEX, e);
+            logger.log(Level.WARNING, "Failed to create index " + ES_IDEMPOTENCY_INDEX, e);
         }
 
     }
 
+    /**
+     * Adds the fields of a mapping definition to an existing index, such that fields introduced by a newer
+     * version of the service are mapped as intended rather than dynamically. Changing the type of an
+     * existing field is refused by Elasticsearch and requires a reindex.
+     *
+     * @param client  The elastic client
+     * @param index   The existing index
+     * @param mapping The index definition, holding the mapping under <code>mappings</code>
+     * @throws IOException if the mapping cannot be read or updated
+     */
+    private static void updateMapping(ElasticsearchClient client, String index, InputStream mapping) throws IOException {
+        byte[] properties = mapper.writeValueAsBytes(mapper.readTree(mapping).get("mappings"));
+        PutMappingResponse result = client.indices().putMapping(
+                PutMappingRequest.of(p -> p.index(index).withJson(new ByteArrayInputStream(properties))));
+        logger.info("Updated mapping of index: " + index + " : acknowledged " + result.acknowledged());
+    }
+
     private static final ObjectMapper mapper = new ObjectMapper();
 
     /**
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch.core.CreateRequest;
+import co.elastic.clients.elasticsearch.core.DeleteByQueryResponse;
+import co.elastic.clients.elasticsearch.core.DeleteRequest;
+import co.elastic.clients.elasticsearch.core.GetRequest;
+import co.elastic.clients.elasticsearch.core.GetResponse;
+import co.elastic.clients.elasticsearch.core.IndexRequest;
+import co.elastic.clients.elasticsearch.core.UpdateRequest;
+import co.elastic.clients.json.JsonData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the idempotency keys sent by clients with requests creating log entries or attachments, such
+ * that a retried request returns the log entry created by the original request rather than creating a
+ * duplicate.
+ * <p>
+ * Keys are scoped per user and stored in the Elasticsearch index <code>elasticsearch.idempotency.index</code>,
+ * which all Olog instances share. A key is claimed with a create request, hence only one request proceeds.
+ * Keys are kept for <code>log.idempotency.ttl</code> milliseconds, after which they are deleted by a
+ * periodic delete by query. A key claimed by a request that did not complete within
+ * <code>log.idempotency.pending.timeout</code> milliseconds, e.g. because the service was stopped, may be
+ * claimed again.
+ * <p>
+ * If Elasticsearch fails, requests proceed as if no key had been sent.
+ */
+@Service
+public class IdempotencyStore {
+
+    private static final Logger logger = Logger.getLogger(IdempotencyStore.class.getName());
+
+    /**
+     * Number of attempts to claim a key that is concurrently deleted or claimed again.
+     */
+    private static final int MAX_CLAIM_ATTEMPTS = 3;
+
+    static final String PENDING = "pending";
+    static final String COMPLETED = "completed";
+
+    @Value("${elasticsearch.idempotency.index:olog_idempotency_keys}")
+    private String ES_IDEMPOTENCY_INDEX;
+
+    @Value("${log.idempotency.ttl:86400000}")
+    private long ttl;
+
+    @Value("${log.idempotency.pending.timeout:60000}")
+    private long pendingTimeout;
+
+    @Value("${log.idempotency.cleanup.interval:3600000}")
+    private long cleanupInterval;
+
+    @Autowired
+    @Qualifier("client")
+    ElasticsearchClient client;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "olog-idempotency-cleanup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::deleteExpired, cleanupInterval, cleanupInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Claims an idempotency key for a request.
+     *
+     * @param key     The idempotency key sent by the client.
+     * @param owner   The user sending the request.
+     * @param request Identifies the request, e.g. method and path. A key may not be reused for another request.
+     * @return <code>null</code> if the request is to proceed, and then be passed to {@link #complete(String, String, String)}
+     * or {@link #release(String, String)}. Otherwise the id of the log entry created or updated by the original request.
+     * HTTP status 409 if the original request is still in progress, or 422 if the key was sent with another request.
+     */
+    public String claim(String key, String owner, String request) {
+        String id = documentId(key, owner);
+        try {
+            for (int attempt = 0; attempt < MAX_CLAIM_ATTEMPTS; attempt++) {
+                Record record = new Record(owner, request, PENDING, null, System.currentTimeMillis());
+                try {
+                    client.create(CreateRequest.of(c -> c.index(ES_IDEMPOTENCY_INDEX).id(id).document(record)));
+                    return null;
+                } catch (ElasticsearchException e) {
+                    if (e.status() != HttpStatus.CONFLICT.value()) {
+                        throw e;
+                    }
+                }
+                GetResponse<Record> existing = client.get(GetRequest.of(g -> g.index(ES_IDEMPOTENCY_INDEX).id(id)), Record.class);
+                if (!existing.found()) {
+                    continue;
+                }
+                Record original = existing.source();
+                long age = record.getCreated() - original.getCreated();
+                if (age > ttl || (PENDING.equals(original.getState()) && age > pendingTimeout)) {
+                    // Expired, or abandoned by its request
+                    try {
+                        client.index(IndexRequest.of(i -> i.index(ES_IDEMPOTENCY_INDEX).id(id).document(record)
+                                .ifSeqNo(existing.seqNo()).ifPrimaryTerm(existing.primaryTerm())));
+                        return null;
+                    } catch (ElasticsearchException e) {
+                        if (e.status() != HttpStatus.CONFLICT.value()) {
+                            throw e;
+                        }
+                        continue;
+                    }
+                }
+                if (!request.equals(original.getRequest())) {
+                    throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "Idempotency key " + key + " was sent with another request");
+                }
+                if (PENDING.equals(original.getState())) {
+                    throw new ResponseStatusException(HttpStatus.CONFLICT, "A request with idempotency key " + key + " is in progress, retry later");
+                }
+                return original.getLogId();
+            }
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Idempotency key " + key + " is used concurrently, retry later");
+        } catch (ResponseStatusException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to claim idempotency key " + key + ", proceeding without", e);
+            return null;
+        }
+    }
+
+    /**
+     * Records the outcome of a request that claimed a key.
+     *
+     * @param key   The idempotency key sent by the client.
+     * @param owner The user sending the request.
+     * @param logId The id of the log entry created or updated by the request.
+     */
+    public void complete(String key, String owner, String logId) {
+        try {
+            client.update(UpdateRequest.<Record, Map<String, Object>>of(u -> u.index(ES_IDEMPOTENCY_INDEX)
+                    .id(documentId(key, owner))
+                    .doc(Map.of("state", COMPLETED, "logId", logId))), Record.class);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to complete idempotency key " + key, e);
+        }
+    }
+
+    /**
+     * Releases a key claimed by a request that failed, such that the client may retry it.
+     *
+     * @param key   The idempotency key sent by the client.
+     * @param owner The user sending the request.
+     */
+    public void release(String key, String owner) {
+        try {
+            client.delete(DeleteRequest.of(d -> d.index(ES_IDEMPOTENCY_INDEX).id(documentId(key, owner))));
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to release idempotency key " + key, e);
+        }
+    }
+
+    /**
+     * Deletes the keys older than the time to live.
+     */
+    void deleteExpired() {
+        try {
+            long expired = System.currentTimeMillis() - ttl;
+            DeleteByQueryResponse response = client.deleteByQuery(d -> d.index(ES_IDEMPOTENCY_INDEX)
+                    .query(q -> q.range(r -> r.field("created").lt(JsonData.of(expired))))
+                    .conflicts(Conflicts.Proceed));
+            logger.log(Level.FINE, "Deleted " + response.deleted() + " expired idempotency keys");
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to delete expired idempotency keys", e);
+        }
+    }
+
+    /**
+     * @return The document id of a key, i.e. the SHA-256 hash of the owner and key, such that keys of any
+     * length and content are valid.
+     */
+    private static String documentId(String key, String owner) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest((owner + "\n" + key).getBytes(StandardCharsets.UTF_8));
+            StringBuilder id = new StringBuilder();
+            for (byte b : hash) {
+                id.append(String.format("%02x", b));
+            }
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The document stored per idempotency key.
+     */
+    public static class Record {
+        private String owner;
+        private String request;
+        private String state;
+        private String logId;
+        private long created;
+
+        public Record() {
+        }
+
+        public Record(String owner, String request, String state, String logId, long created) {
+            this.owner = owner;
+            this.request = request;
+            this.state = state;
+            this.logId = logId;
+            this.created = created;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public void setOwner(String owner) {
+            this.owner = owner;
+        }
+
+        public String getRequest() {
+            return request;
+        }
+
+        public void setRequest(String request) {
+            this.request = request;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public void setState(String state) {
+            this.state = state;
+        }
+
+        public String getLogId() {
+            return logId;
+        }
+
+        public void setLogId(String logId) {
+            this.logId = logId;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public void setCreated(long created) {
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch._types.Refresh;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.phoebus.olog.entity.Event;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Logbook;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Merges repeated log entries into the first one, e.g. when an automated source submits the same entry
+ * over and over again.
+ * <p>
+ * A dedup window is configured per logbook with <code>log.dedup.windows</code>. A new log entry whose logbooks
+ * all have a window is identified by a dedup key, a digest of its owner, title, logbooks and description. If a
+ * log entry with the same key has been created within the shortest of these windows, an occurrence
+ * {@link Event} is added to it and its occurrences are incremented instead of creating a new log entry. The
+ * events added are limited to <code>log.dedup.max.events</code>, further occurrences are only counted. Log
+ * entries with attachments, replies and log entries edited since their creation are never merged.
+ * <p>
+ * Recently created log entries are remembered by each instance, others are searched for by their dedup key.
+ * Identical log entries submitted concurrently may still be created separately. Merged log entries are
+ * counted as <code>olog.log.coalesced</code>.
+ */
+@Service
+public class LogDeduplicator {
+
+    private static final Logger logger = Logger.getLogger(LogDeduplicator.class.getName());
+
+    /**
+     * Name of the event added to a log entry for each merged occurrence.
+     */
+    public static final String OCCURRENCE_EVENT = "Occurrence";
+
+    /**
+     * Number of recently created log entries remembered before expired ones are evicted.
+     */
+    private static final int MAX_RECENT_ENTRIES = 10000;
+
+    /**
+     * Comma separated <code>logbook=seconds</code> pairs.
+     */
+    @Value("${log.dedup.windows:}")
+    private String windows;
+
+    @Value("${log.dedup.max.events:100}")
+    private int maxEvents;
+
+    @Autowired
+    private LogRepository logRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Map<String, Long> windowByLogbook = Map.of();
+    private long maxWindow;
+    private final ConcurrentHashMap<String, RecentEntry> recentEntries = new ConcurrentHashMap<>();
+    private Counter coalesced;
+
+    @PostConstruct
+    public void init() {
+        Map<String, Long> windowByLogbook = new HashMap<>();
+        for (String window : windows.split(",")) {
+            if (window.isBlank()) {
+                continue;
+            }
+            String[] logbookAndSeconds = window.split("=", 2);
+            try {
+                long millis = Long.parseLong(logbookAndSeconds[1].strip()) * 1000;
+                if (millis > 0) {
+                    windowByLogbook.put(logbookAndSeconds[0].strip(), millis);
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                logger.log(Level.WARNING, "Ignoring invalid dedup window " + window + ", expected logbook=seconds");
+            }
+        }
+        this.windowByLogbook = windowByLogbook;
+        this.maxWindow = windowByLogbook.values().stream().mapToLong(Long::longValue).max().orElse(0);
+        coalesced = meterRegistry.counter("olog.log.coalesced");
+    }
+
+    /**
+     * Merges a new log entry into an identical one created within the dedup window. If it is not merged, but
+     * subject to merging, its dedup key is set.
+     *
+     * @param log     The validated log entry, including its owner.
+     * @param refresh The refresh policy for the update, or <code>null</code> for the configured policy.
+     * @return The log entry it was merged into, or <code>null</code> if it is to be created.
+     */
+    public Log coalesce(Log log, Refresh refresh) {
+        log.setDedupKey(null);
+        long window = getWindow(log);
+        if (window == 0 || (log.getAttachments() != null && !log.getAttachments().isEmpty())) {
+            return null;
+        }
+        String dedupKey = getDedupKey(log);
+        log.setDedupKey(dedupKey);
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        Instant since = now.minusMillis(window);
+        RecentEntry recentEntry = recentEntries.get(dedupKey);
+        String logId = recentEntry != null && !recentEntry.createdDate.isBefore(since)
+                ? recentEntry.logId
+                : logRepository.findByDedupKey(dedupKey, since);
+        if (logId == null) {
+            return null;
+        }
+        Log existingLog = logRepository.addOccurrence(logId, dedupKey, since, new Event(OCCURRENCE_EVENT, now), maxEvents, refresh);
+        if (existingLog == null) {
+            if (recentEntry != null) {
+                recentEntries.remove(dedupKey, recentEntry);
+            }
+            return null;
+        }
+        coalesced.increment();
+        return existingLog;
+    }
+
+    /**
+     * Remembers a created log entry such that identical ones are merged into it without searching.
+     *
+     * @param log The created log entry, as returned by {@link #coalesce(Log, Refresh)} and persisted.
+     */
+    public void created(Log log) {
+        if (log.getDedupKey() == null || log.getId() == null || log.getCreatedDate() == null) {
+            return;
+        }
+        if (recentEntries.size() >= MAX_RECENT_ENTRIES) {
+            Instant expired = Instant.now().minusMillis(maxWindow);
+            recentEntries.values().removeIf(entry -> entry.createdDate.isBefore(expired));
+            if (recentEntries.size() >= MAX_RECENT_ENTRIES) {
+                recentEntries.clear();
+            }
+        }
+        recentEntries.put(log.getDedupKey(), new RecentEntry(String.valueOf(log.getId()), log.getCreatedDate()));
+    }
+
+    /**
+     * @return The shortest dedup window of the logbooks of the log entry in milliseconds, or 0 if one of them
+     * has none.
+     */
+    private long getWindow(Log log) {
+        if (windowByLogbook.isEmpty() || log.getLogbooks() == null || log.getLogbooks().isEmpty()) {
+            return 0;
+        }
+        long window = Long.MAX_VALUE;
+        for (Logbook logbook : log.getLogbooks()) {
+            window = Math.min(window, windowByLogbook.getOrDefault(logbook.getName(), 0L));
+        }
+        return window;
+    }
+
+    /**
+     * @param log A log entry.
+     * @return The hex encoded SHA-256 digest of owner, title, logbook names and description.
+     */
+    static String getDedupKey(Log log) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String logbooks = log.getLogbooks().stream().map(Logbook::getName).sorted().collect(Collectors.joining(","));
+            for (String field : new String[]{log.getOwner(), log.getTitle(), logbooks, log.getDescription()}) {
+                digest.update(String.valueOf(field).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class RecentEntry {
+        private final String logId;
+        private final Instant createdDate;
+
+        private RecentEntry(String logId, Instant createdDate) {
+            this.logId = logId;
+            this.createdDate = createdDate;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import org.phoebus.olog.entity.Attribute;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Logbook;
+import org.phoebus.olog.entity.Tag;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Jackson module of the mapper used by the Elasticsearch client, storing the logbooks and tags of a log entry
+ * as arrays of names rather than as nested objects. Their owner and state are held by the {@link Catalog}, and
+ * restored by {@link LogRepository} when a log entry is read. Log entries holding logbooks and tags as objects,
+ * as written by older versions of the service, are still read. The rendered HTML and the attachment text of a log
+ * entry, which clients cannot set, are read back from the stored document.
+ * <p>
+ * The fields derived for searches, i.e. the group id, dedup key, flattened property attributes and event times of a
+ * log entry and the typed values of its attributes, are only written to the stored document. They are not part of
+ * the REST API and are ignored when a stored document is read.
+ */
+public class LogDocumentModule extends SimpleModule {
+
+    public LogDocumentModule() {
+        super(LogDocumentModule.class.getSimpleName());
+        setMixInAnnotation(Log.class, LogDocumentMixIn.class);
+        setMixInAnnotation(Attribute.class, AttributeDocumentMixIn.class);
+    }
+
+    /**
+     * @return A mapper for the Elasticsearch client, with this module registered.
+     */
+    public static JacksonJsonpMapper jsonpMapper() {
+        JacksonJsonpMapper jsonpMapper = new JacksonJsonpMapper();
+        jsonpMapper.objectMapper().registerModule(new LogDocumentModule());
+        return jsonpMapper;
+    }
+
+    /**
+     * @return A mapper for the {@link LogJournal}, writing documents as {@link #jsonpMapper()} does. Unlike the
+     * other derived fields, the dedup key cannot be derived again, hence it is also read back.
+     */
+    public static ObjectMapper journalMapper() {
+        ObjectMapper objectMapper = jsonpMapper().objectMapper().copy();
+        objectMapper.addMixIn(Log.class, LogJournalMixIn.class);
+        return objectMapper;
+    }
+
+    @SuppressWarnings("unused")
+    abstract static class LogDocumentMixIn {
+        @JsonSerialize(contentUsing = LogbookNameSerializer.class)
+        @JsonDeserialize(contentUsing = LogbookNameDeserializer.class)
+        private Set<Logbook> logbooks;
+
+        @JsonSerialize(contentUsing = TagNameSerializer.class)
+        @JsonDeserialize(contentUsing = TagNameDeserializer.class)
+        private Set<Tag> tags;
+
+        // Read back from the stored document, unlike from a client
+        @JsonProperty(access = JsonProperty.Access.READ_WRITE)
+        abstract String getHtml();
+
+        // Kept when a stored log entry is written again
+        @JsonIgnore(false)
+        @JsonProperty
+        abstract List<String> getAttachmentText();
+
+        // Derived for searches
+        @JsonIgnore(false)
+        @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+        abstract String getGroupId();
+
+        @JsonIgnore(false)
+        @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+        abstract String getDedupKey();
+
+        @JsonIgnore(false)
+        @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+        abstract List<String> getPropertyAttributes();
+
+        @JsonIgnore(false)
+        @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+        abstract List<Long> getEventTimes();
+    }
+
+    @SuppressWarnings("unused")
+    abstract static class LogJournalMixIn extends LogDocumentMixIn {
+        @Override
+        @JsonIgnore(false)
+        @JsonProperty(access = JsonProperty.Access.READ_WRITE)
+        abstract String getDedupKey();
+    }
+
+    @SuppressWarnings("unused")
+    abstract static class AttributeDocumentMixIn {
+        // Derived for range searches
+        @JsonIgnore(false)
+        @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        abstract Double getDoubleValue();
+
+        @JsonIgnore(false)
+        @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        abstract Long getDateValue();
+    }
+
+    static class LogbookNameSerializer extends StdSerializer<Logbook> {
+        LogbookNameSerializer() {
+            super(Logbook.class);
+        }
+
+        @Override
+        public void serialize(Logbook logbook, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeString(logbook.getName());
+        }
+    }
+
+    static class LogbookNameDeserializer extends StdDeserializer<Logbook> {
+        LogbookNameDeserializer() {
+            super(Logbook.class);
+        }
+
+        @Override
+        public Logbook deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            if (p.currentToken() == JsonToken.VALUE_STRING) {
+                return new Logbook(p.getText(), null);
+            }
+            return p.readValueAs(Logbook.class);
+        }
+    }
+
+    static class TagNameSerializer extends StdSerializer<Tag> {
+        TagNameSerializer() {
+            super(Tag.class);
+        }
+
+        @Override
+        public void serialize(Tag tag, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeString(tag.getName());
+        }
+    }
+
+    static class TagNameDeserializer extends StdDeserializer<Tag> {
+        TagNameDeserializer() {
+            super(Tag.class);
+        }
+
+        @Override
+        public Tag deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            if (p.currentToken() == JsonToken.VALUE_STRING) {
+                return new Tag(p.getText());
+            }
+            return p.readValueAs(Tag.class);
+        }
+    }
+}
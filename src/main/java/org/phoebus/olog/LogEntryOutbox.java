@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.notification.LogEntryNotifier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Persistent outbox of new log entries to be delivered to the {@link LogEntryNotifier}s registered over SPI.
+ * <p>
+ * Each notifier has an outbox of its own, a {@link LogJournal} in a subdirectory of
+ * <code>log.notification.outbox.directory</code> named after the notifier class. A new log entry is appended
+ * to the outbox of every notifier, and forced to disk, before the request creating it returns. The log entries
+ * are written with the object mapper of the REST API, such that notifiers see them as clients do.
+ * <p>
+ * A delivery thread per notifier hands the oldest pending log entries of its outbox, at most
+ * <code>log.notification.batch.size</code> at a time, to {@link LogEntryNotifier#notifyBatch(List)}. A failed
+ * batch is retried, waiting <code>log.notification.retry.delay</code> milliseconds, doubled after each failure
+ * up to <code>log.notification.retry.max.delay</code>. After <code>log.notification.retry.max.attempts</code>
+ * failures the batch is given up. A failing notifier hence only delays its own notifications. Log entries still
+ * pending when the service stops are delivered when it starts again, hence notifiers may see a log entry more
+ * than once.
+ * <p>
+ * The number of pending log entries and the age of the oldest are published per notifier as
+ * <code>olog.notification.outbox.depth</code> and <code>olog.notification.lag</code>.
+ */
+@Service
+public class LogEntryOutbox {
+
+    private static final Logger logger = Logger.getLogger(LogEntryOutbox.class.getName());
+
+    @Value("${log.notification.outbox.directory:olog-outbox}")
+    private String directory;
+
+    @Value("${log.notification.outbox.segment.size:16777216}")
+    private int segmentSize;
+
+    @Value("${log.notification.batch.size:100}")
+    private int batchSize;
+
+    @Value("${log.notification.retry.delay:1000}")
+    private long retryDelay;
+
+    @Value("${log.notification.retry.max.delay:300000}")
+    private long maxRetryDelay;
+
+    @Value("${log.notification.retry.max.attempts:20}")
+    private int maxAttempts;
+
+    @Autowired
+    private List<LogEntryNotifier> logEntryNotifiers;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final List<Delivery> deliveries = new ArrayList<>();
+    private volatile boolean running;
+    private final Object signal = new Object();
+    private Counter droppedCounter;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (logEntryNotifiers.isEmpty()) {
+            return;
+        }
+        droppedCounter = Counter.builder("olog.notification.dropped")
+                .description("Number of new log entries that could not be added to the outbox of a notifier")
+                .register(meterRegistry);
+        for (LogEntryNotifier notifier : logEntryNotifiers) {
+            String name = notifier.getClass().getName();
+            LogJournal outbox = new LogJournal(Paths.get(directory, name).toString(), segmentSize, objectMapper);
+            outbox.init();
+            Delivery delivery = new Delivery(notifier, outbox);
+            Gauge.builder("olog.notification.outbox.depth", outbox, LogJournal::getDeferredCount)
+                    .description("Number of new log entries waiting to be delivered to a notifier")
+                    .tag("notifier", name)
+                    .register(meterRegistry);
+            Gauge.builder("olog.notification.lag", delivery, Delivery::getLagSeconds)
+                    .description("Age in seconds of the oldest log entry waiting to be delivered to a notifier")
+                    .tag("notifier", name)
+                    .baseUnit("seconds")
+                    .register(meterRegistry);
+            deliveries.add(delivery);
+        }
+        running = true;
+        for (Delivery delivery : deliveries) {
+            delivery.thread.start();
+        }
+    }
+
+    /**
+     * Stops the delivery threads. Pending log entries remain in the outboxes.
+     */
+    @PreDestroy
+    public void shutdown() throws IOException {
+        if (deliveries.isEmpty()) {
+            return;
+        }
+        running = false;
+        for (Delivery delivery : deliveries) {
+            delivery.thread.interrupt();
+        }
+        for (Delivery delivery : deliveries) {
+            try {
+                delivery.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            delivery.outbox.close();
+        }
+    }
+
+    /**
+     * Adds a new log entry to the outbox of each notifier. Failures are logged rather than thrown, as the log entry
+     * has already been created.
+     *
+     * @param log The new log entry.
+     */
+    public void add(Log log) {
+        for (Delivery delivery : deliveries) {
+            try {
+                delivery.outbox.defer(delivery.outbox.append(log));
+            } catch (IOException e) {
+                droppedCounter.increment();
+                logger.log(Level.SEVERE, "Failed to add log entry " + log.getId() + " to the notification outbox, "
+                        + delivery.name + " will not see it", e);
+            }
+        }
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Outbox and delivery thread of a single notifier.
+     */
+    private class Delivery {
+
+        private final LogEntryNotifier notifier;
+        private final String name;
+        private final LogJournal outbox;
+        private final Thread thread;
+
+        private Delivery(LogEntryNotifier notifier, LogJournal outbox) {
+            this.notifier = notifier;
+            this.name = notifier.getClass().getName();
+            this.outbox = outbox;
+            this.thread = new Thread(this::deliver, "olog-notification-outbox-" + notifier.getClass().getSimpleName());
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * @return The age in seconds of the oldest pending log entry, 0 if there is none.
+         */
+        private double getLagSeconds() {
+            List<LogJournal.Entry> oldest = outbox.getDeferred(1);
+            if (oldest.isEmpty() || oldest.get(0).getLog().getCreatedDate() == null) {
+                return 0;
+            }
+            return Duration.between(oldest.get(0).getLog().getCreatedDate(), Instant.now()).toMillis() / 1000.0;
+        }
+
+        private void deliver() {
+            while (running) {
+                try {
+                    synchronized (signal) {
+                        if (!outbox.hasDeferred()) {
+                            signal.wait(1000);
+                            continue;
+                        }
+                    }
+                    deliverBatch(outbox.getDeferred(batchSize));
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Failed to deliver log entries to " + name, e);
+                    try {
+                        Thread.sleep(retryDelay);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Delivers a batch to the notifier, retrying with backoff if it fails, and then removes it from the outbox.
+         *
+         * @param entries The oldest pending entries.
+         * @throws InterruptedException if the service is stopping. The batch remains in the outbox.
+         */
+        private void deliverBatch(List<LogJournal.Entry> entries) throws InterruptedException {
+            List<Log> logs = entries.stream().map(LogJournal.Entry::getLog).collect(Collectors.toList());
+            long delay = retryDelay;
+            for (int attempt = 1; !notify(logs); attempt++) {
+                if (attempt >= maxAttempts) {
+                    logger.log(Level.SEVERE, "Giving up notifying " + name + " of log entries "
+                            + logs.stream().map(log -> String.valueOf(log.getId())).collect(Collectors.joining(",")));
+                    break;
+                }
+                Thread.sleep(delay);
+                delay = Math.min(delay * 2, maxRetryDelay);
+            }
+            entries.forEach(outbox::replayed);
+        }
+
+        private boolean notify(List<Log> logs) {
+            try {
+                Timer.builder("olog.notification.delivery")
+                        .description("Time spent by a notifier on a batch of new log entries")
+                        .tag("notifier", name)
+                        .register(meterRegistry)
+                        .record(() -> notifier.notifyBatch(logs));
+                return true;
+            } catch (Exception e) {
+                Counter.builder("olog.notification.failures")
+                        .description("Number of batches of new log entries a notifier failed to process")
+                        .tag("notifier", name)
+                        .register(meterRegistry)
+                        .increment();
+                logger.log(Level.WARNING, "Notifier " + name + " failed, will retry", e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
+import co.elastic.clients.elasticsearch._types.query_dsl.ChildScoreMode;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.CountRequest;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryRequest;
+import co.elastic.clients.elasticsearch.tasks.GetTasksRequest;
+import co.elastic.clients.elasticsearch.tasks.GetTasksResponse;
+import co.elastic.clients.json.JsonData;
+import org.phoebus.olog.entity.Attribute;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.LogEntryGroupHelper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sets the fields derived from other fields of a log entry on documents indexed by an older version of the
+ * service, which did not set them.
+ * <p>
+ * When the service is ready, a background thread counts the log entries missing each derived field. If there are
+ * any, the instance creating a lock document in the sequence index backfills the fields one after the other, each
+ * with an <code>update_by_query</code> task throttled to <code>elasticsearch.log.backfill.requests.per.second</code>.
+ * Log entries skipped because they were updated concurrently are backfilled by another task, until none is left.
+ * Other instances, and instances started once the backfill has completed, do nothing. If an instance is killed
+ * while backfilling, the lock document must be deleted manually.
+ * <p>
+ * Until the event times are backfilled, searches including events also query the creation date and the nested
+ * events, see {@link #isEventTimesBackfilled()}.
+ */
+@Service
+public class LogIndexBackfill {
+
+    private static final Logger logger = Logger.getLogger(LogIndexBackfill.class.getName());
+
+    static final String LOCK_PREFIX = "backfill_";
+
+    /**
+     * Interval in milliseconds at which backfill tasks are polled.
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    /**
+     * Interval in milliseconds at which an instance not backfilling checks whether the event times are backfilled.
+     */
+    private static final long COMPLETION_CHECK_INTERVAL = 60000;
+
+    /**
+     * Copies the id attribute of the log entry group property to <code>groupId</code>.
+     */
+    static final String GROUP_ID_SCRIPT =
+            "for (p in ctx._source.properties) { if (p.name == params.property && p.attributes != null) { "
+                    + "for (a in p.attributes) { if (a.name == params.attribute && a.value != null) { "
+                    + "ctx._source.groupId = a.value; return; } } } } "
+                    + "ctx.op = 'noop';";
+
+    /**
+     * Flattens the property attributes to <code>propertyAttributes</code>, see {@link Log#getPropertyAttributes()}.
+     */
+    static final String PROPERTY_ATTRIBUTES_SCRIPT =
+            "Set flattened = new TreeSet(); "
+                    + "for (p in ctx._source.properties) { if (p.attributes != null) { for (a in p.attributes) { "
+                    + "if (a.name != null && a.value != null) { flattened.add(p.name + '.' + a.name + '=' + a.value) } } } } "
+                    + "if (flattened.isEmpty()) { ctx.op = 'noop'; return } "
+                    + "ctx._source.propertyAttributes = new ArrayList(flattened);";
+
+    /**
+     * Copies the creation date and the event instants to <code>eventTimes</code>, see {@link Log#getEventTimes()}.
+     */
+    static final String EVENT_TIMES_SCRIPT =
+            "List times = new ArrayList(); "
+                    + "if (ctx._source.createdDate != null) { times.add(ctx._source.createdDate) } "
+                    + "if (ctx._source.events != null) { for (e in ctx._source.events) { "
+                    + "if (e.instant != null) { times.add(e.instant) } } } "
+                    + "if (times.isEmpty()) { ctx.op = 'noop'; return } "
+                    + "ctx._source.eventTimes = times;";
+
+    /**
+     * Sets <code>doubleValue</code> and <code>dateValue</code> of the property attributes, as
+     * {@link Attribute#parseNumber(String)} and {@link Attribute#parseDate(String)} do. Dates without offset are in
+     * the time zone <code>params.zone</code>.
+     */
+    static final String TYPED_VALUES_SCRIPT =
+            "boolean changed = false; "
+                    + "for (p in ctx._source.properties) { if (p.attributes != null) { for (a in p.attributes) { "
+                    + "if (a.value == null) { continue } "
+                    + "String v = a.value.trim(); "
+                    + "if (a.doubleValue == null && v ==~ /" + Attribute.NUMBER.pattern() + "/) { "
+                    + "double d = Double.parseDouble(v); "
+                    + "if (!Double.isNaN(d) && !Double.isInfinite(d)) { a.doubleValue = d; changed = true } } "
+                    + "if (a.dateValue == null && v ==~ /" + Attribute.DATE.pattern() + "/) { "
+                    + "String date = v.replace(' ', 'T'); def millis = null; "
+                    + "try { if (date.length() == 10) { "
+                    + "millis = LocalDate.parse(date).atStartOfDay(ZoneId.of(params.zone)).toInstant().toEpochMilli() } "
+                    + "else { try { millis = OffsetDateTime.parse(date).toInstant().toEpochMilli() } "
+                    + "catch (DateTimeParseException e) { "
+                    + "millis = LocalDateTime.parse(date).atZone(ZoneId.of(params.zone)).toInstant().toEpochMilli() } } } "
+                    + "catch (DateTimeParseException e) { millis = null } "
+                    + "if (millis != null) { a.dateValue = millis; changed = true } } } } } "
+                    + "if (!changed) { ctx.op = 'noop' }";
+
+    /**
+     * Attribute values matching {@link Attribute#NUMBER} and {@link Attribute#DATE}, in the regular expression
+     * syntax of Elasticsearch.
+     */
+    static final String NUMBER_REGEXP = "(\\+|-)?([0-9]+(\\.[0-9]*)?|\\.[0-9]+)([eE](\\+|-)?[0-9]+)?";
+    static final String DATE_REGEXP = "[0-9]{4}-[0-9]{2}-[0-9]{2}([T ][0-9]{2}:[0-9]{2}.*)?";
+
+    @Value("${elasticsearch.log.index:olog_logs}")
+    private String ES_LOG_INDEX;
+
+    @Value("${elasticsearch.sequence.index:olog_sequence}")
+    private String ES_SEQ_INDEX;
+
+    @Value("${elasticsearch.log.backfill.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * Throttle of backfill tasks, in log entries per second, -1 for no throttling.
+     */
+    @Value("${elasticsearch.log.backfill.requests.per.second:500}")
+    private long requestsPerSecond;
+
+    /**
+     * Number of log entries per batch of a backfill task.
+     */
+    @Value("${elasticsearch.log.backfill.batch.size:500}")
+    private long batchSize;
+
+    @Autowired
+    @Qualifier("client")
+    private ElasticsearchClient client;
+
+    private volatile boolean eventTimesBackfilled;
+    private Thread backfiller;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        backfiller = new Thread(this::backfill, "olog-index-backfill");
+        backfiller.setDaemon(true);
+        backfiller.start();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (backfiller != null) {
+            backfiller.interrupt();
+        }
+    }
+
+    /**
+     * @return <code>true</code> once all log entries have <code>eventTimes</code>, such that a search including
+     * events needs no other query.
+     */
+    public boolean isEventTimesBackfilled() {
+        return eventTimesBackfilled;
+    }
+
+    /**
+     * Backfills the derived fields missing on any log entry, unless another instance does, and then waits for the
+     * event times to be backfilled.
+     */
+    void backfill() {
+        try {
+            List<Backfill> pending = new ArrayList<>();
+            for (Backfill backfill : getBackfills()) {
+                if (count(backfill.query) > 0) {
+                    pending.add(backfill);
+                }
+            }
+            if (!pending.isEmpty()) {
+                if (!enabled) {
+                    logger.log(Level.WARNING, "Log entries of index " + ES_LOG_INDEX + " miss derived fields, "
+                            + "but elasticsearch.log.backfill.enabled is not set: " + pending);
+                } else {
+                    String lockId = LOCK_PREFIX + ES_LOG_INDEX;
+                    if (LogIndexMigration.acquireLock(client, ES_SEQ_INDEX, lockId)) {
+                        try {
+                            for (Backfill backfill : pending) {
+                                run(backfill);
+                            }
+                        } finally {
+                            LogIndexMigration.releaseLock(client, ES_SEQ_INDEX, lockId);
+                        }
+                    } else {
+                        logger.log(Level.INFO, "Another instance is backfilling index " + ES_LOG_INDEX
+                                + ". If no instance is, delete the document " + lockId + " of index " + ES_SEQ_INDEX);
+                    }
+                }
+            }
+            Query missingEventTimes = eventTimes().query;
+            eventTimesBackfilled = count(missingEventTimes) == 0;
+            while (!eventTimesBackfilled) {
+                Thread.sleep(COMPLETION_CHECK_INTERVAL);
+                eventTimesBackfilled = count(missingEventTimes) == 0;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to backfill index " + ES_LOG_INDEX, e);
+        }
+    }
+
+    /**
+     * Runs <code>update_by_query</code> tasks until no log entry misses the field, or a task had no version
+     * conflicts, in which case the remaining log entries have nothing to derive the field from.
+     */
+    void run(Backfill backfill) throws IOException, InterruptedException {
+        long remaining = count(backfill.query);
+        while (remaining > 0) {
+            logger.log(Level.INFO, "Backfilling " + backfill + " of " + remaining + " log entries in index " + ES_LOG_INDEX);
+            String task = client.updateByQuery(UpdateByQueryRequest.of(u ->
+                    u.index(ES_LOG_INDEX)
+                            .query(backfill.query)
+                            .script(s -> s.inline(i -> i.source(backfill.script).params(backfill.params)))
+                            .conflicts(Conflicts.Proceed)
+                            .requestsPerSecond(requestsPerSecond)
+                            .scrollSize(batchSize)
+                            .waitForCompletion(false))).task();
+            long versionConflicts = await(task);
+            remaining = count(backfill.query);
+            if (versionConflicts == 0) {
+                break;
+            }
+        }
+        logger.log(Level.INFO, "Backfilled " + backfill + " in index " + ES_LOG_INDEX
+                + (remaining > 0 ? ", " + remaining + " log entries have no value to derive it from" : ""));
+    }
+
+    /**
+     * @return The number of version conflicts of the completed task.
+     */
+    private long await(String task) throws IOException, InterruptedException {
+        while (true) {
+            GetTasksResponse response = client.tasks().get(GetTasksRequest.of(g -> g.taskId(task)));
+            if (response.completed()) {
+                if (response.error() != null) {
+                    throw new IllegalStateException("Backfill task " + task + " failed: " + response.error().reason());
+                }
+                if (response.response() == null) {
+                    return 0;
+                }
+                if (!response.response().failures().isEmpty()) {
+                    throw new IllegalStateException("Backfill task " + task + " failed: " + response.response().failures());
+                }
+                return response.response().versionConflicts();
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+    }
+
+    private long count(Query query) throws IOException {
+        return client.count(CountRequest.of(c -> c.index(ES_LOG_INDEX).query(query))).count();
+    }
+
+    List<Backfill> getBackfills() {
+        return List.of(groupIds(), propertyAttributes(), typedValues(), eventTimes());
+    }
+
+    /**
+     * Sets <code>groupId</code> on log entries with a log entry group property.
+     */
+    private Backfill groupIds() {
+        Query groupProperty = Query.of(q -> q.nested(n -> n.path("properties")
+                .scoreMode(ChildScoreMode.None)
+                .query(p -> p.term(t -> t.field("properties.name").value(LogEntryGroupHelper.LOG_ENTRY_GROUP)))));
+        return new Backfill("groupId",
+                Query.of(q -> q.bool(b -> b.filter(groupProperty).mustNot(m -> m.exists(e -> e.field("groupId"))))),
+                GROUP_ID_SCRIPT,
+                Map.of("property", JsonData.of(LogEntryGroupHelper.LOG_ENTRY_GROUP),
+                        "attribute", JsonData.of(LogEntryGroupHelper.ATTRIBUTE_ID)));
+    }
+
+    /**
+     * Sets <code>propertyAttributes</code> on log entries with properties.
+     */
+    private Backfill propertyAttributes() {
+        Query hasProperties = Query.of(q -> q.nested(n -> n.path("properties")
+                .scoreMode(ChildScoreMode.None)
+                .query(p -> p.exists(e -> e.field("properties.name")))));
+        return new Backfill("propertyAttributes",
+                Query.of(q -> q.bool(b -> b.filter(hasProperties).mustNot(m -> m.exists(e -> e.field("propertyAttributes"))))),
+                PROPERTY_ATTRIBUTES_SCRIPT,
+                Map.of());
+    }
+
+    /**
+     * Sets <code>doubleValue</code> and <code>dateValue</code> on attributes whose value looks like a number or date.
+     */
+    private Backfill typedValues() {
+        Query untypedNumber = Query.of(q -> q.bool(b -> b
+                .filter(f -> f.regexp(r -> r.field("properties.attributes.value").value(NUMBER_REGEXP)))
+                .mustNot(m -> m.exists(e -> e.field("properties.attributes.doubleValue")))));
+        Query untypedDate = Query.of(q -> q.bool(b -> b
+                .filter(f -> f.regexp(r -> r.field("properties.attributes.value").value(DATE_REGEXP)))
+                .mustNot(m -> m.exists(e -> e.field("properties.attributes.dateValue")))));
+        return new Backfill("typed attribute values",
+                Query.of(q -> q.nested(n -> n.path("properties")
+                        .scoreMode(ChildScoreMode.None)
+                        .query(p -> p.nested(n2 -> n2.path("properties.attributes")
+                                .scoreMode(ChildScoreMode.None)
+                                .query(a -> a.bool(b -> b.should(untypedNumber, untypedDate).minimumShouldMatch("1"))))))),
+                TYPED_VALUES_SCRIPT,
+                Map.of("zone", JsonData.of(ZoneId.systemDefault().getId())));
+    }
+
+    /**
+     * Sets <code>eventTimes</code> on all log entries.
+     */
+    private Backfill eventTimes() {
+        return new Backfill("eventTimes",
+                Query.of(q -> q.bool(b -> b.mustNot(m -> m.exists(e -> e.field("eventTimes"))))),
+                EVENT_TIMES_SCRIPT,
+                Map.of());
+    }
+
+    /**
+     * A derived field, the query for log entries missing it and the script setting it.
+     */
+    static class Backfill {
+        private final String field;
+        private final Query query;
+        private final String script;
+        private final Map<String, JsonData> params;
+
+        Backfill(String field, Query query, String script, Map<String, JsonData> params) {
+            this.field = field;
+            this.query = query;
+            this.script = script;
+            this.params = params;
+        }
+
+        @Override
+        public String toString() {
+            return field;
+        }
+    }
+}
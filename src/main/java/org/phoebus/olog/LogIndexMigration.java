@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.OpType;
+import co.elastic.clients.elasticsearch._types.mapping.Property;
+import co.elastic.clients.elasticsearch.indices.GetMappingResponse;
+import co.elastic.clients.elasticsearch.indices.add_block.IndicesBlockOptions;
+import co.elastic.clients.elasticsearch.indices.get_mapping.IndexMappingRecord;
+import co.elastic.clients.elasticsearch.tasks.GetTasksResponse;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Migrates a log entry index created before logbooks and tags were stored by name, see {@link LogDocumentModule},
+ * as the type of a field cannot be changed in place.
+ * <p>
+ * The existing index is made read-only and reindexed into a new index <code>&lt;name&gt;_v2</code> with the current
+ * mapping, replacing the logbook and tag objects by their names. An index of the same name as the alias is kept as a
+ * read-only clone <code>&lt;name&gt;_v1</code>, and then replaced by an alias of the same name pointing to the new
+ * index, in a single atomic request. If any step fails, the existing index is made writable again, the new index is
+ * deleted and the migration is retried on the next start of the service.
+ * <p>
+ * Olog instances sharing the cluster may start at the same time, hence only the instance creating a lock document
+ * in the sequence index migrates, the others wait for the lock to be released. If an instance is killed while
+ * migrating, the lock document must be deleted manually.
+ */
+final class LogIndexMigration {
+
+    private static final Logger logger = Logger.getLogger(LogIndexMigration.class.getName());
+
+    static final String TARGET_SUFFIX = "_v2";
+    static final String BACKUP_SUFFIX = "_v1";
+    static final String LOCK_PREFIX = "migration_";
+
+    static final String NAMES_SCRIPT =
+            "for (field in ['logbooks', 'tags']) { def values = ctx._source[field]; if (values != null) { "
+                    + "List names = new ArrayList(); for (v in values) { names.add(v instanceof Map ? v.name : v) } "
+                    + "ctx._source[field] = names } }";
+
+    /**
+     * Interval in milliseconds at which the reindex task is polled.
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    private LogIndexMigration() {
+    }
+
+    /**
+     * Migrates the log entry index if its logbooks or tags are still mapped as nested objects.
+     *
+     * @param client     The elastic client
+     * @param index      The name of the log entry index or alias
+     * @param lockIndex  The index holding the lock document, i.e. the sequence index
+     * @param definition The current index definition, see <code>log_entry_mapping.json</code>
+     * @return <code>true</code> if the index was migrated, by this or another instance.
+     * @throws IllegalStateException if the migration failed.
+     */
+    static boolean migrateIfNeeded(ElasticsearchClient client, String index, String lockIndex, byte[] definition) {
+        String lockId = LOCK_PREFIX + index;
+        boolean waiting = false;
+        while (true) {
+            String source = readNestedLabels(client, index);
+            if (source == null) {
+                return waiting;
+            }
+            if (acquireLock(client, lockIndex, lockId)) {
+                try {
+                    // Another instance may have completed the migration since the mapping was read
+                    source = readNestedLabels(client, index);
+                    if (source == null) {
+                        return true;
+                    }
+                    migrate(client, index, source, definition);
+                    return true;
+                } finally {
+                    releaseLock(client, lockIndex, lockId);
+                }
+            }
+            if (!waiting) {
+                logger.log(Level.WARNING, "Waiting for another instance to migrate index " + source
+                        + ". If no instance is migrating, delete the document " + lockId + " of index " + lockIndex);
+                waiting = true;
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the migration of index " + source, e);
+            }
+        }
+    }
+
+    private static void migrate(ElasticsearchClient client, String index, String source, byte[] definition) {
+        String target = index + TARGET_SUFFIX;
+        if (target.equals(source)) {
+            throw new IllegalStateException("Cannot migrate index " + source + " onto itself");
+        }
+        logger.log(Level.INFO, "Migrating index " + source + " to " + target + " storing logbooks and tags by name");
+        boolean targetCreated = false;
+        try {
+            client.indices().addBlock(a -> a.index(source).block(IndicesBlockOptions.Write));
+            client.indices().create(c -> c.index(target).withJson(new ByteArrayInputStream(definition)));
+            targetCreated = true;
+            String task = client.reindex(r -> r.source(s -> s.index(source))
+                    .dest(d -> d.index(target))
+                    .script(s -> s.inline(i -> i.source(NAMES_SCRIPT)))
+                    .refresh(true)
+                    .waitForCompletion(false)).task();
+            logger.log(Level.INFO, "Reindexing " + source + " to " + target + ", task " + task);
+            awaitReindex(client, task);
+            if (source.equals(index)) {
+                // The alias cannot be added next to an index of the same name, keep a read-only copy of it
+                String backup = index + BACKUP_SUFFIX;
+                client.indices().clone(c -> c.index(source).target(backup));
+                client.indices().addBlock(a -> a.index(backup).block(IndicesBlockOptions.Write));
+                logger.log(Level.INFO, "Kept index " + source + " as read-only index " + backup);
+                client.indices().updateAliases(u -> u
+                        .actions(a -> a.add(add -> add.index(target).alias(index)))
+                        .actions(a -> a.removeIndex(r -> r.index(source))));
+            } else {
+                client.indices().updateAliases(u -> u
+                        .actions(a -> a.add(add -> add.index(target).alias(index)))
+                        .actions(a -> a.remove(r -> r.index(source).alias(index))));
+            }
+            logger.log(Level.INFO, "Migrated index " + source + " to " + target + ", now aliased as " + index);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to migrate index " + source + " to " + target + ", rolling back", e);
+            rollback(client, source, targetCreated ? target : null);
+            throw new IllegalStateException("Failed to migrate index " + source, e);
+        }
+    }
+
+    private static String readNestedLabels(ElasticsearchClient client, String index) {
+        try {
+            GetMappingResponse mapping = client.indices().getMapping(g -> g.index(index));
+            return findNestedLabels(mapping.result());
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to read mapping of index " + index, e);
+        }
+    }
+
+    /**
+     * Creates the lock document, which fails if it already exists.
+     *
+     * @return <code>true</code> if this instance holds the lock.
+     */
+    static boolean acquireLock(ElasticsearchClient client, String lockIndex, String lockId) {
+        try {
+            client.index(i -> i.index(lockIndex)
+                    .id(lockId)
+                    .document(Map.of("createDate", System.currentTimeMillis()))
+                    .opType(OpType.Create));
+            return true;
+        } catch (ElasticsearchException e) {
+            if (e.status() == 409) {
+                return false;
+            }
+            throw new IllegalStateException("Failed to create lock " + lockId + " in index " + lockIndex, e);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to create lock " + lockId + " in index " + lockIndex, e);
+        }
+    }
+
+    static void releaseLock(ElasticsearchClient client, String lockIndex, String lockId) {
+        try {
+            client.delete(d -> d.index(lockIndex).id(lockId));
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to delete lock " + lockId + " of index " + lockIndex
+                    + ", it must be deleted manually", e);
+        }
+    }
+
+    /**
+     * @param mappings The mappings of the log entry index, by concrete index name.
+     * @return The name of the concrete index mapping logbooks or tags as nested objects, or <code>null</code>.
+     */
+    static String findNestedLabels(Map<String, IndexMappingRecord> mappings) {
+        for (Map.Entry<String, IndexMappingRecord> entry : mappings.entrySet()) {
+            Map<String, Property> properties = entry.getValue().mappings().properties();
+            Property logbooks = properties.get("logbooks");
+            Property tags = properties.get("tags");
+            if ((logbooks != null && logbooks.isNested()) || (tags != null && tags.isNested())) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    private static void awaitReindex(ElasticsearchClient client, String task) throws Exception {
+        while (true) {
+            GetTasksResponse response = client.tasks().get(g -> g.taskId(task));
+            if (response.completed()) {
+                if (response.error() != null) {
+                    throw new IllegalStateException("Reindex task " + task + " failed: " + response.error().reason());
+                }
+                if (response.response() != null && !response.response().failures().isEmpty()) {
+                    throw new IllegalStateException("Reindex task " + task + " failed: " + response.response().failures());
+                }
+                return;
+            }
+            if (response.task().status() != null) {
+                logger.log(Level.INFO, "Reindex task " + task + ": " + response.task().status().created()
+                        + " of " + response.task().status().total() + " log entries");
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * @param target The index created by this instance, or <code>null</code>. An index not created by this instance,
+     *               e.g. left over by an earlier attempt, is not deleted.
+     */
+    private static void rollback(ElasticsearchClient client, String source, String target) {
+        try {
+            client.indices().putSettings(p -> p.index(source).settings(s -> s.blocks(b -> b.write(false))));
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to remove write block of index " + source, e);
+        }
+        if (target != null) {
+            try {
+                client.indices().delete(d -> d.index(target));
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Failed to delete index " + target, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.phoebus.olog.entity.BulkItemResult;
+import org.phoebus.olog.entity.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Queue for the asynchronous ingest mode of new log entries. When enabled, validated log entries that
+ * have already been assigned an id are put on a bounded in-memory queue. A single writer thread drains
+ * the queue and indexes the log entries using bulk requests of at most <code>log.ingest.batch.size</code>
+ * entries, flushing a partial batch after <code>log.ingest.flush.interval</code> milliseconds.
+ * <p>
+ * Log entries that could not be indexed because Elasticsearch failed or was overloaded are retried, with a delay
+ * doubled after each failure up to {@link #MAX_RETRY_DELAY}, until they are indexed or the service stops. Log
+ * entries rejected by Elasticsearch as invalid are not retried.
+ * <p>
+ * If the {@link LogJournal} is enabled, a log entry is journaled before it is queued, and marked as indexed once
+ * flushed. Log entries still queued when the service is killed or stops are then indexed by the
+ * {@link LogJournalReplayer} once it starts again. Otherwise queued log entries are lost if the service is killed.
+ * Queued log entries cannot be retrieved before they have been indexed.
+ */
+@Service
+public class LogIngestQueue {
+
+    private static final Logger logger = Logger.getLogger(LogIngestQueue.class.getName());
+
+    /**
+     * Maximum delay in milliseconds between two attempts to index a batch.
+     */
+    private static final long MAX_RETRY_DELAY = 30000;
+
+    @Value("${log.ingest.async.enabled:false}")
+    private boolean enabled;
+
+    @Value("${log.ingest.queue.capacity:10000}")
+    private int capacity;
+
+    @Value("${log.ingest.batch.size:500}")
+    private int batchSize;
+
+    @Value("${log.ingest.flush.interval:200}")
+    private long flushInterval;
+
+    @Autowired
+    private LogRepository logRepository;
+
+    @Autowired
+    private LogJournal journal;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private BlockingQueue<QueuedLog> queue;
+    private Thread writer;
+    private volatile boolean running;
+    private Timer flushTimer;
+    private Counter rejectedCounter;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(capacity);
+        Gauge.builder("olog.ingest.queue.depth", queue, BlockingQueue::size)
+                .description("Number of log entries waiting to be indexed")
+                .register(meterRegistry);
+        flushTimer = Timer.builder("olog.ingest.flush")
+                .description("Time spent indexing one batch of queued log entries")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("olog.ingest.rejected")
+                .description("Number of log entries rejected because the ingest queue was full")
+                .register(meterRegistry);
+        running = true;
+        writer = new Thread(this::drain, "olog-ingest-writer");
+        writer.setDaemon(true);
+        writer.start();
+        logger.log(Level.INFO, "Asynchronous ingest enabled, queue capacity " + capacity + ", batch size " + batchSize);
+    }
+
+    /**
+     * Stops the writer thread once all queued log entries have been flushed.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if new log entries should be added to this queue rather than being
+     * indexed by the request thread.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds a log entry to the queue without blocking, journaling it first if the {@link LogJournal} is enabled.
+     *
+     * @param log       A log entry prepared with {@link LogRepository#prepare(Log)}.
+     * @param onIndexed Called by the writer thread once the log entry has been indexed.
+     * @return <code>false</code> if the queue is full.
+     */
+    public boolean offer(Log log, Consumer<Log> onIndexed) {
+        LogJournal.Entry entry = null;
+        if (journal.isEnabled()) {
+            try {
+                entry = journal.append(log);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to journal log entry " + log.getId(), e);
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to save log entry: " + log);
+            }
+        }
+        if (queue.offer(new QueuedLog(log, entry, onIndexed))) {
+            return true;
+        }
+        if (entry != null) {
+            // Not to be replayed either
+            journal.markIndexed(entry);
+        }
+        rejectedCounter.increment();
+        return false;
+    }
+
+    private void drain() {
+        List<QueuedLog> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                QueuedLog first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    QueuedLog next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                // Keep the only writer thread alive
+                logger.log(Level.SEVERE, "Failed to flush " + batch.size() + " queued log entries", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Indexes a batch of queued log entries, retrying those that failed for a transient reason until they are
+     * indexed or the service stops. The attachments of log entries that could not be indexed are deleted, unless
+     * the log entries are left to journal replay.
+     *
+     * @param batch The queued log entries.
+     * @throws InterruptedException if interrupted while waiting for a retry.
+     */
+    void flush(List<QueuedLog> batch) throws InterruptedException {
+        List<QueuedLog> pending = new ArrayList<>(batch);
+        long retryDelay = flushInterval;
+        while (true) {
+            pending = index(pending);
+            if (pending.isEmpty()) {
+                return;
+            }
+            if (!running) {
+                List<QueuedLog> journaled = pending.stream().filter(queuedLog -> queuedLog.entry != null).collect(Collectors.toList());
+                List<QueuedLog> dropped = pending.stream().filter(queuedLog -> queuedLog.entry == null).collect(Collectors.toList());
+                if (!journaled.isEmpty()) {
+                    logger.log(Level.WARNING, "Shutting down, " + journaled.size() + " queued log entries not indexed are "
+                            + "left to journal replay: " + ids(journaled));
+                }
+                if (!dropped.isEmpty()) {
+                    logger.log(Level.SEVERE, "Shutting down, dropping " + dropped.size() + " queued log entries not indexed: "
+                            + ids(dropped));
+                    dropped.forEach(queuedLog -> logRepository.deleteAttachments(queuedLog.log));
+                }
+                return;
+            }
+            logger.log(Level.WARNING, "Retrying " + pending.size() + " queued log entries in " + retryDelay + " ms");
+            Thread.sleep(retryDelay);
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * @param batch The queued log entries.
+     * @return The log entries to retry.
+     */
+    private List<QueuedLog> index(List<QueuedLog> batch) {
+        List<Log> documents = new ArrayList<>(batch.size());
+        batch.forEach(queuedLog -> documents.add(queuedLog.log));
+        List<BulkItemResult> results;
+        try {
+            results = flushTimer.recordCallable(() -> logRepository.index(documents, null));
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to index " + batch.size() + " queued log entries", e);
+            return batch;
+        }
+        List<QueuedLog> failed = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            QueuedLog queuedLog = batch.get(i);
+            BulkItemResult result = results.get(i);
+            if (result.getLog() != null) {
+                markIndexed(queuedLog);
+                try {
+                    queuedLog.onIndexed.accept(result.getLog());
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Failed to process indexed log entry " + queuedLog.log.getId(), e);
+                }
+                continue;
+            }
+            if (LogRepository.isTransientFailure(result.getStatus())) {
+                failed.add(queuedLog);
+            } else {
+                logger.log(Level.SEVERE, "Dropping queued log entry " + queuedLog.log.getId()
+                        + " rejected by Elasticsearch: " + result.getError());
+                markIndexed(queuedLog);
+                logRepository.deleteAttachments(queuedLog.log);
+            }
+        }
+        return failed;
+    }
+
+    private void markIndexed(QueuedLog queuedLog) {
+        if (queuedLog.entry != null) {
+            journal.markIndexed(queuedLog.entry);
+        }
+    }
+
+    private static String ids(List<QueuedLog> queuedLogs) {
+        return queuedLogs.stream().map(queuedLog -> String.valueOf(queuedLog.log.getId())).collect(Collectors.joining(", "));
+    }
+
+    static class QueuedLog {
+        private final Log log;
+        private final LogJournal.Entry entry;
+        private final Consumer<Log> onIndexed;
+
+        QueuedLog(Log log, LogJournal.Entry entry, Consumer<Log> onIndexed) {
+            this.log = log;
+            this.entry = entry;
+            this.onIndexed = onIndexed;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.phoebus.olog.entity.Log;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal of log entry documents, kept in memory-mapped segment files.
+ * <p>
+ * {@link LogRepository}, and {@link LogIngestQueue} in asynchronous ingest mode, append a document before
+ * indexing it and mark it as indexed once Elasticsearch has accepted it. A document that could not be indexed is deferred, i.e. left to the
+ * {@link LogJournalReplayer}. Documents written while others are deferred are deferred as well, such
+ * that updates of a log entry are never indexed out of order. Documents not marked as indexed when the
+ * service stops are deferred when it starts again.
+ * <p>
+ * An append returns once the record has been forced to disk. Threads appending concurrently share a
+ * single force. A segment file is deleted, or reused if it is the active segment, once all its records
+ * have been indexed. Markers are not forced, hence after a crash of the operating system some documents
+ * may be indexed a second time.
+ * <p>
+ * Record layout: payload length (int), CRC32 of the payload (int), state (byte), JSON payload. A zero
+ * length marks the end of the records of a segment.
+ */
+@Service
+public class LogJournal {
+
+    private static final Logger logger = Logger.getLogger(LogJournal.class.getName());
+
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final int STATE_OFFSET = 8;
+    private static final byte PENDING = 0;
+    private static final byte INDEXED = 1;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    @Value("${log.journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${log.journal.directory:olog-journal}")
+    private String directory;
+
+    @Value("${log.journal.segment.size:16777216}")
+    private int segmentSize;
+
+    /**
+     * By default writing documents as the mapper of the Elasticsearch client does, such that a replayed document is
+     * identical to the one that would have been indexed, see {@link LogDocumentModule#journalMapper()}.
+     */
+    private final ObjectMapper objectMapper;
+
+    private final Object appendLock = new Object();
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment activeSegment;
+    private final ConcurrentLinkedQueue<Entry> deferred = new ConcurrentLinkedQueue<>();
+
+    public LogJournal() {
+        this.objectMapper = LogDocumentModule.journalMapper();
+    }
+
+    /**
+     * Creates an enabled journal in a directory of its own, e.g. for the {@link LogEntryOutbox}.
+     *
+     * @param directory    The directory holding the segment files.
+     * @param segmentSize  The size of a segment file in bytes.
+     * @param objectMapper The mapper used to write and read the log entries.
+     */
+    LogJournal(String directory, int segmentSize, ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        this.enabled = true;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Path journalDirectory = Paths.get(directory);
+        Files.createDirectories(journalDirectory);
+        List<Path> segmentFiles;
+        try (Stream<Path> files = Files.list(journalDirectory)) {
+            segmentFiles = files.filter(f -> f.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                            && f.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        long lastSequence = 0;
+        for (Path segmentFile : segmentFiles) {
+            String name = segmentFile.getFileName().toString();
+            lastSequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(segmentFile, lastSequence, segmentSize);
+            recover(segment);
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            activeSegment = createSegment(lastSequence + 1);
+        } else {
+            activeSegment = segments.get(segments.size() - 1);
+            for (Segment segment : new ArrayList<>(segments)) {
+                if (segment.unresolved.get() == 0) {
+                    release(segment);
+                }
+            }
+        }
+        if (!deferred.isEmpty()) {
+            logger.log(Level.INFO, deferred.size() + " log entries pending in journal " + journalDirectory);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+                segment.channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if <code>log.journal.enabled</code> is set.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Appends a document to the journal and forces it to disk.
+     *
+     * @param log The document to be indexed.
+     * @return The journal {@link Entry}, to be passed to {@link #markIndexed(Entry)} or {@link #defer(Entry)}.
+     * @throws IOException if the record cannot be written, e.g. if it does not fit in a segment.
+     */
+    public Entry append(Log log) throws IOException {
+        byte[] payload = objectMapper.writeValueAsBytes(log);
+        // Room for the record and the end marker
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (recordSize + Integer.BYTES > segmentSize) {
+            throw new IOException("Log entry of " + payload.length + " bytes exceeds journal segment size");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        Entry entry;
+        int end;
+        int generation;
+        synchronized (appendLock) {
+            if (activeSegment.position + recordSize + Integer.BYTES > segmentSize) {
+                roll();
+            }
+            Segment segment = activeSegment;
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(segment.position);
+            buffer.putInt(payload.length).putInt((int) crc.getValue()).put(PENDING).put(payload);
+            buffer.putInt(0);
+            entry = new Entry(segment, segment.position, log);
+            segment.unresolved.incrementAndGet();
+            segment.position += recordSize;
+            end = segment.position;
+            generation = segment.generation;
+        }
+        force(entry.segment, generation, end);
+        return entry;
+    }
+
+    /**
+     * Marks a record as indexed. The segment is released once all its records are indexed.
+     *
+     * @param entry The journal entry of an indexed document.
+     */
+    public void markIndexed(Entry entry) {
+        entry.segment.buffer.put(entry.offset + STATE_OFFSET, INDEXED);
+        if (entry.segment.unresolved.decrementAndGet() == 0) {
+            synchronized (appendLock) {
+                release(entry.segment);
+            }
+        }
+    }
+
+    /**
+     * Leaves a document to the {@link LogJournalReplayer}.
+     *
+     * @param entry The journal entry of a document that has not been indexed.
+     */
+    public void defer(Entry entry) {
+        deferred.add(entry);
+    }
+
+    /**
+     * @return <code>true</code> if documents are waiting to be replayed.
+     */
+    public boolean hasDeferred() {
+        return !deferred.isEmpty();
+    }
+
+    /**
+     * @return The number of deferred entries. Not a constant time operation.
+     */
+    public int getDeferredCount() {
+        return deferred.size();
+    }
+
+    /**
+     * @param max Maximum number of entries to return.
+     * @return The oldest deferred entries, in journal order.
+     */
+    public List<Entry> getDeferred(int max) {
+        List<Entry> entries = new ArrayList<>();
+        Iterator<Entry> iterator = deferred.iterator();
+        while (iterator.hasNext() && entries.size() < max) {
+            entries.add(iterator.next());
+        }
+        return entries;
+    }
+
+    /**
+     * Marks the oldest deferred entry as indexed.
+     *
+     * @param entry The entry, which must be the head of the deferred entries.
+     */
+    public void replayed(Entry entry) {
+        deferred.remove(entry);
+        markIndexed(entry);
+    }
+
+    /**
+     * Forces the records of a segment up to <code>end</code> to disk, unless a concurrent force
+     * already did. The generation distinguishes records written before and after the segment was truncated.
+     */
+    private void force(Segment segment, int generation, int end) {
+        synchronized (segment) {
+            if (segment.durableGeneration == generation && segment.durablePosition >= end) {
+                return;
+            }
+            int position;
+            synchronized (appendLock) {
+                position = segment.position;
+                generation = segment.generation;
+            }
+            segment.buffer.force();
+            segment.durablePosition = position;
+            segment.durableGeneration = generation;
+        }
+    }
+
+    private void roll() throws IOException {
+        activeSegment.buffer.force();
+        Segment previous = activeSegment;
+        activeSegment = createSegment(previous.sequence + 1);
+        if (previous.unresolved.get() == 0) {
+            release(previous);
+        }
+    }
+
+    /**
+     * Deletes a segment of which all records are indexed, or truncates it if it is the active segment.
+     * Must be called holding the append lock.
+     */
+    private void release(Segment segment) {
+        if (segment.unresolved.get() != 0) {
+            return;
+        }
+        if (segment == activeSegment) {
+            segment.buffer.putInt(0, 0);
+            segment.position = 0;
+            segment.generation++;
+            return;
+        }
+        segments.remove(segment);
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to delete journal segment " + segment.path, e);
+        }
+    }
+
+    private Segment createSegment(long sequence) throws IOException {
+        Path path = Paths.get(directory, String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        Segment segment = new Segment(path, sequence, segmentSize);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Reads the records of a segment, deferring those not marked as indexed. Reading stops at the end
+     * marker or at the first incomplete record.
+     */
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= segmentSize) {
+            buffer.position(position);
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            byte state = buffer.get();
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > segmentSize) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                logger.log(Level.WARNING, "Incomplete record at offset " + position + " of journal segment " + segment.path);
+                break;
+            }
+            if (state == PENDING) {
+                try {
+                    deferred.add(new Entry(segment, position, objectMapper.readValue(payload, Log.class)));
+                    segment.unresolved.incrementAndGet();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Unreadable record at offset " + position + " of journal segment " + segment.path, e);
+                }
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        segment.position = position;
+        segment.durablePosition = position;
+    }
+
+    /**
+     * A journaled document.
+     */
+    public static class Entry {
+        private final Segment segment;
+        private final int offset;
+        private final Log log;
+
+        private Entry(Segment segment, int offset, Log log) {
+            this.segment = segment;
+            this.offset = offset;
+            this.log = log;
+        }
+
+        public Log getLog() {
+            return log;
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final long sequence;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger unresolved = new AtomicInteger();
+        // Guarded by the append lock
+        private int position;
+        private int generation;
+        // Guarded by the segment
+        private int durablePosition;
+        private int durableGeneration;
+
+        Segment(Path path, long sequence, int size) throws IOException {
+            this.path = path;
+            this.sequence = sequence;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import org.phoebus.olog.entity.BulkItemResult;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Indexes the log entry documents deferred by the {@link LogJournal}, in journal order, using bulk requests.
+ * Replay stops at the first document Elasticsearch fails to index and is retried every
+ * <code>log.journal.replay.interval</code> milliseconds. Documents rejected by Elasticsearch as invalid
+ * are dropped, as replaying them again cannot succeed, and their attachments are deleted.
+ */
+@Service
+public class LogJournalReplayer {
+
+    private static final Logger logger = Logger.getLogger(LogJournalReplayer.class.getName());
+
+    private static final int BATCH_SIZE = 100;
+
+    @Value("${log.journal.replay.interval:1000}")
+    private long replayInterval;
+
+    @Autowired
+    private LogJournal journal;
+
+    @Autowired
+    private LogRepository logRepository;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        if (!journal.isEnabled()) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "olog-journal-replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::replay, 0, replayInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(replayInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Indexes deferred documents until none are left or Elasticsearch fails.
+     */
+    void replay() {
+        while (journal.hasDeferred()) {
+            List<LogJournal.Entry> entries = journal.getDeferred(BATCH_SIZE);
+            List<BulkItemResult> results;
+            try {
+                results = logRepository.index(entries.stream().map(LogJournal.Entry::getLog).collect(Collectors.toList()), null);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to replay journaled log entries, will retry", e);
+                return;
+            }
+            for (int i = 0; i < results.size(); i++) {
+                BulkItemResult result = results.get(i);
+                if (result.getLog() == null) {
+                    if (LogRepository.isTransientFailure(result.getStatus())) {
+                        return;
+                    }
+                    logger.log(Level.SEVERE, "Dropping journaled log entry " + entries.get(i).getLog().getId()
+                            + " rejected by Elasticsearch: " + result.getError());
+                    logRepository.deleteAttachments(entries.get(i).getLog());
+                }
+                journal.replayed(entries.get(i));
+            }
+            logger.log(Level.INFO, "Replayed " + results.size() + " journaled log entries");
+        }
+    }
+}
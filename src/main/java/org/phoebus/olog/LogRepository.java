@@ -6,8 +6,15 @@
 package org.phoebus.olog;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
 import co.elastic.clients.elasticsearch._types.Refresh;
 import co.elastic.clients.elasticsearch._types.Result;
+import co.elastic.clients.elasticsearch._types.ScriptSortType;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
 import co.elastic.clients.elasticsearch.core.GetRequest;
 import co.elastic.clients.elasticsearch.core.GetResponse;
 import co.elastic.clients.elasticsearch.core.IndexRequest;
@@ -16,12 +23,28 @@ import co.elastic.clients.elasticsearch.core.MgetRequest;
 import co.elastic.clients.elasticsearch.core.MgetResponse;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryRequest;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryResponse;
+import co.elastic.clients.elasticsearch.core.UpdateRequest;
+import co.elastic.clients.elasticsearch.core.UpdateResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import co.elastic.clients.elasticsearch.core.bulk.IndexOperation;
+import co.elastic.clients.elasticsearch.core.bulk.UpdateOperation;
 import co.elastic.clients.elasticsearch.core.mget.MultiGetResponseItem;
 import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.tasks.GetTasksResponse;
+import co.elastic.clients.json.JsonData;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.BulkItemResult;
+import org.phoebus.olog.entity.Event;
 import org.phoebus.olog.entity.Log;
 import org.phoebus.olog.entity.Log.LogBuilder;
+import org.phoebus.olog.entity.Logbook;
 import org.phoebus.olog.entity.SearchResult;
+import org.phoebus.olog.entity.Tag;
+import org.phoebus.olog.entity.TaskStatus;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -31,13 +54,27 @@ import org.springframework.stereotype.Repository;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -47,6 +84,68 @@ public class LogRepository implements CrudRepository<Log, String> {
 
     private static final Logger logger = Logger.getLogger(LogRepository.class.getName());
 
+    /**
+     * Appends <code>params.attachments</code> to the attachments of a log entry.
+     */
+    private static final String APPEND_ATTACHMENTS_SCRIPT =
+            "if (ctx._source.attachments == null) { ctx._source.attachments = params.attachments } "
+                    + "else { ctx._source.attachments.addAll(params.attachments) }";
+
+    /**
+     * Adds <code>params.event</code> to the events of a log entry, and its instant to the event times if already
+     * set, unless there are <code>params.maxEvents</code> events already, and increments its occurrences. Nothing is changed if the log entry no longer has the dedup key
+     * <code>params.dedupKey</code> or was created before <code>params.since</code>.
+     */
+    private static final String ADD_OCCURRENCE_SCRIPT =
+            "if (ctx._source.dedupKey != params.dedupKey || ctx._source.createdDate < params.since) { ctx.op = 'noop' } "
+                    + "else { if (ctx._source.events == null) { ctx._source.events = [] } "
+                    + "if (ctx._source.events.size() < params.maxEvents) { ctx._source.events.add(params.event); "
+                    + "if (ctx._source.eventTimes != null) { ctx._source.eventTimes.add(params.event.instant) } } "
+                    + "ctx._source.occurrences = (ctx._source.occurrences == null ? 1 : ctx._source.occurrences) + 1 }";
+
+    /**
+     * Adds <code>params.addTags</code> and <code>params.addLogbooks</code> to a log entry unless already present,
+     * and removes the tags and logbooks named in <code>params.removeTags</code> and <code>params.removeLogbooks</code>.
+     * Nothing is changed if no tag or logbook is added or removed, or if the log entry would be left without logbook.
+     */
+    static final String UPDATE_LABELS_SCRIPT =
+            "def removeTags = params.removeTags; def removeLogbooks = params.removeLogbooks; boolean changed = false; "
+                    + "List tags = ctx._source.tags == null ? new ArrayList() : new ArrayList(ctx._source.tags); "
+                    + "if (tags.removeIf(t -> removeTags.contains(t))) { changed = true } "
+                    + "for (tag in params.addTags) { if (!tags.contains(tag)) { tags.add(tag); changed = true } } "
+                    + "List logbooks = ctx._source.logbooks == null ? new ArrayList() : new ArrayList(ctx._source.logbooks); "
+                    + "boolean logbooksChanged = logbooks.removeIf(l -> removeLogbooks.contains(l)); "
+                    + "for (logbook in params.addLogbooks) { if (!logbooks.contains(logbook)) { logbooks.add(logbook); logbooksChanged = true } } "
+                    + "if (logbooks.isEmpty() || !(changed || logbooksChanged)) { ctx.op = 'noop'; return } "
+                    + "ctx._source.tags = tags; ctx._source.logbooks = logbooks; ctx._source.modifyDate = params.modifyDate; "
+                    + "if (logbooksChanged) { ctx._source.dedupKey = null }";
+
+    /**
+     * The id of a log entry as a number, to sort by, as the <code>id</code> keyword sorts "10" before "9".
+     */
+    static final String NUMERIC_ID_SCRIPT = "doc['id'].size() == 0 ? 0 : Long.parseLong(doc['id'].value)";
+
+    /**
+     * The fields of a log entry a client may change, see {@link #updatePartially(String, Log, VersionedLog.Version, Refresh)}.
+     */
+    private static final List<String> UPDATABLE_FIELDS =
+            List.of("title", "level", "description", "source", "logbooks", "tags", "properties", "modifyDate");
+
+    /**
+     * Number of times an update without version is retried when the log entry is written concurrently.
+     */
+    private static final int UPDATE_RETRIES_ON_CONFLICT = 3;
+
+    /**
+     * Number of log entries read per search request by {@link #findByGroupId(String)}.
+     */
+    private static final int GROUP_PAGE_SIZE = 1000;
+
+    /**
+     * The same mapper as used by the Elasticsearch client.
+     */
+    private static final ObjectMapper objectMapper = LogDocumentModule.jsonpMapper().objectMapper();
+
     @SuppressWarnings("unused")
     @Value("${elasticsearch.log.index:olog_logs}")
     private String ES_LOG_INDEX;
@@ -62,78 +161,749 @@ public class LogRepository implements CrudRepository<Log, String> {
     @Autowired
     SequenceGenerator generator;
 
-    @Override
-    public <S extends Log> S save(S log) {
-        try {
-            Long id = generator.getID();
-            LogBuilder validatedLog = LogBuilder.createLog(log).id(id).createDate(Instant.now());
-            if (log.getAttachments() != null && !log.getAttachments().isEmpty()) {
-                Set<Attachment> createdAttachments = new HashSet<>();
-                log.getAttachments().stream().filter(attachment -> attachment.getAttachment() != null).forEach(attachment -> {
-                    createdAttachments.add(attachmentRepository.save(attachment));
-                });
-                validatedLog = validatedLog.setAttachments(createdAttachments);
-            }
+    @Autowired
+    LogJournal journal;
+
+    @Autowired
+    LogbookRepository logbookRepository;
 
-            Log document = validatedLog.build();
+    @Autowired
+    TagRepository tagRepository;
 
-            IndexRequest<Object> indexRequest =
-                    IndexRequest.of(i ->
-                            i.index(ES_LOG_INDEX)
-                                    .id(String.valueOf(id))
-                                    .document(document)
-                                    .refresh(Refresh.True));
-            IndexResponse response = client.index(indexRequest);
+    @Autowired
+    AttachmentTextExtractor attachmentTextExtractor;
+
+    /**
+     * Refresh policy applied to writes of log entries unless overridden per request.
+     */
+    @Value("${elasticsearch.log.refresh:wait_for}")
+    private String refreshPolicy;
+
+    private Refresh defaultRefresh;
+
+    /**
+     * Maximum number of attachments uploaded to GridFS at the same time.
+     */
+    @Value("${log.attachments.upload.threads:8}")
+    private int attachmentUploadThreads;
+
+    private ExecutorService attachmentUploadExecutor;
+
+    /**
+     * Throttle of label updates, in log entries per second, -1 for no throttling.
+     */
+    @Value("${log.labels.update.requests.per.second:500}")
+    private long labelUpdateRequestsPerSecond;
 
-            if (response.result().equals(Result.Created)) {
-                GetRequest getRequest =
-                        GetRequest.of(g ->
-                                g.index(ES_LOG_INDEX).id(response.id()));
-                GetResponse<Log> resp =
-                        client.get(getRequest, Log.class);
-                return (S) resp.source();
+    /**
+     * Number of log entries per batch of a label update.
+     */
+    @Value("${log.labels.update.batch.size:500}")
+    private long labelUpdateBatchSize;
+
+    @PostConstruct
+    public void init() {
+        defaultRefresh = parseRefreshPolicy(refreshPolicy);
+        AtomicInteger threadCount = new AtomicInteger();
+        // Uploads queued beyond the capacity run on the calling thread
+        attachmentUploadExecutor = new ThreadPoolExecutor(attachmentUploadThreads, attachmentUploadThreads,
+                60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(attachmentUploadThreads * 16),
+                r -> {
+                    Thread thread = new Thread(r, "olog-attachment-upload-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        attachmentUploadExecutor.shutdown();
+    }
+
+    @Override
+    public <S extends Log> S save(S log) {
+        return save(log, null);
+    }
+
+    /**
+     * Saves a new log entry. The returned {@link Log} is the document sent to Elasticsearch, i.e. it
+     * is not read back from the index.
+     *
+     * @param log     The log entry to create.
+     * @param refresh The refresh policy for this write, or <code>null</code> to use the policy
+     *                configured with <code>elasticsearch.log.refresh</code>.
+     * @return The persisted log entry, including id and creation date.
+     */
+    public <S extends Log> S save(S log, Refresh refresh) {
+        Log document = null;
+        try {
+            document = createDocument(log, generator.getID());
+            Log created = write(document, refresh, Result.Created);
+            if (created != null) {
+                attachmentTextExtractor.submit(created);
             }
+            return (S) created;
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Failed to save log entry: " + log, e);
+            if (document != null) {
+                deleteAttachments(document);
+            }
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to save log entry: " + log);
         }
-        return null;
     }
 
     @Override
     public <S extends Log> Iterable<S> saveAll(Iterable<S> logs) {
+        List<Log> logList = new ArrayList<>();
+        logs.forEach(logList::add);
         List<S> createdLogs = new ArrayList<>();
-        logs.forEach(log -> {
-            createdLogs.add(save(log));
-        });
+        for (BulkItemResult result : saveAll(logList, null)) {
+            if (result.getLog() == null) {
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to save log entries: " + result.getError());
+            }
+            createdLogs.add((S) result.getLog());
+        }
         return createdLogs;
     }
 
-    public Log update(Log log) {
+    /**
+     * Creates several log entries with a single bulk request. The ids of all entries are reserved in
+     * one step. The log entries are journaled as by {@link #save(Log, Refresh)}, see {@link #writeAll(List, Refresh)}.
+     *
+     * @param logs    The log entries to create.
+     * @param refresh The refresh policy for this write, or <code>null</code> to use the policy
+     *                configured with <code>elasticsearch.log.refresh</code>.
+     * @return A {@link BulkItemResult} for each log entry, in the order of the log entries.
+     */
+    public List<BulkItemResult> saveAll(List<Log> logs, Refresh refresh) {
+        if (logs.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Log> documents = new ArrayList<>();
+        List<BulkItemResult> results;
         try {
-            Log document = LogBuilder.createLog(log).build();
+            long firstId = generator.reserveIDs(logs.size());
+            for (int i = 0; i < logs.size(); i++) {
+                documents.add(createDocument(logs.get(i), firstId + i));
+            }
+            results = writeAll(documents, refresh);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to save log entries", e);
+            documents.forEach(this::deleteAttachments);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to save log entries");
+        }
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).getLog() == null) {
+                deleteAttachments(documents.get(i));
+            }
+        }
+        return results;
+    }
 
-            IndexRequest<Log> indexRequest =
-                    IndexRequest.of(i ->
-                            i.index(ES_LOG_INDEX)
-                                    .id(String.valueOf(document.getId()))
-                                    .document(document));
+    /**
+     * Indexes new log entries prepared with {@link #prepare(Log)} using a single bulk request.
+     *
+     * @param documents The log entries to index.
+     * @param refresh   The refresh policy for this write, or <code>null</code> to use the policy
+     *                  configured with <code>elasticsearch.log.refresh</code>.
+     * @return A {@link BulkItemResult} for each log entry, in the order of the log entries.
+     */
+    public List<BulkItemResult> index(List<Log> documents, Refresh refresh) {
+        List<BulkItemResult> results = new ArrayList<>();
+        if (documents.isEmpty()) {
+            return results;
+        }
+        try {
+            List<BulkOperation> operations = new ArrayList<>();
+            for (Log document : documents) {
+                operations.add(IndexOperation.of(o ->
+                        o.index(ES_LOG_INDEX)
+                                .id(String.valueOf(document.getId()))
+                                .document(document))._toBulkOperation());
+            }
 
-            IndexResponse response = client.index(indexRequest);
+            BulkRequest bulkRequest =
+                    BulkRequest.of(b ->
+                            b.operations(operations)
+                                    .refresh(refresh != null ? refresh : defaultRefresh));
+            BulkResponse response = client.bulk(bulkRequest);
 
-            if (response.result().equals(Result.Updated)) {
-                GetRequest getRequest =
-                        GetRequest.of(g ->
-                                g.index(ES_LOG_INDEX).id(response.id()));
-                GetResponse<Log> resp =
-                        client.get(getRequest, Log.class);
-                return resp.source();
+            for (int i = 0; i < documents.size(); i++) {
+                BulkResponseItem item = response.items().get(i);
+                if (item.error() != null) {
+                    logger.log(Level.SEVERE, "Failed to save log entry: " + documents.get(i) + ", " + item.error().reason());
+                    results.add(new BulkItemResult(item.status(), null, item.error().reason()));
+                } else {
+                    results.add(new BulkItemResult(HttpStatus.CREATED.value(), documents.get(i), null));
+                    attachmentTextExtractor.submit(documents.get(i));
+                }
             }
         } catch (Exception e) {
-            logger.log(Level.SEVERE, "Failed to save log entry: " + log, e);
+            logger.log(Level.SEVERE, "Failed to save log entries", e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to save log entries");
+        }
+        return results;
+    }
+
+    /**
+     * Assigns an id and creation date to a new log entry and persists its attachments, but does not
+     * index it. See {@link #index(List, Refresh)}.
+     *
+     * @param log The log entry to create.
+     * @return The log entry as it will be indexed.
+     */
+    public Log prepare(Log log) {
+        try {
+            return createDocument(log, generator.getID());
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to prepare log entry: " + log, e);
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to save log entry: " + log);
         }
-        return null;
+    }
+
+    /**
+     * Builds the document indexed for a new log entry and persists its attachments. The attachments
+     * are uploaded concurrently. If any upload fails, those already uploaded are deleted.
+     *
+     * @param log The log entry as submitted.
+     * @param id  The id allocated to the log entry.
+     * @return The document to index.
+     * @throws IOException if an attachment could not be persisted.
+     */
+    private Log createDocument(Log log, long id) throws IOException {
+        // Elasticsearch stores dates with millisecond precision
+        LogBuilder validatedLog = LogBuilder.createLog(log).id(id).createDate(Instant.now().truncatedTo(ChronoUnit.MILLIS));
+        if (log.getAttachments() != null && !log.getAttachments().isEmpty()) {
+            validatedLog = validatedLog.setAttachments(new HashSet<>(uploadAttachments(log.getAttachments().stream()
+                    .filter(attachment -> attachment.getAttachment() != null)
+                    .collect(Collectors.toList()))));
+        }
+        return validatedLog.build();
+    }
+
+    /**
+     * Persists attachments concurrently. If any upload fails, those already uploaded are deleted.
+     *
+     * @param attachments The attachments to persist.
+     * @return The persisted attachments, in the given order.
+     * @throws IOException if an attachment could not be persisted.
+     */
+    private List<Attachment> uploadAttachments(Collection<Attachment> attachments) throws IOException {
+        List<Future<Attachment>> uploads = new ArrayList<>();
+        attachments.forEach(attachment ->
+                uploads.add(attachmentUploadExecutor.submit(() -> attachmentRepository.save(attachment))));
+        List<Attachment> createdAttachments = new ArrayList<>();
+        Exception failure = null;
+        for (Future<Attachment> upload : uploads) {
+            try {
+                Attachment createdAttachment = upload.get();
+                if (createdAttachment != null) {
+                    createdAttachments.add(createdAttachment);
+                } else if (failure == null) {
+                    failure = new IOException("Attachment not persisted");
+                }
+            } catch (ExecutionException e) {
+                failure = failure == null ? e : failure;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            createdAttachments.forEach(this::deleteAttachment);
+            throw new IOException("Failed to persist attachments", failure);
+        }
+        return createdAttachments;
+    }
+
+    /**
+     * Persists attachments concurrently and then adds them to an existing log entry, see
+     * {@link #appendAttachments(String, List, Refresh)}. The attachments are deleted if the log entry
+     * cannot be updated.
+     *
+     * @param logId       The id of the log entry.
+     * @param attachments The attachments, including their data.
+     * @param refresh     The refresh policy for this write, or <code>null</code> to use the policy
+     *                    configured with <code>elasticsearch.log.refresh</code>.
+     * @return The updated log entry.
+     */
+    public Log addAttachments(String logId, List<Attachment> attachments, Refresh refresh) {
+        List<Attachment> createdAttachments;
+        try {
+            createdAttachments = uploadAttachments(attachments);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to persist attachments of log entry " + logId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to persist attachments of log entry " + logId);
+        }
+        try {
+            return appendAttachments(logId, createdAttachments, refresh);
+        } catch (ResponseStatusException e) {
+            createdAttachments.forEach(this::deleteAttachment);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds persisted attachments to an existing log entry using a single scripted update, i.e. without
+     * reading and re-indexing the log entry. Their text is then extracted by the {@link AttachmentTextExtractor}.
+     * <p>
+     * While the {@link LogJournal} holds documents waiting to be replayed the update is refused, as a
+     * replayed document would overwrite it.
+     *
+     * @param logId       The id of the log entry.
+     * @param attachments The persisted attachments.
+     * @param refresh     The refresh policy for this write, or <code>null</code> to use the policy
+     *                    configured with <code>elasticsearch.log.refresh</code>.
+     * @return The updated log entry. HTTP status 404 if the log entry does not exist.
+     */
+    public Log appendAttachments(String logId, List<Attachment> attachments, Refresh refresh) {
+        requireJournalReplayed();
+        try {
+            UpdateRequest<Log, Log> updateRequest =
+                    UpdateRequest.of(u ->
+                            u.index(ES_LOG_INDEX).id(logId)
+                                    .script(s -> s.inline(i -> i.source(APPEND_ATTACHMENTS_SCRIPT)
+                                            .params("attachments", JsonData.of(attachments))))
+                                    .source(src -> src.fetch(true))
+                                    .refresh(refresh != null ? refresh : defaultRefresh));
+            UpdateResponse<Log> response = client.update(updateRequest, Log.class);
+            attachmentTextExtractor.submit(logId, attachments);
+            return hydrate(response.get().source());
+        } catch (ElasticsearchException e) {
+            if (e.status() == HttpStatus.NOT_FOUND.value()) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: " + logId);
+            }
+            logger.log(Level.SEVERE, "Failed to add attachments to log entry " + logId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to add attachments to log entry " + logId);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to add attachments to log entry " + logId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to add attachments to log entry " + logId);
+        }
+    }
+
+    /**
+     * Adds an occurrence to a log entry identical to a newly submitted one, see {@link LogDeduplicator}, using a
+     * single scripted update. Failures are logged but not thrown, as the new log entry is then created instead.
+     *
+     * @param logId     The id of the log entry.
+     * @param dedupKey  The dedup key the log entry must still have.
+     * @param since     The earliest creation date of the log entry.
+     * @param event     The occurrence event.
+     * @param maxEvents The number of events above which occurrences are only counted.
+     * @param refresh   The refresh policy for this write, or <code>null</code> to use the policy
+     *                  configured with <code>elasticsearch.log.refresh</code>.
+     * @return The updated log entry, or <code>null</code> if it does not exist, does not match or could not be updated.
+     */
+    public Log addOccurrence(String logId, String dedupKey, Instant since, Event event, int maxEvents, Refresh refresh) {
+        if (journal.isEnabled() && journal.hasDeferred()) {
+            return null;
+        }
+        try {
+            UpdateRequest<Log, Log> updateRequest =
+                    UpdateRequest.of(u ->
+                            u.index(ES_LOG_INDEX).id(logId)
+                                    .script(s -> s.inline(i -> i.source(ADD_OCCURRENCE_SCRIPT)
+                                            .params("dedupKey", JsonData.of(dedupKey))
+                                            .params("since", JsonData.of(since.toEpochMilli()))
+                                            .params("event", JsonData.of(event))
+                                            .params("maxEvents", JsonData.of(maxEvents))))
+                                    .source(src -> src.fetch(true))
+                                    .refresh(refresh != null ? refresh : defaultRefresh));
+            UpdateResponse<Log> response = client.update(updateRequest, Log.class);
+            return response.result() == Result.NoOp ? null : hydrate(response.get().source());
+        } catch (ElasticsearchException e) {
+            if (e.status() != HttpStatus.NOT_FOUND.value()) {
+                logger.log(Level.WARNING, "Failed to add occurrence to log entry " + logId, e);
+            }
+            return null;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to add occurrence to log entry " + logId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Starts adding and removing tags and logbooks on existing log entries as an Elasticsearch
+     * <code>update_by_query</code> task, throttled by <code>log.labels.update.requests.per.second</code>. Log entries
+     * modified concurrently are skipped and counted as version conflicts. The update is not journaled, and is
+     * refused while the {@link LogJournal} holds documents waiting to be replayed.
+     *
+     * @param ids              Ids of the log entries, empty for all log entries matching the search parameters.
+     * @param searchParameters Search parameters as for {@link #search(MultiValueMap)}, empty for all log entries
+     *                         with the given ids.
+     * @param addTags          Names of the tags to add.
+     * @param removeTags       Names of the tags to remove.
+     * @param addLogbooks      Names of the logbooks to add.
+     * @param removeLogbooks   Names of the logbooks to remove.
+     * @return The status of the started task.
+     */
+    public TaskStatus startLabelUpdate(List<Long> ids, MultiValueMap<String, String> searchParameters,
+                                       List<String> addTags, List<String> removeTags,
+                                       List<String> addLogbooks, List<String> removeLogbooks) {
+        requireJournalReplayed();
+        BoolQuery.Builder query = new BoolQuery.Builder();
+        if (!ids.isEmpty()) {
+            query.filter(q -> q.ids(i -> i.values(ids.stream().map(String::valueOf).collect(Collectors.toList()))));
+        }
+        if (!searchParameters.isEmpty()) {
+            query.filter(logSearchUtil.buildSearchRequest(searchParameters).query());
+        }
+        Map<String, JsonData> params = new HashMap<>();
+        params.put("addTags", JsonData.of(addTags));
+        params.put("removeTags", JsonData.of(removeTags));
+        params.put("addLogbooks", JsonData.of(addLogbooks));
+        params.put("removeLogbooks", JsonData.of(removeLogbooks));
+        params.put("modifyDate", JsonData.of(Instant.now().toEpochMilli()));
+        try {
+            UpdateByQueryResponse response = client.updateByQuery(UpdateByQueryRequest.of(u ->
+                    u.index(ES_LOG_INDEX)
+                            .query(query.build()._toQuery())
+                            .script(s -> s.inline(i -> i.source(UPDATE_LABELS_SCRIPT).params(params)))
+                            .conflicts(Conflicts.Proceed)
+                            .requestsPerSecond(labelUpdateRequestsPerSecond)
+                            .scrollSize(labelUpdateBatchSize)
+                            .refresh(true)
+                            .waitForCompletion(false)));
+            logger.log(Level.INFO, "Started label update of log entries, task " + response.task());
+            return new TaskStatus(response.task());
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to start label update of log entries", e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to start label update of log entries");
+        }
+    }
+
+    /**
+     * @param taskId The id of a task started by {@link #startLabelUpdate(List, MultiValueMap, List, List, List, List)}.
+     * @return The status of the task. HTTP status 404 if there is no such task.
+     */
+    public TaskStatus getTaskStatus(String taskId) {
+        try {
+            GetTasksResponse response = client.tasks().get(g -> g.taskId(taskId));
+            TaskStatus taskStatus = new TaskStatus(taskId);
+            taskStatus.setCompleted(response.completed());
+            co.elastic.clients.elasticsearch.tasks.TaskStatus status = response.response() != null
+                    ? response.response()
+                    : response.task().status();
+            if (status != null) {
+                taskStatus.setTotal(status.total());
+                taskStatus.setUpdated(status.updated());
+                taskStatus.setNoops(status.noops());
+                taskStatus.setVersionConflicts(status.versionConflicts());
+                if (status.failures() != null) {
+                    taskStatus.setFailures(status.failures());
+                }
+            }
+            if (response.error() != null) {
+                taskStatus.setError(response.error().reason());
+            }
+            return taskStatus;
+        } catch (ElasticsearchException e) {
+            if (e.status() == HttpStatus.NOT_FOUND.value() || e.status() == HttpStatus.BAD_REQUEST.value()) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No task with id " + taskId);
+            }
+            logger.log(Level.SEVERE, "Failed to get status of task " + taskId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to get status of task " + taskId);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to get status of task " + taskId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to get status of task " + taskId);
+        }
+    }
+
+    /**
+     * Deletes the attachments persisted for a log entry that could not be indexed.
+     *
+     * @param document The document that was not indexed.
+     */
+    void deleteAttachments(Log document) {
+        if (document.getAttachments() != null) {
+            document.getAttachments().forEach(this::deleteAttachment);
+        }
+    }
+
+    private void deleteAttachment(Attachment attachment) {
+        if (attachment.getId() == null || attachment.getId().isEmpty()) {
+            return;
+        }
+        try {
+            attachmentRepository.deleteById(attachment.getId());
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to delete orphaned attachment " + attachment.getId(), e);
+        }
+    }
+
+    /**
+     * Updates the fields a client may change, i.e. title, level, description, source, logbooks, tags,
+     * properties and modify date, using a partial update. Other fields are left as they are.
+     * <p>
+     * If a version is specified, the update is made only if the document has not been written since,
+     * otherwise it fails with HTTP status 409. Without a version, the update is retried on concurrent writes.
+     * <p>
+     * Partial updates are not journaled, as a deferred update could neither check the version nor be merged
+     * with the current document. They are refused with HTTP status 503 while the {@link LogJournal} holds
+     * documents waiting to be replayed.
+     *
+     * @param logId   The id of the log entry.
+     * @param changes The log entry holding the changed fields.
+     * @param version The version the changes are based on, or <code>null</code> to update any version.
+     * @param refresh The refresh policy for this write, or <code>null</code> to use the policy
+     *                configured with <code>elasticsearch.log.refresh</code>.
+     * @return The updated log entry and its new version. HTTP status 404 if the log entry does not exist.
+     */
+    public VersionedLog updatePartially(String logId, Log changes, VersionedLog.Version version, Refresh refresh) {
+        requireJournalReplayed();
+        if (changes.getModifyDate() != null) {
+            changes.setModifyDate(changes.getModifyDate().truncatedTo(ChronoUnit.MILLIS));
+        }
+        Map<String, Object> document = objectMapper.convertValue(changes, Map.class);
+        Map<String, Object> partialDocument = new LinkedHashMap<>();
+        UPDATABLE_FIELDS.forEach(field -> partialDocument.put(field, document.get(field)));
+        // Derived from the properties
+        partialDocument.put("groupId", document.get("groupId"));
+        partialDocument.put("propertyAttributes", document.get("propertyAttributes"));
+        // Rendered from the source
+        partialDocument.put("html", document.get("html"));
+        // An edited log entry no longer absorbs identical entries
+        partialDocument.put("dedupKey", null);
+        try {
+            UpdateRequest<Log, Map<String, Object>> updateRequest =
+                    UpdateRequest.of(u -> {
+                        u.index(ES_LOG_INDEX).id(logId)
+                                .doc(partialDocument)
+                                .source(src -> src.fetch(true))
+                                .refresh(refresh != null ? refresh : defaultRefresh);
+                        if (version != null) {
+                            u.ifSeqNo(version.getSeqNo()).ifPrimaryTerm(version.getPrimaryTerm());
+                        } else {
+                            u.retryOnConflict(UPDATE_RETRIES_ON_CONFLICT);
+                        }
+                        return u;
+                    });
+            UpdateResponse<Log> response = client.update(updateRequest, Log.class);
+            return new VersionedLog(hydrate(response.get().source()), new VersionedLog.Version(response.seqNo(), response.primaryTerm()));
+        } catch (ElasticsearchException e) {
+            if (e.status() == HttpStatus.NOT_FOUND.value()) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: " + logId);
+            } else if (e.status() == HttpStatus.CONFLICT.value()) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT, version != null
+                        ? "Log entry " + logId + " has been modified since version " + version.toETag()
+                        : "Log entry " + logId + " has been modified concurrently");
+            }
+            logger.log(Level.SEVERE, "Failed to update log entry " + logId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to update log entry " + logId);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to update log entry " + logId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to update log entry " + logId);
+        }
+    }
+
+    /**
+     * Replaces the properties of several log entries using a single bulk request of partial updates. Each
+     * update is made only if the log entry has not been written since it was read, otherwise its result has
+     * HTTP status 409.
+     *
+     * @param logs    The log entries holding the new properties, with the versions they were read with.
+     * @param refresh The refresh policy for this write, or <code>null</code> to use the policy
+     *                configured with <code>elasticsearch.log.refresh</code>.
+     * @return A {@link BulkItemResult} for each log entry, in the order of the log entries.
+     */
+    public List<BulkItemResult> updateProperties(List<VersionedLog> logs, Refresh refresh) {
+        List<BulkItemResult> results = new ArrayList<>();
+        if (logs.isEmpty()) {
+            return results;
+        }
+        requireJournalReplayed();
+        try {
+            List<BulkOperation> operations = new ArrayList<>();
+            for (VersionedLog versionedLog : logs) {
+                Map<String, Object> partialDocument = new HashMap<>();
+                partialDocument.put("properties", versionedLog.getLog().getProperties());
+                partialDocument.put("groupId", versionedLog.getLog().getGroupId());
+                partialDocument.put("propertyAttributes", versionedLog.getLog().getPropertyAttributes());
+                operations.add(UpdateOperation.<Log, Map<String, Object>>of(o ->
+                        o.index(ES_LOG_INDEX)
+                                .id(String.valueOf(versionedLog.getLog().getId()))
+                                .ifSeqNo(versionedLog.getVersion().getSeqNo())
+                                .ifPrimaryTerm(versionedLog.getVersion().getPrimaryTerm())
+                                .action(a -> a.doc(partialDocument)))._toBulkOperation());
+            }
+            BulkResponse response = client.bulk(BulkRequest.of(b ->
+                    b.operations(operations)
+                            .refresh(refresh != null ? refresh : defaultRefresh)));
+            for (int i = 0; i < logs.size(); i++) {
+                BulkResponseItem item = response.items().get(i);
+                if (item.error() != null) {
+                    results.add(new BulkItemResult(item.status(), null, item.error().reason()));
+                } else {
+                    results.add(new BulkItemResult(item.status(), logs.get(i).getLog(), null));
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to update log entries", e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to update log entries");
+        }
+        return results;
+    }
+
+    /**
+     * Refuses writes that bypass the {@link LogJournal} while it holds documents waiting to be replayed,
+     * as a replayed document would overwrite them.
+     */
+    private void requireJournalReplayed() {
+        if (journal.isEnabled() && journal.hasDeferred()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Log entries are being replayed, retry later");
+        }
+    }
+
+    /**
+     * Indexes a new or updated log entry. If the {@link LogJournal} is enabled the document is journaled
+     * first, and indexing is left to the {@link LogJournalReplayer} if Elasticsearch fails or if earlier
+     * journaled documents are still waiting to be replayed.
+     *
+     * @param document The document to index.
+     * @param refresh  The refresh policy, or <code>null</code> for the configured policy.
+     * @param expected The expected result of the index request.
+     * @return The document if indexed with the expected result or journaled, otherwise <code>null</code>.
+     * @throws IOException if Elasticsearch fails and the document has not been journaled.
+     */
+    private Log write(Log document, Refresh refresh, Result expected) throws IOException {
+        IndexRequest<Log> indexRequest =
+                IndexRequest.of(i ->
+                        i.index(ES_LOG_INDEX)
+                                .id(String.valueOf(document.getId()))
+                                .document(document)
+                                .refresh(refresh != null ? refresh : defaultRefresh));
+        LogJournal.Entry entry = null;
+        if (journal.isEnabled()) {
+            try {
+                entry = journal.append(document);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to journal log entry " + document.getId(), e);
+            }
+        }
+        if (entry == null) {
+            IndexResponse response = client.index(indexRequest);
+            return response.result().equals(expected) ? document : null;
+        }
+        if (!journal.hasDeferred()) {
+            try {
+                IndexResponse response = client.index(indexRequest);
+                journal.markIndexed(entry);
+                return response.result().equals(expected) ? document : null;
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to index log entry " + document.getId() + ", deferred to journal replay", e);
+            }
+        }
+        journal.defer(entry);
+        return document;
+    }
+
+    /**
+     * Indexes new log entries as {@link #index(List, Refresh)} does. If the {@link LogJournal} is enabled the
+     * documents are journaled first, as by {@link #write(Log, Refresh, Result)}. A document Elasticsearch failed to
+     * index for a transient reason is then left to the {@link LogJournalReplayer} and reported as created.
+     *
+     * @param documents The documents to index.
+     * @param refresh   The refresh policy, or <code>null</code> for the configured policy.
+     * @return A {@link BulkItemResult} for each document, in the order of the documents.
+     */
+    private List<BulkItemResult> writeAll(List<Log> documents, Refresh refresh) {
+        if (!journal.isEnabled()) {
+            return index(documents, refresh);
+        }
+        List<LogJournal.Entry> entries = new ArrayList<>();
+        try {
+            for (Log document : documents) {
+                entries.add(journal.append(document));
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to journal log entries", e);
+            // Not to be replayed, as indexed right away
+            entries.forEach(journal::markIndexed);
+            return index(documents, refresh);
+        }
+        List<BulkItemResult> results = null;
+        if (!journal.hasDeferred()) {
+            try {
+                results = index(documents, refresh);
+            } catch (ResponseStatusException e) {
+                logger.log(Level.WARNING, "Failed to index log entries, deferred to journal replay", e);
+            }
+        }
+        List<BulkItemResult> written = new ArrayList<>();
+        for (int i = 0; i < documents.size(); i++) {
+            BulkItemResult result = results != null ? results.get(i) : null;
+            if (result != null && (result.getLog() != null || !isTransientFailure(result.getStatus()))) {
+                journal.markIndexed(entries.get(i));
+                written.add(result);
+            } else {
+                journal.defer(entries.get(i));
+                written.add(new BulkItemResult(HttpStatus.CREATED.value(), documents.get(i), null));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @param status The HTTP status of a failed bulk item.
+     * @return <code>true</code> if indexing the document again may succeed.
+     */
+    static boolean isTransientFailure(int status) {
+        HttpStatus httpStatus = HttpStatus.resolve(status);
+        return httpStatus == null || !httpStatus.is4xxClientError() || httpStatus == HttpStatus.TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * Restores the owner and state of the logbooks and tags of a log entry read from Elasticsearch, which only
+     * stores their names, see {@link LogDocumentModule}. Logbooks and tags missing from the {@link Catalog} are
+     * left as they are.
+     *
+     * @param log A log entry as read from Elasticsearch, or <code>null</code>.
+     * @return The same log entry.
+     */
+    Log hydrate(Log log) {
+        if (log == null) {
+            return null;
+        }
+        if (log.getLogbooks() != null) {
+            Set<Logbook> logbooks = new HashSet<>();
+            for (Logbook logbook : log.getLogbooks()) {
+                Logbook catalogLogbook = logbookRepository.findInCatalog(logbook.getName());
+                logbooks.add(catalogLogbook != null ? catalogLogbook : logbook);
+            }
+            log.setLogbooks(logbooks);
+        }
+        if (log.getTags() != null) {
+            Set<Tag> tags = new HashSet<>();
+            for (Tag tag : log.getTags()) {
+                Tag catalogTag = tagRepository.findInCatalog(tag.getName());
+                tags.add(catalogTag != null ? catalogTag : tag);
+            }
+            log.setTags(tags);
+        }
+        return log;
+    }
+
+    /**
+     * Parses a refresh policy as used by <code>elasticsearch.log.refresh</code> or the <code>refresh</code>
+     * request parameter.
+     *
+     * @param refreshPolicy One of <code>none</code>, <code>wait_for</code> or <code>true</code>.
+     * @return The corresponding {@link Refresh}
+     * @throws IllegalArgumentException if the policy is not recognized.
+     */
+    public static Refresh parseRefreshPolicy(String refreshPolicy) {
+        switch (refreshPolicy.strip().toLowerCase()) {
+            case "none":
+            case "false":
+                return Refresh.False;
+            case "wait_for":
+                return Refresh.WaitFor;
+            case "true":
+                return Refresh.True;
+            default:
+                throw new IllegalArgumentException("Unsupported refresh policy: " + refreshPolicy);
+        }
     }
 
     @Override
@@ -148,7 +918,7 @@ public class LogRepository implements CrudRepository<Log, String> {
             if (!resp.found()) {
                 throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Log with id " + id + " not found.");
             }
-            return Optional.of(resp.source());
+            return Optional.of(hydrate(resp.source()));
         } catch (Exception e) {
             // https://www.baeldung.com/exception-handling-for-rest-with-spring#controlleradvice
             logger.log(Level.SEVERE, "Failed to retrieve log with id: " + id, e);
@@ -156,6 +926,113 @@ public class LogRepository implements CrudRepository<Log, String> {
         }
     }
 
+    /**
+     * @param id The id of a log entry.
+     * @return The log entry and the version of its document. HTTP status 404 if the log entry does not exist.
+     */
+    public VersionedLog findVersionedById(String id) {
+        try {
+            GetResponse<Log> resp = client.get(GetRequest.of(g -> g.index(ES_LOG_INDEX).id(id)), Log.class);
+            if (resp.found()) {
+                return new VersionedLog(hydrate(resp.source()), new VersionedLog.Version(resp.seqNo(), resp.primaryTerm()));
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to retrieve log with id: " + id, e);
+        }
+        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: " + id);
+    }
+
+    /**
+     * Retrieves several log entries using a single multi get request.
+     *
+     * @param ids The ids of the log entries.
+     * @return The log entries with the versions of their documents, in the order of the ids. Log entries
+     * that do not exist are <code>null</code>.
+     */
+    public List<VersionedLog> findVersionedByIds(List<String> ids) {
+        try {
+            MgetResponse<Log> resp = client.mget(MgetRequest.of(r -> r.index(ES_LOG_INDEX).ids(ids)), Log.class);
+            List<VersionedLog> foundLogs = new ArrayList<>();
+            for (MultiGetResponseItem<Log> item : resp.docs()) {
+                if (item.isResult() && item.result().found()) {
+                    foundLogs.add(new VersionedLog(hydrate(item.result().source()),
+                            new VersionedLog.Version(item.result().seqNo(), item.result().primaryTerm())));
+                } else {
+                    foundLogs.add(null);
+                }
+            }
+            return foundLogs;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to find logs: " + ids, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to find logs: " + ids);
+        }
+    }
+
+    /**
+     * Retrieves all log entries of a log entry group, i.e. a thread of replies, using a term query on the
+     * <code>groupId</code> field. Log entries created at the same time are ordered by their id, as a number, which
+     * unlike the sequence number of the document does not change when the log entry is updated.
+     *
+     * @param groupId The id of the log entry group.
+     * @return The log entries of the group, oldest first. Empty if there is no such group.
+     */
+    public List<Log> findByGroupId(String groupId) {
+        try {
+            List<Log> logs = new ArrayList<>();
+            List<String> searchAfter = new ArrayList<>();
+            while (true) {
+                final List<String> after = new ArrayList<>(searchAfter);
+                SearchRequest searchRequest = SearchRequest.of(s -> {
+                    s.index(ES_LOG_INDEX)
+                            .query(q -> q.term(t -> t.field("groupId").value(groupId)))
+                            .size(GROUP_PAGE_SIZE)
+                            .sort(so -> so.field(f -> f.field("createdDate").order(SortOrder.Asc)))
+                            .sort(so -> so.script(sc -> sc.type(ScriptSortType.Number)
+                                    .script(sr -> sr.inline(i -> i.source(NUMERIC_ID_SCRIPT)))
+                                    .order(SortOrder.Asc)));
+                    if (!after.isEmpty()) {
+                        s.searchAfter(after);
+                    }
+                    return s;
+                });
+                List<Hit<Log>> hits = client.search(searchRequest, Log.class).hits().hits();
+                hits.forEach(hit -> logs.add(hydrate(hit.source())));
+                if (hits.size() < GROUP_PAGE_SIZE) {
+                    return logs;
+                }
+                searchAfter = hits.get(hits.size() - 1).sort();
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to find log entries of group " + groupId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to find log entries of group " + groupId);
+        }
+    }
+
+    /**
+     * Finds the most recent log entry with a dedup key, see {@link LogDeduplicator}.
+     *
+     * @param dedupKey The dedup key.
+     * @param since    The earliest creation date of the log entry.
+     * @return The id of the log entry, or <code>null</code> if there is none or the search failed.
+     */
+    public String findByDedupKey(String dedupKey, Instant since) {
+        try {
+            SearchRequest searchRequest = SearchRequest.of(s ->
+                    s.index(ES_LOG_INDEX)
+                            .query(q -> q.bool(b -> b
+                                    .filter(f -> f.term(t -> t.field("dedupKey").value(dedupKey)))
+                                    .filter(f -> f.range(ra -> ra.field("createdDate").gte(JsonData.of(since.toEpochMilli()))))))
+                            .size(1)
+                            .sort(so -> so.field(f -> f.field("createdDate").order(SortOrder.Desc)))
+                            .source(src -> src.fetch(false)));
+            List<Hit<Log>> hits = client.search(searchRequest, Log.class).hits().hits();
+            return hits.isEmpty() ? null : hits.get(0).id();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to find log entry with dedup key " + dedupKey, e);
+            return null;
+        }
+    }
+
     @Override
     public boolean existsById(String logId) {
         try {
@@ -187,7 +1064,7 @@ public class LogRepository implements CrudRepository<Log, String> {
             MgetResponse<Log> resp = client.mget(mgetRequest, Log.class);
             for (MultiGetResponseItem<Log> multiGetResponseItem : resp.docs()) {
                 if (!multiGetResponseItem.isFailure()) {
-                    foundLogs.add(multiGetResponseItem.result().source());
+                    foundLogs.add(hydrate(multiGetResponseItem.result().source()));
                 }
             }
             return foundLogs;
@@ -230,7 +1107,7 @@ public class LogRepository implements CrudRepository<Log, String> {
         SearchRequest searchRequest = logSearchUtil.buildSearchRequest(searchParameters);
         try {
             final SearchResponse<Log> searchResponse = client.search(searchRequest, Log.class);
-            List<Log> result = searchResponse.hits().hits().stream().map(Hit::source).collect(Collectors.toList());
+            List<Log> result = searchResponse.hits().hits().stream().map(hit -> hydrate(hit.source())).collect(Collectors.toList());
             SearchResult searchResult = new SearchResult();
             searchResult.setHitCount(searchResponse.hits().total().value());
             searchResult.setLogs(result);
@@ -5,21 +5,29 @@
  */
 package org.phoebus.olog;
 
+import co.elastic.clients.elasticsearch._types.Refresh;
 import org.apache.commons.collections4.CollectionUtils;
 import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.BulkItemResult;
 import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Log.LogBuilder;
 import org.phoebus.olog.entity.LogEntryGroupHelper;
+import org.phoebus.olog.entity.LogLabelUpdate;
+import org.phoebus.olog.entity.Logbook;
 import org.phoebus.olog.entity.Property;
 import org.phoebus.olog.entity.SearchResult;
 import org.phoebus.olog.entity.Tag;
+import org.phoebus.olog.entity.TaskStatus;
+import org.phoebus.olog.entity.Upload;
 import org.phoebus.olog.entity.preprocess.LogPropertyProvider;
 import org.phoebus.olog.entity.preprocess.MarkupCleaner;
 import org.phoebus.olog.notification.LogEntryNotifier;
 import org.phoebus.util.time.TimeParser;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
-import org.springframework.core.task.TaskExecutor;
+import org.springframework.http.CacheControl;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -27,35 +35,47 @@ import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.util.MultiValueMap;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.WebDataBinder;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.InitBinder;
+import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.time.Instant;
 import java.time.temporal.TemporalAmount;
 import java.time.temporal.TemporalUnit;
 import java.time.temporal.UnsupportedTemporalTypeException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -77,6 +97,8 @@ public class LogResource {
     LogRepository logRepository;
     @Autowired
     AttachmentRepository attachmentRepository;
+    @Autowired
+    LogIngestQueue logIngestQueue;
     @SuppressWarnings("unused")
     @Autowired
     private LogbookRepository logbookRepository;
@@ -88,22 +110,22 @@ public class LogResource {
     private List<MarkupCleaner> markupCleaners;
     @SuppressWarnings("unused")
     @Autowired
-    private List<LogEntryNotifier> logEntryNotifiers;
+    private LogEntryOutbox logEntryOutbox;
     @SuppressWarnings("unused")
     @Autowired
-    private TaskExecutor taskExecutor;
+    private IdempotencyStore idempotencyStore;
     @SuppressWarnings("unused")
     @Autowired
-    private String defaultMarkup;
-    @SuppressWarnings("unused")
+    private UploadRepository uploadRepository;
+
     @Autowired
-    private List<LogPropertyProvider> propertyProviders;
+    private LogDeduplicator logDeduplicator;
     @SuppressWarnings("unused")
     @Autowired
-    private ExecutorService executorService;
+    private String defaultMarkup;
     @SuppressWarnings("unused")
     @Autowired
-    private Long propertyProvidersTimeout;
+    private PropertyProviderService propertyProviderService;
 
     /**
      * Custom HTTP header that client may send in order to identify itself. This is logged for some of the
@@ -111,18 +133,67 @@ public class LogResource {
      */
     private static final String OLOG_CLIENT_INFO_HEADER = "X-Olog-Client-Info";
 
-    private final Object logGroupSyncObject = new Object();
+    /**
+     * Header with which clients identify a request creating a log entry or attachment, such that it is not
+     * run twice when retried.
+     */
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    /**
+     * Instance digest header (RFC 3230) used to verify streamed attachments.
+     */
+    private static final String DIGEST_HEADER = "Digest";
+    private static final String DIGEST_ALGORITHM = "sha-256";
+
+    /**
+     * Size limit of a streamed attachment, same as for multipart uploads.
+     */
+    @Value("${spring.servlet.multipart.max-file-size:50MB}")
+    private DataSize maxAttachmentSize;
+
+    /**
+     * Headers of resumable uploads, as defined by the tus protocol.
+     */
+    private static final String UPLOAD_LENGTH_HEADER = "Upload-Length";
+    private static final String UPLOAD_OFFSET_HEADER = "Upload-Offset";
+
+    /**
+     * Size limit of an attachment uploaded in chunks.
+     */
+    @Value("${attachment.upload.max.size:2GB}")
+    private DataSize maxUploadSize;
+
+    /**
+     * Number of times grouping or replying is attempted when log entries are modified concurrently.
+     */
+    private static final int MAX_GROUPING_ATTEMPTS = 5;
 
+    /**
+     * @param logId  The log id.
+     * @param render Optional, <code>html</code> to include the rendered HTML of the log entry.
+     * @return The log entry, with its version as ETag header, to be sent as <code>If-Match</code> header
+     * when the log entry is updated.
+     */
     @GetMapping("{logId}")
     @SuppressWarnings("unused")
-    public Log getLog(@PathVariable String logId) {
-        Optional<Log> foundLog = logRepository.findById(logId);
-        if (foundLog.isPresent()) {
-            return foundLog.get();
-        } else {
-            logger.log(Level.SEVERE, "Failed to find log: " + logId, new ResponseStatusException(HttpStatus.NOT_FOUND));
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to find log: " + logId);
-        }
+    public ResponseEntity<Log> getLog(@PathVariable String logId,
+                                      @RequestParam(value = "render", required = false) String render) {
+        VersionedLog foundLog = logRepository.findVersionedById(logId);
+        return ResponseEntity.ok().eTag(foundLog.getVersion().toETag()).body(render(render, foundLog.getLog()));
+    }
+
+    /**
+     * @param groupId The id of a log entry group, i.e. of a thread of replies.
+     * @param render  Optional, <code>html</code> to include the rendered HTML of the log entries.
+     * @return The log entries of the group, oldest first. Empty if there is no such group.
+     */
+    @GetMapping("/groups/{groupId}")
+    @SuppressWarnings("unused")
+    public List<Log> getLogGroup(@PathVariable String groupId,
+                                 @RequestParam(value = "render", required = false) String render) {
+        List<Log> logs = logRepository.findByGroupId(groupId);
+        logs.forEach(log -> render(render, log));
+        return logs;
     }
 
     @GetMapping("/attachments/{logId}/{attachmentName}")
@@ -225,48 +296,218 @@ public class LogResource {
      * @param log        A {@link Log} object to be persisted.
      * @param markup     Optional string identifying the wanted markup scheme.
      * @param inReplyTo  Optional log entry id specifying to which log entry the new log entry is a response.
+     * @param refresh    Optional refresh policy (<code>none</code>, <code>wait_for</code> or <code>true</code>)
+     *                   overriding <code>elasticsearch.log.refresh</code> for this request.
+     * @param idempotencyKey Optional key identifying the request. A retried request sending the same key
+     *                   returns the log entry created by the original request, see {@link IdempotencyStore}.
      * @param principal  The authenticated {@link Principal} of the request.
-     * @return The persisted {@link Log} object.
+     * @return The persisted {@link Log} object, or the existing log entry it has been merged into if its logbooks
+     * have a dedup window, see {@link LogDeduplicator}. If asynchronous ingest is enabled
+     * (<code>log.ingest.async.enabled</code>), HTTP status 202 and a <code>Location</code> header
+     * identifying the log entry once it has been indexed, or HTTP status 429 if the ingest queue is full.
+     * The <code>refresh</code> parameter does not apply to queued log entries.
      */
     @PutMapping()
-    public Log createLog(@RequestHeader(value = OLOG_CLIENT_INFO_HEADER, required = false, defaultValue = "n/a") String clientInfo,
+    public ResponseEntity<Log> createLog(@RequestHeader(value = OLOG_CLIENT_INFO_HEADER, required = false, defaultValue = "n/a") String clientInfo,
                          @RequestParam(value = "markup", required = false) String markup,
                          @RequestBody Log log,
                          @RequestParam(value = "inReplyTo", required = false, defaultValue = "-1") String inReplyTo,
+                         @RequestParam(value = "refresh", required = false) String refresh,
+                         @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
                          @AuthenticationPrincipal Principal principal) {
-        if(log.getLogbooks().isEmpty()){
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A log entry must specify at least one logbook");
-        }
-        if(log.getTitle().isEmpty()){
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A log entry must specify a title");
-        }
+        Refresh refreshPolicy = getRefreshPolicy(refresh);
+        return runIdempotent(idempotencyKey, principal, "PUT /logs",
+                () -> createLog(clientInfo, markup, log, inReplyTo, refreshPolicy, principal),
+                response -> response.getBody().getId(),
+                this::getCreatedLog);
+    }
+
+    private ResponseEntity<Log> createLog(String clientInfo, String markup, Log log, String inReplyTo, Refresh refreshPolicy, Principal principal) {
+        validateLog(log, getPersistedLogbookNames(), getPersistedTagNames());
         if (!inReplyTo.equals("-1")) {
             handleReply(inReplyTo, log);
         }
         log.setOwner(principal.getName());
-        Set<String> logbookNames = log.getLogbooks().stream().map(l -> l.getName()).collect(Collectors.toSet());
-        Set<String> persistedLogbookNames = new HashSet<>();
-        logbookRepository.findAll().forEach(l -> persistedLogbookNames.add(l.getName()));
-        if (!CollectionUtils.containsAll(persistedLogbookNames, logbookNames)) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "One or more invalid logbook name(s)");
-        }
-        Set<Tag> tags = log.getTags();
-        if (tags != null && !tags.isEmpty()) {
-            Set<String> tagNames = tags.stream().map(t -> t.getName()).collect(Collectors.toSet());
-            Set<String> persistedTags = new HashSet<>();
-            tagRepository.findAll().forEach(t -> persistedTags.add(t.getName()));
-            if (!CollectionUtils.containsAll(persistedTags, tagNames)) {
-                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "One or more invalid tag name(s)");
+        log = cleanMarkup(markup, log);
+        if (inReplyTo.equals("-1")) {
+            Log coalescedLogEntry = logDeduplicator.coalesce(log, refreshPolicy);
+            if (coalescedLogEntry != null) {
+                logger.log(Level.INFO, "Entry from " + clientInfo + " merged into entry id " + coalescedLogEntry.getId());
+                return ResponseEntity.ok(render(null, coalescedLogEntry));
             }
         }
-        log = cleanMarkup(markup, log);
         addPropertiesFromProviders(log);
-        Log newLogEntry = logRepository.save(log);
+        if (logIngestQueue.isEnabled()) {
+            Log queuedLogEntry = logRepository.prepare(log);
+            boolean queued = false;
+            try {
+                queued = logIngestQueue.offer(queuedLogEntry, this::sendToNotifiers);
+            } finally {
+                if (!queued) {
+                    // Not to be indexed, hence neither to be merged into nor to keep its attachments
+                    logRepository.deleteAttachments(queuedLogEntry);
+                }
+            }
+            if (!queued) {
+                throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Log entry queue is full, retry later");
+            }
+            logDeduplicator.created(queuedLogEntry);
+            logger.log(Level.INFO, "Entry id " + queuedLogEntry.getId() + " queued from " + clientInfo);
+            return ResponseEntity.accepted().location(logLocation(queuedLogEntry.getId())).body(withoutHtml(queuedLogEntry));
+        }
+        Log newLogEntry = logRepository.save(log, refreshPolicy);
+        logDeduplicator.created(newLogEntry);
         sendToNotifiers(newLogEntry);
 
         logger.log(Level.INFO, "Entry id " + newLogEntry.getId() + " created from " + clientInfo);
 
-        return newLogEntry;
+        return ResponseEntity.ok(withoutHtml(newLogEntry));
+    }
+
+    /**
+     * Creates a log entry together with its attachments in a single multipart request, saving the client from
+     * creating the log entry and then uploading the attachments with a second request. The attachments are
+     * stored concurrently and the log entry is indexed once, including the attachments.
+     * <p>
+     * A file part is matched by its file name against the attachments listed in the log entry, which may set
+     * the id and description of the attachment. Files not listed are added using the original file name and
+     * content type.
+     *
+     * @param clientInfo A string sent by client identifying it with respect to version and platform.
+     * @param markup     Optional string identifying the wanted markup scheme.
+     * @param log        The <code>logEntry</code> part, a {@link Log} object to be persisted.
+     * @param files      The <code>files</code> parts, i.e. the attachments.
+     * @param inReplyTo  Optional log entry id specifying to which log entry the new log entry is a response.
+     * @param refresh    Optional refresh policy (<code>none</code>, <code>wait_for</code> or <code>true</code>)
+     *                   overriding <code>elasticsearch.log.refresh</code> for this request.
+     * @param idempotencyKey Optional key identifying the request, see {@link IdempotencyStore}.
+     * @param principal  The authenticated {@link Principal} of the request.
+     * @return The persisted {@link Log} object, as for {@link #createLog(String, String, Log, String, String, String, Principal)}.
+     * HTTP status 400 if an attachment listed in the log entry has no matching file part.
+     */
+    @PutMapping(value = "/multipart", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<Log> createLogWithAttachments(@RequestHeader(value = OLOG_CLIENT_INFO_HEADER, required = false, defaultValue = "n/a") String clientInfo,
+                                                       @RequestParam(value = "markup", required = false) String markup,
+                                                       @RequestPart("logEntry") Log log,
+                                                       @RequestPart(value = "files", required = false) MultipartFile[] files,
+                                                       @RequestParam(value = "inReplyTo", required = false, defaultValue = "-1") String inReplyTo,
+                                                       @RequestParam(value = "refresh", required = false) String refresh,
+                                                       @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                                                       @AuthenticationPrincipal Principal principal) {
+        Refresh refreshPolicy = getRefreshPolicy(refresh);
+        log.setAttachments(bindAttachments(log.getAttachments(), files));
+        return runIdempotent(idempotencyKey, principal, "PUT /logs/multipart",
+                () -> createLog(clientInfo, markup, log, inReplyTo, refreshPolicy, principal),
+                response -> response.getBody().getId(),
+                this::getCreatedLog);
+    }
+
+    /**
+     * @param listedAttachments The attachments listed in a log entry, possibly <code>null</code>.
+     * @param files             The uploaded files, possibly <code>null</code>.
+     * @return An attachment holding the data for each file.
+     */
+    private static Set<Attachment> bindAttachments(Set<Attachment> listedAttachments, MultipartFile[] files) {
+        Map<String, Attachment> attachmentsByName = new HashMap<>();
+        if (listedAttachments != null) {
+            for (Attachment attachment : listedAttachments) {
+                if (attachment.getFilename() == null || attachmentsByName.put(attachment.getFilename(), attachment) != null) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Attachments of the log entry must have unique file names");
+                }
+            }
+        }
+        Set<Attachment> attachments = new HashSet<>();
+        if (files != null) {
+            for (MultipartFile file : files) {
+                Attachment attachment = attachmentsByName.remove(file.getOriginalFilename());
+                if (attachment == null) {
+                    attachment = new Attachment(file, file.getOriginalFilename(), file.getContentType());
+                } else {
+                    attachment.setAttachment(file);
+                    if (attachment.getFileMetadataDescription() == null || attachment.getFileMetadataDescription().isEmpty()) {
+                        attachment.setFileMetadataDescription(file.getContentType());
+                    }
+                }
+                attachments.add(attachment);
+            }
+        }
+        if (!attachmentsByName.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No file part for attachments " + attachmentsByName.keySet());
+        }
+        return attachments;
+    }
+
+    /**
+     * Creates several log entries in one request. Each log entry is validated, merged into an identical one and
+     * journaled as in {@link #createLog(String, String, Log, String, String, String, Principal)}, but an invalid
+     * log entry does not fail the whole request. The other log entries are persisted with a single bulk request.
+     * Unlike a single log entry, they are indexed by the request even if asynchronous ingest is enabled, and
+     * replies (<code>inReplyTo</code>) and the <code>Idempotency-Key</code> header are not supported. Identical
+     * log entries of the same request are not merged into each other.
+     *
+     * @param clientInfo A string sent by client identifying it with respect to version and platform.
+     * @param markup     Optional string identifying the wanted markup scheme.
+     * @param logs       The {@link Log} objects to be persisted.
+     * @param refresh    Optional refresh policy (<code>none</code>, <code>wait_for</code> or <code>true</code>)
+     *                   overriding <code>elasticsearch.log.refresh</code> for this request.
+     * @param principal  The authenticated {@link Principal} of the request.
+     * @return A {@link BulkItemResult} per log entry, in the order of the request. The status is
+     * 201 for created log entries, 200 for log entries merged into an existing one, which is returned,
+     * 400 for invalid ones, or the status reported by Elasticsearch if indexing failed.
+     */
+    @PutMapping("/bulk")
+    public List<BulkItemResult> createLogs(@RequestHeader(value = OLOG_CLIENT_INFO_HEADER, required = false, defaultValue = "n/a") String clientInfo,
+                                           @RequestParam(value = "markup", required = false) String markup,
+                                           @RequestBody List<Log> logs,
+                                           @RequestParam(value = "refresh", required = false) String refresh,
+                                           @AuthenticationPrincipal Principal principal) {
+        Refresh refreshPolicy = getRefreshPolicy(refresh);
+        if (logs == null || logs.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At least one log entry must be specified");
+        }
+        Set<String> persistedLogbookNames = getPersistedLogbookNames();
+        Set<String> persistedTagNames = getPersistedTagNames();
+
+        BulkItemResult[] results = new BulkItemResult[logs.size()];
+        List<Integer> validIndices = new ArrayList<>();
+        List<Log> validLogs = new ArrayList<>();
+        int merged = 0;
+        for (int i = 0; i < logs.size(); i++) {
+            Log log = logs.get(i);
+            try {
+                validateLog(log, persistedLogbookNames, persistedTagNames);
+            } catch (ResponseStatusException e) {
+                results[i] = new BulkItemResult(e.getStatus().value(), null, e.getReason());
+                continue;
+            }
+            log.setOwner(principal.getName());
+            log = cleanMarkup(markup, log);
+            Log coalescedLogEntry = logDeduplicator.coalesce(log, refreshPolicy);
+            if (coalescedLogEntry != null) {
+                results[i] = new BulkItemResult(HttpStatus.OK.value(), render(null, coalescedLogEntry), null);
+                merged++;
+                continue;
+            }
+            addPropertiesFromProviders(log);
+            validIndices.add(i);
+            validLogs.add(log);
+        }
+
+        List<BulkItemResult> savedResults = logRepository.saveAll(validLogs, refreshPolicy);
+        for (int i = 0; i < savedResults.size(); i++) {
+            BulkItemResult result = savedResults.get(i);
+            if (result.getLog() != null) {
+                logDeduplicator.created(result.getLog());
+                sendToNotifiers(result.getLog());
+                result = new BulkItemResult(result.getStatus(), withoutHtml(result.getLog()), null);
+            }
+            results[validIndices.get(i)] = result;
+        }
+
+        logger.log(Level.INFO, savedResults.stream().filter(r -> r.getLog() != null).count() + " of " + logs.size()
+                + " entries created in bulk from " + clientInfo + ", " + merged + " merged");
+
+        return Arrays.asList(results);
     }
 
     @PostMapping("/attachments/{logId}")
@@ -274,25 +515,249 @@ public class LogResource {
                                 @RequestPart("file") MultipartFile file,
                                 @RequestPart("filename") String filename,
                                 @RequestPart(value = "id", required = false) String id,
-                                @RequestPart(value = "fileMetadataDescription", required = false) String fileMetadataDescription) {
-        Optional<Log> foundLog = logRepository.findById(logId);
-        if (logRepository.findById(logId).isPresent()) {
-            filename = filename == null || filename.isEmpty() ? file.getName() : filename;
-            fileMetadataDescription = fileMetadataDescription == null || fileMetadataDescription.isEmpty()
-                    ? file.getContentType()
-                    : fileMetadataDescription;
-            Attachment attachment = new Attachment(id, file, filename, fileMetadataDescription);
-            // Store the attachment
-            Attachment createdAttachement = attachmentRepository.save(attachment);
-            // Update the log entry with the id of the stored attachment
-            Log log = foundLog.get();
-            Set<Attachment> existingAttachments = log.getAttachments();
-            existingAttachments.add(createdAttachement);
-            log.setAttachments(existingAttachments);
-            return logRepository.update(log);
-        } else {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: " + logId);
+                                @RequestPart(value = "fileMetadataDescription", required = false) String fileMetadataDescription,
+                                @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                                @AuthenticationPrincipal Principal principal) {
+        String attachmentName = filename == null || filename.isEmpty() ? file.getName() : filename;
+        String description = fileMetadataDescription == null || fileMetadataDescription.isEmpty()
+                ? file.getContentType()
+                : fileMetadataDescription;
+        Attachment attachment = new Attachment(id, file, attachmentName, description);
+        // Store the attachment and add it to the log entry, which responds 404 if the log entry does not exist
+        return runIdempotent(idempotencyKey, principal, "POST /logs/attachments/" + logId,
+                () -> render(null, logRepository.addAttachments(logId, List.of(attachment), null)),
+                Log::getId,
+                originalLogId -> render(null, logRepository.findVersionedById(originalLogId).getLog()));
+    }
+
+    /**
+     * Adds an attachment to a log entry, reading the attachment from the request body as it is sent. Unlike
+     * {@link #uploadAttachment(String, MultipartFile, String, String, String, String, Principal)} the attachment is neither
+     * buffered in memory nor in a temporary file, as it is written to the attachment store while it is received.
+     * <p>
+     * The SHA-256 digest of the attachment is returned in a <code>Digest</code> response header. If the client
+     * sends a <code>Digest</code> request header with a SHA-256 digest, the attachment is verified against it.
+     *
+     * @param logId                   The log id of the entry to which the attachment is added.
+     * @param filename                The name of the attachment.
+     * @param id                      Optional unique id of the attachment.
+     * @param fileMetadataDescription Optional description of the attachment, defaults to the content type of the request.
+     * @param contentType             The content type of the request, which must not be multipart.
+     * @param digestHeader            Optional digest of the attachment, e.g. <code>sha-256=X48E9qOokqqrvdts8nOJRJN3OWDUoyWxBf7kbu9DBPE=</code>
+     * @param idempotencyKey          Optional key identifying the request, see {@link IdempotencyStore}.
+     * @param principal               The authenticated {@link Principal} of the request.
+     * @param inputStream             The request body.
+     * @return The updated log entry. HTTP status 404 if the log entry does not exist, 400 if the digest does
+     * not match, or 413 if the attachment exceeds <code>spring.servlet.multipart.max-file-size</code>.
+     */
+    @PostMapping("/attachments/{logId}/stream")
+    public ResponseEntity<Log> streamAttachment(@PathVariable String logId,
+                                                @RequestParam String filename,
+                                                @RequestParam(required = false) String id,
+                                                @RequestParam(required = false) String fileMetadataDescription,
+                                                @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType,
+                                                @RequestHeader(value = DIGEST_HEADER, required = false) String digestHeader,
+                                                @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                                                @AuthenticationPrincipal Principal principal,
+                                                InputStream inputStream) {
+        return runIdempotent(idempotencyKey, principal, "POST /logs/attachments/" + logId,
+                () -> streamAttachment(logId, filename, id, fileMetadataDescription, contentType, digestHeader, inputStream,
+                        maxAttachmentSize.toBytes()),
+                response -> response.getBody().getId(),
+                originalLogId -> getLog(originalLogId, null));
+    }
+
+    private ResponseEntity<Log> streamAttachment(String logId, String filename, String id, String fileMetadataDescription,
+                                                 String contentType, String digestHeader, InputStream inputStream, long maxSize) {
+        if (contentType != null && contentType.toLowerCase().startsWith("multipart/")) {
+            throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "Multipart content not supported, use /attachments/" + logId);
+        }
+        String expectedDigest = getDigest(digestHeader);
+        if ((fileMetadataDescription == null || fileMetadataDescription.isEmpty()) && contentType != null) {
+            // Without parameters like charset
+            MediaType mediaType = MediaType.parseMediaType(contentType);
+            fileMetadataDescription = new MediaType(mediaType.getType(), mediaType.getSubtype()).toString();
+        }
+        Attachment attachment = new Attachment(id, null, filename, fileMetadataDescription);
+        String digest;
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            attachment = attachmentRepository.save(attachment, inputStream, maxSize, messageDigest);
+            digest = Base64.getEncoder().encodeToString(messageDigest.digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            logger.log(Level.WARNING, String.format("Unable to persist attachment %s for log id %s", filename, logId), e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to persist attachment " + filename);
+        }
+        if (expectedDigest != null && !expectedDigest.equals(digest)) {
+            attachmentRepository.deleteById(attachment.getId());
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Digest mismatch for attachment " + filename);
+        }
+        Log log;
+        try {
+            log = logRepository.appendAttachments(logId, List.of(attachment), null);
+        } catch (ResponseStatusException e) {
+            attachmentRepository.deleteById(attachment.getId());
+            throw e;
+        }
+        return ResponseEntity.ok()
+                .header(DIGEST_HEADER, DIGEST_ALGORITHM + "=" + digest)
+                .body(render(null, log));
+    }
+
+    /**
+     * @param digestHeader A <code>Digest</code> header value, possibly listing several algorithms.
+     * @return The base64 encoded SHA-256 digest, or <code>null</code> if none is included.
+     */
+    private static String getDigest(String digestHeader) {
+        if (digestHeader == null) {
+            return null;
+        }
+        for (String digest : digestHeader.split(",")) {
+            String[] algorithmAndValue = digest.strip().split("=", 2);
+            if (algorithmAndValue.length == 2 && algorithmAndValue[0].equalsIgnoreCase(DIGEST_ALGORITHM)) {
+                return algorithmAndValue[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a resumable upload of an attachment, to be sent in chunks with
+     * {@link #appendUpload(String, long, String, InputStream)} and then added to a log entry with
+     * {@link #completeUpload(String, String, String, String, String, Principal)}. Unlike other uploads, a
+     * transfer that fails is resumed from the last byte received rather than started over.
+     *
+     * @param filename                The name of the attachment.
+     * @param fileMetadataDescription Optional description of the attachment, e.g. its content type.
+     * @param length                  The size of the attachment in bytes, sent as <code>Upload-Length</code> header.
+     * @return HTTP status 201 with the URI of the upload as <code>Location</code> header. HTTP status 413 if
+     * the length exceeds <code>attachment.upload.max.size</code>.
+     */
+    @PostMapping("/uploads")
+    public ResponseEntity<Void> createUpload(@RequestParam String filename,
+                                             @RequestParam(required = false) String fileMetadataDescription,
+                                             @RequestHeader(UPLOAD_LENGTH_HEADER) long length) {
+        if (length < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid upload length " + length);
+        }
+        if (length > maxUploadSize.toBytes()) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "Attachment " + filename + " exceeds " + maxUploadSize.toBytes() + " bytes");
+        }
+        Upload upload = uploadRepository.create(filename, fileMetadataDescription, length);
+        URI location = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/" + LOG_RESOURCE_URI + "/uploads/{uploadId}").buildAndExpand(upload.getId()).toUri();
+        return ResponseEntity.created(location)
+                .header(UPLOAD_OFFSET_HEADER, "0")
+                .build();
+    }
+
+    /**
+     * @param uploadId The upload id.
+     * @return The number of bytes received so far and the length of the upload as <code>Upload-Offset</code>
+     * and <code>Upload-Length</code> headers, or HTTP status 404 if there is no such upload.
+     */
+    @RequestMapping(value = "/uploads/{uploadId}", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> getUploadOffset(@PathVariable String uploadId) {
+        Upload upload = findUpload(uploadId);
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .header(UPLOAD_OFFSET_HEADER, String.valueOf(upload.getOffset()))
+                .header(UPLOAD_LENGTH_HEADER, String.valueOf(upload.getLength()))
+                .build();
+    }
+
+    /**
+     * Receives a chunk of an upload. If the transfer fails, the client asks for the number of bytes received
+     * with {@link #getUploadOffset(String)} and sends the rest from there.
+     *
+     * @param uploadId    The upload id.
+     * @param offset      The offset of the chunk, sent as <code>Upload-Offset</code> header.
+     * @param contentType The content type of the request, which must not be multipart.
+     * @param inputStream The request body.
+     * @return HTTP status 204 with the number of bytes received as <code>Upload-Offset</code> header. HTTP status
+     * 404 if there is no such upload, 409 if the offset is not the number of bytes received, or 413 if the chunk
+     * exceeds the length of the upload.
+     */
+    @PatchMapping("/uploads/{uploadId}")
+    public ResponseEntity<Void> appendUpload(@PathVariable String uploadId,
+                                             @RequestHeader(UPLOAD_OFFSET_HEADER) long offset,
+                                             @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType,
+                                             InputStream inputStream) {
+        if (contentType != null && contentType.toLowerCase().startsWith("multipart/")) {
+            throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "Multipart content not supported");
+        }
+        long newOffset;
+        try {
+            newOffset = uploadRepository.append(uploadId, offset, inputStream);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to receive chunk of upload " + uploadId, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to receive chunk of upload " + uploadId);
         }
+        return ResponseEntity.noContent()
+                .header(UPLOAD_OFFSET_HEADER, String.valueOf(newOffset))
+                .build();
+    }
+
+    /**
+     * Deletes an upload, e.g. one that is not to be completed.
+     *
+     * @param uploadId The upload id.
+     * @return HTTP status 204, or 404 if there is no such upload.
+     */
+    @DeleteMapping("/uploads/{uploadId}")
+    public ResponseEntity<Void> deleteUpload(@PathVariable String uploadId) {
+        findUpload(uploadId);
+        uploadRepository.deleteById(uploadId);
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Adds a completely received upload to a log entry as attachment, which then deletes the upload.
+     * The SHA-256 digest of the attachment is handled as by
+     * {@link #streamAttachment(String, String, String, String, String, String, String, Principal, InputStream)}.
+     *
+     * @param logId          The log id of the entry to which the attachment is added.
+     * @param uploadId       The upload id.
+     * @param id             Optional unique id of the attachment.
+     * @param digestHeader   Optional digest of the attachment.
+     * @param idempotencyKey Optional key identifying the request, see {@link IdempotencyStore}.
+     * @param principal      The authenticated {@link Principal} of the request.
+     * @return The updated log entry. HTTP status 404 if the log entry or the upload does not exist, 409 if
+     * the upload is not complete, or 400 if the digest does not match.
+     */
+    @PostMapping("/attachments/{logId}/uploads/{uploadId}")
+    public ResponseEntity<Log> completeUpload(@PathVariable String logId,
+                                              @PathVariable String uploadId,
+                                              @RequestParam(required = false) String id,
+                                              @RequestHeader(value = DIGEST_HEADER, required = false) String digestHeader,
+                                              @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                                              @AuthenticationPrincipal Principal principal) {
+        return runIdempotent(idempotencyKey, principal, "POST /logs/attachments/" + logId + "/uploads/" + uploadId,
+                () -> {
+                    Upload upload = findUpload(uploadId);
+                    if (!upload.isComplete()) {
+                        throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload " + uploadId + " has received "
+                                + upload.getOffset() + " of " + upload.getLength() + " bytes");
+                    }
+                    ResponseEntity<Log> response;
+                    try (InputStream inputStream = uploadRepository.openStream(upload)) {
+                        response = streamAttachment(logId, upload.getFilename(), id, upload.getFileMetadataDescription(),
+                                null, digestHeader, inputStream, upload.getLength());
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Failed to close upload " + uploadId, e);
+                        throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to read upload " + uploadId);
+                    }
+                    uploadRepository.deleteById(uploadId);
+                    return response;
+                },
+                response -> response.getBody().getId(),
+                originalLogId -> getLog(originalLogId, null));
+    }
+
+    private Upload findUpload(String uploadId) {
+        return uploadRepository.findById(uploadId).orElseThrow(() ->
+                new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload " + uploadId + " not found"));
     }
 
     /**
@@ -305,133 +770,357 @@ public class LogResource {
      *     <li>Events</li>
      * </ul>
      * Notifiers - if such have been registered - are not called.
+     * <p>
+     * If the client sends the ETag of the log entry, as returned by {@link #getLog(String, String)} or a previous update,
+     * as <code>If-Match</code> header, the update fails with HTTP status 409 (conflict) if the log entry has been
+     * updated by someone else in the meantime. Without the header, the update is made regardless.
      *
      * @param logId  The log id of the entry subject to update. It must exist, i.e. it is not created of not found.
      * @param markup Markup strategy, if any.
+     * @param refresh Optional refresh policy (<code>none</code>, <code>wait_for</code> or <code>true</code>)
+     *                overriding <code>elasticsearch.log.refresh</code> for this request.
+     * @param ifMatch Optional ETag of the version of the log entry the update is based on.
      * @param log    The log record data as sent by client.
-     * @return The updated log record, or HTTP status 404 if the log record does not exist. If the path
-     * variable does not match the id in the log record, HTTP status 400 (bad request) is returned.
+     * @return The updated log record with its new version as ETag header, or HTTP status 404 if the log record
+     * does not exist. If the path variable does not match the id in the log record, or if the
+     * <code>If-Match</code> header is not a valid ETag, HTTP status 400 (bad request) is returned.
      */
     @SuppressWarnings("unused")
     @PostMapping("/{logId}")
-    public Log updateLog(@PathVariable String logId,
-                         @RequestParam(value = "markup", required = false) String markup,
-                         @RequestBody Log log) {
-
-        Optional<Log> foundLog = logRepository.findById(logId);
-        if (foundLog.isPresent()) {
-            Log persistedLog = foundLog.get();
-            // In case a client sends a log record where the id does not match the path variable, return HTTP 400 (bad request)
-            if (!logId.equals(Long.toString(log.getId()))) {
-                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Log entry id does not match path variable");
-            }
-            persistedLog.setLevel(log.getLevel());
-            persistedLog.setProperties(log.getProperties());
-            persistedLog.setModifyDate(Instant.now());
-            persistedLog.setDescription(log.getDescription());   // to make it work with old clients where description field is sent instead of source
-            persistedLog.setSource(log.getSource());
-            persistedLog.setTags(log.getTags());
-            persistedLog.setLogbooks(log.getLogbooks());
-            persistedLog.setTitle(log.getTitle());
-            persistedLog = cleanMarkup(markup, persistedLog);
+    public ResponseEntity<Log> updateLog(@PathVariable String logId,
+                                         @RequestParam(value = "markup", required = false) String markup,
+                                         @RequestParam(value = "refresh", required = false) String refresh,
+                                         @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+                                         @RequestBody Log log) {
+        Refresh refreshPolicy = getRefreshPolicy(refresh);
 
-            Log newLogEntry = logRepository.update(persistedLog);
-            return newLogEntry;
-        } else {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: " + logId);
+        // In case a client sends a log record where the id does not match the path variable, return HTTP 400 (bad request)
+        if (!logId.equals(Long.toString(log.getId()))) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Log entry id does not match path variable");
         }
+        VersionedLog.Version version = null;
+        if (ifMatch != null && !ifMatch.strip().equals("*")) {
+            try {
+                version = VersionedLog.Version.parseETag(ifMatch);
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+            }
+        }
+        log.setModifyDate(Instant.now());
+        // Only the fields a client may change are written, see LogRepository#updatePartially
+        log = cleanMarkup(markup, log);
+
+        VersionedLog updatedLog = logRepository.updatePartially(logId, log, version, refreshPolicy);
+        return ResponseEntity.ok().eTag(updatedLog.getVersion().toETag()).body(updatedLog.getLog());
     }
 
 
     /**
      * Endpoint supporting upload of multiple files, i.e. saving the client from sending one POST request per file.
-     * Calls {@link #uploadAttachment(String, MultipartFile, String, String, String)} internally, using the original file's
-     * name and content type.
+     * The files are stored concurrently, using the original file's name and content type, and then added to the
+     * log entry with a single update.
      *
      * @param logId A (numerical) id of a {@link Log}
      * @param files The files subject to upload.
+     * @param idempotencyKey Optional key identifying the request, see {@link IdempotencyStore}.
+     * @param principal The authenticated {@link Principal} of the request.
      * @return The persisted {@link Log} object.
      */
     @SuppressWarnings("unused")
     @PostMapping(value = "/attachments-multi/{logId}", consumes = "multipart/form-data")
     public Log uploadMultipleAttachments(@PathVariable String logId,
-                                         @RequestPart("file") MultipartFile[] files) {
-        if (logRepository.findById(logId).isPresent()) {
-            for (MultipartFile file : files) {
-                uploadAttachment(logId, file, file.getOriginalFilename(), file.getName(), file.getContentType());
+                                         @RequestPart("file") MultipartFile[] files,
+                                         @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                                         @AuthenticationPrincipal Principal principal) {
+        List<Attachment> attachments = new ArrayList<>();
+        for (MultipartFile file : files) {
+            attachments.add(new Attachment(file, file.getOriginalFilename(), file.getContentType()));
+        }
+        // All files are stored concurrently, then added to the log entry in one update
+        return runIdempotent(idempotencyKey, principal, "POST /logs/attachments/" + logId,
+                () -> render(null, logRepository.addAttachments(logId, attachments, null)),
+                Log::getId,
+                originalLogId -> render(null, logRepository.findVersionedById(originalLogId).getLog()));
+    }
+
+    /**
+     * Adds tags and logbooks to, or removes them from, existing log entries without reading and re-indexing them
+     * one by one. The log entries are identified by the ids of the request body, by search parameters as for
+     * {@link #search(String, MultiValueMap)}, or both. The update runs in the background, throttled, and its
+     * progress is reported by {@link #getTaskStatus(String)}. Log entries that would be left without logbook
+     * are not updated.
+     *
+     * @param labelUpdate      The ids of the log entries and the names of the tags and logbooks to add or remove.
+     * @param searchParameters Optional search parameters selecting the log entries.
+     * @return HTTP status 202 and the status of the started task, with a <code>Location</code> header identifying
+     * the task. HTTP status 400 if no log entries are selected, no change is requested, or a tag or logbook to add
+     * does not exist.
+     */
+    @PostMapping("/labels")
+    public ResponseEntity<TaskStatus> updateLabels(@RequestBody LogLabelUpdate labelUpdate,
+                                                   @RequestParam MultiValueMap<String, String> searchParameters) {
+        List<Long> ids = labelUpdate.getIds() == null ? List.of() : labelUpdate.getIds();
+        if (ids.isEmpty() && searchParameters.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Log entry ids or search parameters must be specified");
+        }
+        List<String> addTags = labelUpdate.getAddTags() == null ? List.of() : labelUpdate.getAddTags();
+        List<String> removeTags = labelUpdate.getRemoveTags() == null ? List.of() : labelUpdate.getRemoveTags();
+        List<String> addLogbooks = labelUpdate.getAddLogbooks() == null ? List.of() : labelUpdate.getAddLogbooks();
+        List<String> removeLogbooks = labelUpdate.getRemoveLogbooks() == null ? List.of() : labelUpdate.getRemoveLogbooks();
+        if (addTags.isEmpty() && removeTags.isEmpty() && addLogbooks.isEmpty() && removeLogbooks.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No tags or logbooks to add or remove");
+        }
+        Set<String> tags = new HashSet<>();
+        tagRepository.findAll().forEach(t -> tags.add(t.getName()));
+        Set<String> logbooks = new HashSet<>();
+        logbookRepository.findAll().forEach(l -> logbooks.add(l.getName()));
+        for (String name : addTags) {
+            if (!tags.contains(name)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Tag " + name + " does not exist");
+            }
+        }
+        for (String name : addLogbooks) {
+            if (!logbooks.contains(name)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Logbook " + name + " does not exist");
             }
-            return logRepository.findById(logId).get();
-        } else {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: " + logId);
         }
+        TaskStatus taskStatus = logRepository.startLabelUpdate(ids, searchParameters, addTags, removeTags, addLogbooks, removeLogbooks);
+        URI location = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/" + LOG_RESOURCE_URI + "/tasks/{taskId}").buildAndExpand(taskStatus.getTaskId()).toUri();
+        return ResponseEntity.accepted().location(location).body(taskStatus);
     }
 
+    /**
+     * @param taskId The id of a task started by {@link #updateLabels(LogLabelUpdate, MultiValueMap)}.
+     * @return The progress of the task, or HTTP status 404 if there is no such task.
+     */
+    @GetMapping("/tasks/{taskId}")
+    public TaskStatus getTaskStatus(@PathVariable String taskId) {
+        return logRepository.getTaskStatus(taskId);
+    }
+
+    /**
+     * Runs a request creating or modifying a log entry at most once per idempotency key. If the key has been
+     * sent with a request that completed, the response to that request is recreated from the current state of
+     * the log entry instead.
+     *
+     * @param idempotencyKey The key sent by the client, or <code>null</code>.
+     * @param principal      The authenticated {@link Principal} of the request.
+     * @param request        Identifies the request, as a key may not be reused for another request.
+     * @param action         Runs the request.
+     * @param logIdOf        Gets the id of the log entry from the response.
+     * @param replay         Recreates the response from the id of the log entry.
+     * @return The response.
+     */
+    private <T> T runIdempotent(String idempotencyKey, Principal principal, String request,
+                                Supplier<T> action, Function<T, Long> logIdOf, Function<String, T> replay) {
+        if (idempotencyKey == null || idempotencyKey.isBlank()) {
+            return action.get();
+        }
+        String owner = principal != null ? principal.getName() : "";
+        String originalLogId = idempotencyStore.claim(idempotencyKey, owner, request);
+        if (originalLogId != null) {
+            logger.log(Level.INFO, "Request " + request + " with idempotency key " + idempotencyKey + " already completed for log entry " + originalLogId);
+            return replay.apply(originalLogId);
+        }
+        T response;
+        try {
+            response = action.get();
+        } catch (RuntimeException e) {
+            idempotencyStore.release(idempotencyKey, owner);
+            throw e;
+        }
+        idempotencyStore.complete(idempotencyKey, owner, String.valueOf(logIdOf.apply(response)));
+        return response;
+    }
+
+    /**
+     * @param logId The id of a log entry created by a request sent with an idempotency key.
+     * @return The response to the original request. HTTP status 202 if the log entry is still queued for indexing.
+     */
+    private ResponseEntity<Log> getCreatedLog(String logId) {
+        try {
+            return getLog(logId, null);
+        } catch (ResponseStatusException e) {
+            if (!logIngestQueue.isEnabled() || e.getStatus() != HttpStatus.NOT_FOUND) {
+                throw e;
+            }
+            return ResponseEntity.accepted().location(logLocation(logId)).build();
+        }
+    }
+
+    /**
+     * @param logId The id of a log entry.
+     * @return The URI of the log entry, <code>/logs/{logId}</code>, whichever endpoint created it.
+     */
+    private static URI logLocation(Object logId) {
+        return ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/" + LOG_RESOURCE_URI + "/{logId}").buildAndExpand(logId).toUri();
+    }
+
+    /**
+     * Adds the specified log entries to the same log entry group. If some of them are already contained in a
+     * group, the others are added to it. The log entries are read with a single request and updated with a
+     * single bulk request. A log entry modified concurrently fails the update of that entry, in which case the
+     * grouping is attempted again.
+     * <p>
+     * Responds with HTTP status 400 if a log entry does not exist or if two or more are contained in different
+     * groups, and 409 if the log entries keep being modified concurrently.
+     *
+     * @param logEntryIds The ids of the log entries to group.
+     */
     @SuppressWarnings("unused")
     @PostMapping(value = "/group")
     public void groupLogEntries(@RequestBody List<Long> logEntryIds) {
         logger.log(Level.INFO, "Grouping log entries: " + logEntryIds.stream().map(id -> Long.toString(id)).collect(Collectors.joining(",")));
+        List<String> ids = logEntryIds.stream().map(id -> Long.toString(id)).collect(Collectors.toList());
+        for (int attempt = 0; attempt < MAX_GROUPING_ATTEMPTS; attempt++) {
+            if (tryGroupLogEntries(ids)) {
+                return;
+            }
+            logger.log(Level.INFO, "Log entries modified while grouping, retrying");
+        }
+        throw new ResponseStatusException(HttpStatus.CONFLICT, "Cannot group: log entries modified concurrently");
+    }
+
+    /**
+     * @param logEntryIds The ids of the log entries to group.
+     * @return <code>false</code> if a log entry has been modified since it was read, i.e. grouping must be attempted again.
+     */
+    private boolean tryGroupLogEntries(List<String> logEntryIds) {
+        List<VersionedLog> logs = logRepository.findVersionedByIds(logEntryIds);
         Property existingLogEntryGroupProperty = null;
-        List<Log> logs = new ArrayList<>();
         // Check prerequisites: if two (or more) log entries are already contained in a group, they must all be contained in
         // the same group. If not, throw exception.
-        synchronized (logGroupSyncObject) {
-            for (Long id : logEntryIds) {
-                Optional<Log> log = null;
-                try {
-                    log = logRepository.findById(Long.toString(id));
-                } catch (ResponseStatusException exception) {
-                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Log id " + id + " not found");
-                }
-                Property logEntryGroupProperty = LogEntryGroupHelper.getLogEntryGroupProperty(log.get());
-                if (logEntryGroupProperty != null && existingLogEntryGroupProperty != null &&
-                        !logEntryGroupProperty.getAttribute(LogEntryGroupHelper.ATTRIBUTE_ID).equals(existingLogEntryGroupProperty.getAttribute(LogEntryGroupHelper.ATTRIBUTE_ID))) {
-                    logger.log(Level.INFO, "Grouping not allowed due to conflicting log entry groups.");
-                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cannot group: at least two entries already contained in different groups");
-                }
-                if (logEntryGroupProperty != null) {
-                    existingLogEntryGroupProperty = logEntryGroupProperty;
-                }
-                logs.add(log.get());
+        for (int i = 0; i < logs.size(); i++) {
+            if (logs.get(i) == null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Log id " + logEntryIds.get(i) + " not found");
             }
-
-            final Property logEntryGroupProperty;
-            // If no existing log entry group was found, create a new.
-            if (existingLogEntryGroupProperty == null) {
-                logEntryGroupProperty = LogEntryGroupHelper.createNewLogEntryProperty();
-            } else {
-                logEntryGroupProperty = existingLogEntryGroupProperty;
+            Property logEntryGroupProperty = LogEntryGroupHelper.getLogEntryGroupProperty(logs.get(i).getLog());
+            if (logEntryGroupProperty != null && existingLogEntryGroupProperty != null &&
+                    !logEntryGroupProperty.getAttribute(LogEntryGroupHelper.ATTRIBUTE_ID).equals(existingLogEntryGroupProperty.getAttribute(LogEntryGroupHelper.ATTRIBUTE_ID))) {
+                logger.log(Level.INFO, "Grouping not allowed due to conflicting log entry groups.");
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cannot group: at least two entries already contained in different groups");
             }
+            if (logEntryGroupProperty != null) {
+                existingLogEntryGroupProperty = logEntryGroupProperty;
+            }
+        }
 
-            // Now update the log entries by adding the log group property. Except for those that already have it.
-            logs.forEach(log -> {
-                if (LogEntryGroupHelper.getLogEntryGroupProperty(log) == null) {
-                    log.getProperties().add(logEntryGroupProperty);
-                    logRepository.update(log);
-                }
-            });
+        // If no existing log entry group was found, create a new.
+        final Property logEntryGroupProperty = existingLogEntryGroupProperty != null
+                ? existingLogEntryGroupProperty
+                : LogEntryGroupHelper.createNewLogEntryProperty();
+
+        // Now update the log entries by adding the log group property. Except for those that already have it.
+        List<VersionedLog> ungroupedLogs = logs.stream()
+                .filter(log -> LogEntryGroupHelper.getLogEntryGroupProperty(log.getLog()) == null)
+                .collect(Collectors.toList());
+        ungroupedLogs.forEach(log -> log.getLog().getProperties().add(logEntryGroupProperty));
+        return updateGroupProperties(ungroupedLogs);
+    }
+
+    /**
+     * @param logs Log entries to which the log entry group property has been added.
+     * @return <code>false</code> if a log entry has been modified since it was read.
+     */
+    private boolean updateGroupProperties(List<VersionedLog> logs) {
+        boolean updated = true;
+        for (BulkItemResult result : logRepository.updateProperties(logs, null)) {
+            if (result.getStatus() == HttpStatus.CONFLICT.value()) {
+                updated = false;
+            } else if (result.getLog() == null) {
+                logger.log(Level.SEVERE, "Failed to update log entry group: " + result.getError());
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to update log entry group");
+            }
         }
+        return updated;
     }
 
     /**
      * {@link LogEntryNotifier} providers are called for the specified log entry. Since a provider
-     * implementation may need some time to do it's job, calling them is done asynchronously. Any
-     * error handling or logging has to be done in the {@link LogEntryNotifier}, but exceptions are
-     * handled here in order to not abort if any of the providers fails.
+     * implementation may need some time to do it's job, the log entry is added to the {@link LogEntryOutbox},
+     * from which it is delivered asynchronously.
      *
      * @param log
      */
     private void sendToNotifiers(Log log) {
-        if (logEntryNotifiers.isEmpty()) {
-            return;
+        logEntryOutbox.add(log);
+    }
+
+    /**
+     * @param refresh Refresh policy as specified by client, may be <code>null</code>.
+     * @return The {@link Refresh} policy, or <code>null</code> if client did not specify one.
+     * @throws ResponseStatusException (HTTP 400) if the policy is not supported.
+     */
+    private Refresh getRefreshPolicy(String refresh) {
+        if (refresh == null || refresh.isEmpty()) {
+            return null;
         }
-        taskExecutor.execute(() -> logEntryNotifiers.stream().forEach(n -> {
-            try {
-                n.notify(log);
-            } catch (Exception e) {
-                Logger.getLogger(LogResource.class.getName())
-                        .log(Level.WARNING, "LogEntryNotifier " + n.getClass().getName() + " throws exception", e);
+        try {
+            return LogRepository.parseRefreshPolicy(refresh);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    /**
+     * Checks that a new log entry specifies a title and at least one logbook, and that all logbooks and
+     * tags exist.
+     *
+     * @param log                   The log entry to validate.
+     * @param persistedLogbookNames Names of the existing logbooks.
+     * @param persistedTagNames     Names of the existing tags.
+     * @throws ResponseStatusException (HTTP 400) if the log entry is not valid.
+     */
+    private void validateLog(Log log, Set<String> persistedLogbookNames, Set<String> persistedTagNames) {
+        if (log.getLogbooks().isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A log entry must specify at least one logbook");
+        }
+        if (log.getTitle() == null || log.getTitle().isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A log entry must specify a title");
+        }
+        Set<String> logbookNames = log.getLogbooks().stream().map(l -> l.getName()).collect(Collectors.toSet());
+        if (!CollectionUtils.containsAll(persistedLogbookNames, logbookNames)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "One or more invalid logbook name(s)");
+        }
+        Set<Tag> tags = log.getTags();
+        if (tags != null && !tags.isEmpty()) {
+            Set<String> tagNames = tags.stream().map(t -> t.getName()).collect(Collectors.toSet());
+            if (!CollectionUtils.containsAll(persistedTagNames, tagNames)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "One or more invalid tag name(s)");
             }
-        }));
+        }
+    }
+
+    private Set<String> getPersistedLogbookNames() {
+        Set<String> persistedLogbookNames = new HashSet<>();
+        logbookRepository.findAll().forEach(l -> persistedLogbookNames.add(l.getName()));
+        return persistedLogbookNames;
+    }
+
+    private Set<String> getPersistedTagNames() {
+        Set<String> persistedTagNames = new HashSet<>();
+        tagRepository.findAll().forEach(t -> persistedTagNames.add(t.getName()));
+        return persistedTagNames;
+    }
+
+    /**
+     * Leaves out the rendered HTML of a log entry unless requested. Searches do not fetch it at all.
+     */
+    private Log render(String render, Log log) {
+        if (!LogSearchUtil.RENDER_HTML.equalsIgnoreCase(render)) {
+            log.setHtml(null);
+        }
+        return log;
+    }
+
+    /**
+     * @return A copy of a log entry still being written or notified, without the rendered HTML, such that the
+     * response to a request is the same as when it is replayed, see {@link #runIdempotent}.
+     */
+    private Log withoutHtml(Log log) {
+        return render(null, LogBuilder.createLog(log).build());
     }
 
     private Log cleanMarkup(String markup, Log log) {
@@ -455,28 +1144,10 @@ public class LogResource {
      */
     private void addPropertiesFromProviders(Log log) {
         List<String> propertyNames = log.getProperties().stream().map(Property::getName).collect(Collectors.toList());
-        List<CompletableFuture<Property>> completableFutures =
-                propertyProviders.stream()
-                        .map(propertyProvider -> CompletableFuture.supplyAsync(() -> propertyProvider.getProperty(log), executorService))
-                        .collect(Collectors.toList());
-
-        CompletableFuture<Void> allFutures =
-                CompletableFuture.allOf(completableFutures.toArray(new CompletableFuture[completableFutures.size()]));
-
-        try {
-            allFutures.get(propertyProvidersTimeout, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            Logger.getLogger(LogResource.class.getName())
-                    .log(Level.SEVERE, "A property provider failed to return in time or threw exception", e);
-        }
-        List<Property> providedProperties =
-                completableFutures.stream()
-                        .filter(future -> future.isDone() && !future.isCompletedExceptionally())
-                        .map(CompletableFuture::join)
-                        .collect(Collectors.toList());
+        List<Property> providedProperties = propertyProviderService.getProperties(log);
 
         providedProperties.forEach(property -> {
-            if (property != null && !propertyNames.contains(property.getName())) {
+            if (!propertyNames.contains(property.getName())) {
                 log.getProperties().add(property);
             }
         });
@@ -507,23 +1178,28 @@ public class LogResource {
      *                existing log entry. This will result in the client receiving a HTTP 400 status.
      */
     private void handleReply(String originalLogEntryId, Log log) {
-        try {
-            synchronized (logGroupSyncObject) {
-                Log originalLogEntry = logRepository.findById(originalLogEntryId).get();
-                // Check if the original entry already contains the log entry group property
-                Property logEntryGroupProperty = LogEntryGroupHelper.getLogEntryGroupProperty(originalLogEntry);
-                if (logEntryGroupProperty == null) {
-                    logEntryGroupProperty = LogEntryGroupHelper.createNewLogEntryProperty();
-                    originalLogEntry.getProperties().add(logEntryGroupProperty);
-                    // Update the original log entry
-                    logRepository.update(originalLogEntry);
+        for (int attempt = 0; attempt < MAX_GROUPING_ATTEMPTS; attempt++) {
+            VersionedLog originalLogEntry;
+            try {
+                originalLogEntry = logRepository.findVersionedById(originalLogEntryId);
+            } catch (ResponseStatusException exception) {
+                // Log entry not found, return HTTP 400
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cannot reply to log entry " + originalLogEntryId + " as it does not exist");
+            }
+            // Check if the original entry already contains the log entry group property
+            Property logEntryGroupProperty = LogEntryGroupHelper.getLogEntryGroupProperty(originalLogEntry.getLog());
+            if (logEntryGroupProperty == null) {
+                logEntryGroupProperty = LogEntryGroupHelper.createNewLogEntryProperty();
+                originalLogEntry.getLog().getProperties().add(logEntryGroupProperty);
+                // Update the original log entry, unless modified since it was read
+                if (!updateGroupProperties(List.of(originalLogEntry))) {
+                    continue;
                 }
-                // Add the log entry group property to the reply entry (i.e. the new entry)
-                log.getProperties().add(logEntryGroupProperty);
             }
-        } catch (ResponseStatusException exception) {
-            // Log entry not found, return HTTP 400
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cannot reply to log entry " + originalLogEntryId + " as it does not exist");
+            // Add the log entry group property to the reply entry (i.e. the new entry)
+            log.getProperties().add(logEntryGroupProperty);
+            return;
         }
+        throw new ResponseStatusException(HttpStatus.CONFLICT, "Cannot reply to log entry " + originalLogEntryId + " as it is being modified concurrently");
     }
 }
@@ -1,6 +1,7 @@
 package org.phoebus.olog;
 
 import co.elastic.clients.elasticsearch._types.FieldSort;
+import co.elastic.clients.elasticsearch._types.FieldValue;
 import co.elastic.clients.elasticsearch._types.SortOptions;
 import co.elastic.clients.elasticsearch._types.SortOrder;
 import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
@@ -10,11 +11,18 @@ import co.elastic.clients.elasticsearch._types.query_dsl.DisMaxQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.ExistsQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.FuzzyQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.MatchPhraseQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.MatchQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.NestedQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.Operator;
 import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import co.elastic.clients.elasticsearch._types.query_dsl.RangeQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.TermsQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.WildcardQuery;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.json.JsonData;
+import org.phoebus.olog.entity.Attribute;
+import org.phoebus.olog.entity.Log;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
@@ -30,6 +38,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A utility class for creating a search query for log entries based on time,
@@ -41,6 +51,16 @@ import java.util.Optional;
 public class LogSearchUtil {
 
     final private static String MILLI_PATTERN = "yyyy-MM-dd HH:mm:ss.SSS";
+    /**
+     * A property search comparing an attribute to a number or date, e.g. <code>Beam.current&gt;100</code>.
+     */
+    private static final Pattern PROPERTY_RANGE = Pattern.compile("([^.<>]+)\\.([^.<>=]+)(>=|<=|>|<)(.+)");
+
+    /**
+     * Value of the <code>render</code> parameter requesting the rendered HTML of the log entries.
+     */
+    public static final String RENDER_HTML = "html";
+
     final public static DateTimeFormatter MILLI_FORMAT = DateTimeFormatter.ofPattern(MILLI_PATTERN).withZone(ZoneId.systemDefault());
 
     @SuppressWarnings("unused")
@@ -55,6 +75,12 @@ public class LogSearchUtil {
     @Value("${elasticsearch.result.size.search.max:1000}")
     private int maxSearchSize;
 
+    /**
+     * Tells whether all log entries have <code>eventTimes</code>. Without it, they are assumed to have.
+     */
+    @Autowired(required = false)
+    private LogIndexBackfill logIndexBackfill;
+
     /**
      * @param searchParameters - the various search parameters
      * @return A {@link SearchRequest} based on the provided search parameters
@@ -66,6 +92,7 @@ public class LogSearchUtil {
         List<String> titleSearchTerms = new ArrayList<>();
         boolean temporalSearch = false;
         boolean includeEvents = false;
+        boolean renderHtml = false;
         ZonedDateTime start = ZonedDateTime.ofInstant(Instant.EPOCH, ZoneId.systemDefault());
         ZonedDateTime end = ZonedDateTime.now();
         List<String> levelSearchTerms = new ArrayList<>();
@@ -105,6 +132,16 @@ public class LogSearchUtil {
                     phraseQuery.queries(phraseQueries);
                     boolQueryBuilder.must(phraseQuery.build()._toQuery());
                     break;
+                case "attachmenttext":
+                    // Full text search of the text extracted from the attachments, see AttachmentTextExtractor
+                    DisMaxQuery.Builder attachmentTextQuery = new DisMaxQuery.Builder();
+                    List<Query> attachmentTextQueries = new ArrayList<>();
+                    for (String value : parameter.getValue()) {
+                        attachmentTextQueries.add(MatchQuery.of(m -> m.field("attachmentText").query(value.trim()).operator(Operator.And))._toQuery());
+                    }
+                    attachmentTextQuery.queries(attachmentTextQueries);
+                    boolQueryBuilder.must(attachmentTextQuery.build()._toQuery());
+                    break;
                 case "owner":
                     DisMaxQuery.Builder ownerQuery = new DisMaxQuery.Builder();
                     List<Query> ownerQueries = new ArrayList<>();
@@ -117,28 +154,8 @@ public class LogSearchUtil {
                     boolQueryBuilder.must(ownerQuery.build()._toQuery());
                     break;
                 case "tags":
-                    DisMaxQuery.Builder tagQuery = new DisMaxQuery.Builder();
-                    List<Query> tagsQueries = new ArrayList<>();
-                    for (String value : parameter.getValue()) {
-                        for (String pattern : value.split("[\\|,;]")) {
-                            tagsQueries.add(WildcardQuery.of(w -> w.field("tags.name").value(pattern.trim()))._toQuery());
-                        }
-                    }
-                    Query tagsQuery = tagQuery.queries(tagsQueries).build()._toQuery();
-                    NestedQuery nestedTagsQuery = NestedQuery.of(n -> n.path("tags").query(tagsQuery));
-                    boolQueryBuilder.must(nestedTagsQuery._toQuery());
-                    break;
                 case "logbooks":
-                    DisMaxQuery.Builder logbookQuery = new DisMaxQuery.Builder();
-                    List<Query> logbooksQueries = new ArrayList<>();
-                    for (String value : parameter.getValue()) {
-                        for (String pattern : value.split("[\\|,;]")) {
-                            logbooksQueries.add(WildcardQuery.of(w -> w.field("logbooks.name").value(pattern.trim()))._toQuery());
-                        }
-                    }
-                    Query logbooksQuery = logbookQuery.queries(logbooksQueries).build()._toQuery();
-                    NestedQuery nestedLogbooksQuery = NestedQuery.of(n -> n.path("logbooks").query(logbooksQuery).scoreMode(ChildScoreMode.None));
-                    boolQueryBuilder.must(nestedLogbooksQuery._toQuery());
+                    boolQueryBuilder.must(namesQuery(parameter.getKey(), parameter.getValue()));
                     break;
                 case "start":
                     // If there are multiple start times submitted select the earliest
@@ -160,16 +177,31 @@ public class LogSearchUtil {
                     temporalSearch = true;
                     end = latestEndTime;
                     break;
+                case "render":
+                    renderHtml = parameter.getValue().stream().anyMatch(RENDER_HTML::equalsIgnoreCase);
+                    break;
                 case "includeevents":
                 case "includeevent":
                     includeEvents = true;
                     break;
                 case "properties":
                     DisMaxQuery.Builder propertyQuery = new DisMaxQuery.Builder();
+                    List<FieldValue> propertyAttributes = new ArrayList<>();
                     for (String value : parameter.getValue()) {
                         for (String pattern : value.split("[\\|,;]")) {
+                            Query rangeQuery = propertyRangeQuery(pattern.trim());
+                            if (rangeQuery != null) {
+                                propertyQuery.queries(rangeQuery);
+                                continue;
+                            }
                             String[] propertySearchFields;
-                            propertySearchFields = Arrays.copyOf(pattern.split("\\."), 3);
+                            propertySearchFields = Arrays.copyOf(pattern.split("\\.", 3), 3);
+                            if (isExact(propertySearchFields)) {
+                                // Exact value, matched on the flattened attributes
+                                propertyAttributes.add(FieldValue.of(Log.flattenAttribute(propertySearchFields[0].trim(),
+                                        propertySearchFields[1].trim(), propertySearchFields[2].trim())));
+                                continue;
+                            }
                             BoolQuery.Builder bqb = new BoolQuery.Builder();
                             if (propertySearchFields[0] != null && !propertySearchFields[0].isEmpty()) {
                                 bqb.must(WildcardQuery.of(w -> w.field("properties.name").value(propertySearchFields[0].trim()))._toQuery());
@@ -186,6 +218,9 @@ public class LogSearchUtil {
                             propertyQuery.queries(q -> q.nested(NestedQuery.of(n -> n.path("properties").query(bqb.build()._toQuery()).scoreMode(ChildScoreMode.None))));
                         }
                     }
+                    if (!propertyAttributes.isEmpty()) {
+                        propertyQuery.queries(q -> q.terms(t -> t.field("propertyAttributes").terms(v -> v.value(propertyAttributes))));
+                    }
                     boolQueryBuilder.must(propertyQuery.build()._toQuery());
                     break;
                 case "level":
@@ -256,24 +291,21 @@ public class LogSearchUtil {
         if (temporalSearch) {
             // check that the start is before the end
             if (start.isBefore(end) || start.equals(end)) {
-                DisMaxQuery.Builder temporalQuery = new DisMaxQuery.Builder();
-                RangeQuery.Builder rangeQuery = new RangeQuery.Builder();
-                // Add a query based on the create time
-                rangeQuery.field("createdDate").from(Long.toString(1000 * start.toEpochSecond()))
-                        .to(Long.toString(1000 * end.toEpochSecond()));
-                if (includeEvents) {
-                    RangeQuery.Builder eventsRangeQuery = new RangeQuery.Builder();
-                    // Add a query based on the time of the associated events
-                    eventsRangeQuery.field("events.instant").from(Long.toString(1000 * start.toEpochSecond()))
-                            .to(Long.toString(1000 * end.toEpochSecond()));
-                    NestedQuery.Builder nestedQuery = new NestedQuery.Builder();
-                    nestedQuery.path("events").query(eventsRangeQuery.build()._toQuery());
-
-                    temporalQuery.queries(rangeQuery.build()._toQuery(), nestedQuery.build()._toQuery());
-                    boolQueryBuilder.must(temporalQuery.build()._toQuery());
-                } else {
-                    boolQueryBuilder.must(rangeQuery.build()._toQuery());
+                String startMillis = Long.toString(1000 * start.toEpochSecond());
+                String endMillis = Long.toString(1000 * end.toEpochSecond());
+                // Query the create time, or the create time and the times of the associated events,
+                // which are flattened to eventTimes
+                String field = includeEvents ? "eventTimes" : "createdDate";
+                Query rangeQuery = RangeQuery.of(r -> r.field(field).from(startMillis).to(endMillis))._toQuery();
+                if (includeEvents && logIndexBackfill != null && !logIndexBackfill.isEventTimesBackfilled()) {
+                    // Log entries indexed by an older version of the service lack eventTimes until backfilled
+                    Query createdQuery = RangeQuery.of(r -> r.field("createdDate").from(startMillis).to(endMillis))._toQuery();
+                    Query eventsQuery = NestedQuery.of(n -> n.path("events")
+                            .query(RangeQuery.of(r -> r.field("events.instant").from(startMillis).to(endMillis))._toQuery()))._toQuery();
+                    Query eventTimesQuery = rangeQuery;
+                    rangeQuery = DisMaxQuery.of(d -> d.queries(eventTimesQuery, createdQuery, eventsQuery))._toQuery();
                 }
+                boolQueryBuilder.must(rangeQuery);
             } else {
                 throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
                         "Failed to parse search parameters: " + searchParameters + ", CAUSE: Invalid start and end times");
@@ -333,15 +365,107 @@ public class LogSearchUtil {
 
         int _searchResultSize = searchResultSize;
         int _from = from;
+        boolean _renderHtml = renderHtml;
         FieldSort.Builder fb = new FieldSort.Builder();
         fb.field("createdDate");
         fb.order(sortOrder);
 
-        return SearchRequest.of(s -> s.index(ES_LOG_INDEX)
-                .query(boolQueryBuilder.build()._toQuery())
-                .timeout("60s")
-                .sort(SortOptions.of(so -> so.field(fb.build())))
-                .size(Math.min(_searchResultSize, maxSearchSize))
-                .from(_from));
+        return SearchRequest.of(s -> {
+            s.index(ES_LOG_INDEX)
+                    .query(boolQueryBuilder.build()._toQuery())
+                    .timeout("60s")
+                    .sort(SortOptions.of(so -> so.field(fb.build())))
+                    .size(Math.min(_searchResultSize, maxSearchSize))
+                    .from(_from);
+            // The attachment text is never returned, the rendered HTML only when requested
+            s.source(src -> src.filter(f -> _renderHtml ? f.excludes("attachmentText") : f.excludes("attachmentText", "html")));
+            return s;
+        });
+    }
+
+    /**
+     * Matches log entries referencing any of the given tag or logbook names. Exact names are matched by a single
+     * terms query on the keyword field, names containing wildcards by a wildcard query each.
+     *
+     * @param field  <code>tags</code> or <code>logbooks</code>
+     * @param values Search parameter values, each a list of names separated by <code>|</code>, <code>,</code>
+     *               or <code>;</code>.
+     * @return The query.
+     */
+    private static Query namesQuery(String field, List<String> values) {
+        List<FieldValue> names = new ArrayList<>();
+        List<Query> queries = new ArrayList<>();
+        for (String value : values) {
+            for (String pattern : value.split("[\\|,;]")) {
+                String name = pattern.trim();
+                if (name.contains("*") || name.contains("?")) {
+                    queries.add(WildcardQuery.of(w -> w.field(field).value(name))._toQuery());
+                } else {
+                    names.add(FieldValue.of(name));
+                }
+            }
+        }
+        if (!names.isEmpty()) {
+            queries.add(TermsQuery.of(t -> t.field(field).terms(v -> v.value(names)))._toQuery());
+        }
+        return DisMaxQuery.of(d -> d.queries(queries))._toQuery();
+    }
+
+    /**
+     * @param propertySearchFields Property name, attribute name and value of a property search.
+     * @return <code>true</code> if all three are given without wildcards.
+     */
+    private static boolean isExact(String[] propertySearchFields) {
+        for (String field : propertySearchFields) {
+            if (field == null || field.isBlank() || field.contains("*") || field.contains("?")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param pattern A property search pattern.
+     * @return A query for the attributes compared to a number or date by a pattern like
+     * <code>Beam.current&gt;100</code>, or <code>null</code> if the pattern is not a comparison.
+     */
+    private static Query propertyRangeQuery(String pattern) {
+        Matcher matcher = PROPERTY_RANGE.matcher(pattern);
+        if (!matcher.matches()) {
+            return null;
+        }
+        String bound = matcher.group(4).trim();
+        JsonData value;
+        String field;
+        if (Attribute.parseNumber(bound) != null) {
+            value = JsonData.of(Attribute.parseNumber(bound));
+            field = "properties.attributes.doubleValue";
+        } else if (Attribute.parseDate(bound) != null) {
+            value = JsonData.of(Attribute.parseDate(bound));
+            field = "properties.attributes.dateValue";
+        } else {
+            return null;
+        }
+        RangeQuery.Builder range = new RangeQuery.Builder().field(field);
+        switch (matcher.group(3)) {
+            case ">":
+                range.gt(value);
+                break;
+            case ">=":
+                range.gte(value);
+                break;
+            case "<":
+                range.lt(value);
+                break;
+            default:
+                range.lte(value);
+        }
+        Query attributeQuery = BoolQuery.of(b -> b
+                .must(WildcardQuery.of(w -> w.field("properties.attributes.name").value(matcher.group(2).trim()))._toQuery())
+                .must(range.build()._toQuery()))._toQuery();
+        Query propertyQuery = BoolQuery.of(b -> b
+                .must(WildcardQuery.of(w -> w.field("properties.name").value(matcher.group(1).trim()))._toQuery())
+                .must(NestedQuery.of(n -> n.path("properties.attributes").query(attributeQuery).scoreMode(ChildScoreMode.None))._toQuery()))._toQuery();
+        return NestedQuery.of(n -> n.path("properties").query(propertyQuery).scoreMode(ChildScoreMode.None))._toQuery();
     }
 }
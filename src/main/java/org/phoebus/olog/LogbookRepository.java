@@ -33,6 +33,8 @@ import org.phoebus.olog.entity.State;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Repository;
@@ -54,15 +56,15 @@ public class LogbookRepository implements CrudRepository<Logbook, String> {
     @SuppressWarnings("unused")
     @Value("${elasticsearch.logbook.index:olog_logbooks}")
     private String ES_LOGBOOK_INDEX;
-    @SuppressWarnings("unused")
-    @Value("${elasticsearch.result.size.logbooks:10}")
-    private int logbooksResultSize;
 
     @SuppressWarnings("unused")
     @Autowired
     @Qualifier("client")
     private ElasticsearchClient client;
 
+    @Autowired
+    private Catalog catalog;
+
     private final Logger logger = Logger.getLogger(LogbookRepository.class.getName());
 
     @Override
@@ -83,6 +85,7 @@ public class LogbookRepository implements CrudRepository<Logbook, String> {
                                 g.index(ES_LOGBOOK_INDEX).id(response.id()));
                 GetResponse<Logbook> resp =
                         client.get(getRequest, Logbook.class);
+                catalog.getLogbooks().put(resp.source());
                 return (S) resp.source();
             }
             return null;
@@ -113,6 +116,7 @@ public class LogbookRepository implements CrudRepository<Logbook, String> {
                 throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
                         "Failed to create logbooks: " + logbooks);
             } else {
+                catalog.getLogbooks().putAll(logbooks);
                 return logbooks;
             }
         } catch (IOException e) {
@@ -165,22 +169,41 @@ public class LogbookRepository implements CrudRepository<Logbook, String> {
 
     @Override
     public Iterable<Logbook> findAll() {
+        return getCatalogLogbooks().getAll().stream()
+                .filter(logbook -> State.Active.equals(logbook.getState()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param logbookName The name of a logbook.
+     * @return The logbook held by the {@link Catalog}, active or not, or <code>null</code> if there is no such logbook.
+     */
+    public Logbook findInCatalog(String logbookName) {
+        return getCatalogLogbooks().get(logbookName);
+    }
+
+    /**
+     * Loads the logbooks of the {@link Catalog} when the service has started, rather than on first use.
+     * A failure does not prevent the service from starting.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadCatalog() {
         try {
-            SearchRequest searchRequest =
-                    SearchRequest.of(s ->
-                            s.index(ES_LOGBOOK_INDEX)
-                                    .query(q -> q.match(t -> t.field("state").query(State.Active.toString())))
-                                    .timeout("10s")
-                                    .size(logbooksResultSize)
-                                    .sort(SortOptions.of(so -> so.field(FieldSort.of(f -> f.field("name"))))));
+            getCatalogLogbooks();
+        } catch (ResponseStatusException e) {
+            // Logged, the load is retried on first use
+        }
+    }
 
-            SearchResponse<Logbook> response =
-                    client.search(searchRequest, Logbook.class);
-            return response.hits().hits().stream().map(Hit::source).collect(Collectors.toList());
+    private Catalog.Section<Logbook> getCatalogLogbooks() {
+        Catalog.Section<Logbook> logbooks = catalog.getLogbooks();
+        try {
+            logbooks.load(() -> Catalog.readAll(client, ES_LOGBOOK_INDEX, Logbook.class));
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Failed to find logbooks", e);
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to find logbooks");
         }
+        return logbooks;
     }
 
     @Override
@@ -226,6 +249,7 @@ public class LogbookRepository implements CrudRepository<Logbook, String> {
                 UpdateResponse<Logbook> updateResponse =
                         client.update(updateRequest, Logbook.class);
                 if (updateResponse.result().equals(co.elastic.clients.elasticsearch._types.Result.Updated)) {
+                    catalog.getLogbooks().put(logbook);
                     logger.log(Level.INFO, "Deleted logbook " + logbookName);
                 }
             }
@@ -24,6 +24,7 @@ import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
 
 /**
@@ -41,12 +42,18 @@ public class LogbooksResource {
     @Autowired
     private LogbookRepository logbookRepository;
 
+    @Autowired
+    private Catalog catalog;
+
     /** Creates a new instance of LogbooksResource */
     public LogbooksResource() {
     }
 
     @GetMapping
-    public Iterable<Logbook> findAll() {
+    public Iterable<Logbook> findAll(WebRequest webRequest) {
+        if (webRequest.checkNotModified(catalog.getETag())) {
+            return null;
+        }
         return logbookRepository.findAll();
     }
 
@@ -27,6 +27,8 @@ public class MongoConfig extends AbstractMongoClientConfiguration {
     private String mongoHost;
     @Value("${mongo.port:27017}")
     private int mongoPort;
+    @Value("${mongo.upload.bucket:uploads}")
+    private String uploadBucketName;
 
     @SuppressWarnings("unused")
     @Bean
@@ -47,6 +49,16 @@ public class MongoConfig extends AbstractMongoClientConfiguration {
         return GridFSBuckets.create(mongoClient().getDatabase(mongoDbName));
     }
 
+    /**
+     * @return The bucket holding the chunks of resumable uploads until they are added to a log entry,
+     * see {@link UploadRepository}.
+     */
+    @SuppressWarnings("unused")
+    @Bean
+    public GridFSBucket uploadGridFSBucket() {
+        return GridFSBuckets.create(mongoClient().getDatabase(mongoDbName), uploadBucketName);
+    }
+
     @Override
     public String getDatabaseName() {
         return mongoDbName;
@@ -27,6 +27,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
 
 /**
@@ -42,6 +43,9 @@ public class PropertiesResource {
     @Autowired
     private PropertyRepository propertyRepository;
 
+    @Autowired
+    private Catalog catalog;
+
     /** Creates a new instance of LogbooksResource */
     public PropertiesResource() {
     }
@@ -49,10 +53,14 @@ public class PropertiesResource {
     /**
      * GET method to retrieve the list of all active properties. If the inactive flag is set true
      * @param inactive Whether to include inactive {@link Property}s.
-     * @return a list of all {@link Property}s
+     * @param webRequest The request, used to check the ETag sent by the client.
+     * @return a list of all {@link Property}s, or nothing if the properties have not changed since the client retrieved them
      */
     @GetMapping
-    public Iterable<Property> findAll(@RequestParam(required=false) boolean inactive) {
+    public Iterable<Property> findAll(@RequestParam(required=false) boolean inactive, WebRequest webRequest) {
+        if (webRequest.checkNotModified(catalog.getETag())) {
+            return null;
+        }
         if(inactive) {
             return propertyRepository.findAll(true);
         }
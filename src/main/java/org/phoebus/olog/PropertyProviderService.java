@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Property;
+import org.phoebus.olog.entity.preprocess.LogPropertyProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calls the {@link LogPropertyProvider}s registered over SPI when a log entry is created.
+ * <p>
+ * Providers run concurrently on a bounded thread pool, each with its own timeout. A provider that fails or
+ * times out <code>propertyProvidersFailureThreshold</code> times in a row is skipped for
+ * <code>propertyProvidersRetryInterval</code> milliseconds, after which a single call decides whether it is
+ * used again. Properties of cacheable providers are reused for the time to live they declare.
+ * <p>
+ * Per provider, the latency is published as <code>olog.property.provider.latency</code>, and timeouts,
+ * failures and skipped calls as <code>olog.property.provider.timeouts</code>,
+ * <code>olog.property.provider.failures</code> and <code>olog.property.provider.skipped</code>.
+ */
+@Service
+public class PropertyProviderService {
+
+    private static final Logger logger = Logger.getLogger(PropertyProviderService.class.getName());
+
+    @Value("${propertyProvidersTimeout:2000}")
+    private long defaultTimeout;
+
+    @Value("${propertyProvidersThreads:8}")
+    private int threads;
+
+    @Value("${propertyProvidersFailureThreshold:5}")
+    private int failureThreshold;
+
+    @Value("${propertyProvidersRetryInterval:30000}")
+    private long retryInterval;
+
+    @Autowired
+    private List<LogPropertyProvider> propertyProviders;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private List<ProviderState> providers;
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void init() {
+        providers = new ArrayList<>();
+        propertyProviders.forEach(provider -> providers.add(new ProviderState(provider)));
+        AtomicInteger threadCount = new AtomicInteger();
+        // Calls exceeding the pool and queue are skipped rather than delaying the request any further
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4),
+                r -> {
+                    Thread thread = new Thread(r, "olog-property-provider-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Calls all providers concurrently and waits for each at most its timeout.
+     *
+     * @param log The log entry as submitted by the client.
+     * @return The non-null {@link Property}s returned in time, in the order of the providers.
+     */
+    public List<Property> getProperties(Log log) {
+        List<Property> properties = new ArrayList<>();
+        if (providers.isEmpty()) {
+            return properties;
+        }
+        long start = System.nanoTime();
+        Property[] cachedProperties = new Property[providers.size()];
+        List<Future<Property>> futures = new ArrayList<>();
+        for (int i = 0; i < providers.size(); i++) {
+            cachedProperties[i] = providers.get(i).getCached();
+            futures.add(cachedProperties[i] == null ? providers.get(i).call(log) : null);
+        }
+        for (int i = 0; i < providers.size(); i++) {
+            Property property = futures.get(i) != null ? providers.get(i).await(futures.get(i), start) : cachedProperties[i];
+            if (property != null) {
+                properties.add(property);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Circuit breaker state, cache and meters of a provider.
+     */
+    private class ProviderState {
+        private final LogPropertyProvider provider;
+        private final String name;
+        private final Timer latency;
+        private final Counter timeouts;
+        private final Counter failures;
+        private final Counter skipped;
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        /**
+         * System time in nanoseconds until which the provider is skipped, valid when
+         * {@link #consecutiveFailures} reaches the threshold.
+         */
+        private final AtomicLong openUntil = new AtomicLong();
+        private volatile CachedProperty cached;
+
+        private ProviderState(LogPropertyProvider provider) {
+            this.provider = provider;
+            this.name = provider.getClass().getName();
+            latency = Timer.builder("olog.property.provider.latency")
+                    .description("Time spent by a property provider")
+                    .tag("provider", name)
+                    .register(meterRegistry);
+            timeouts = Counter.builder("olog.property.provider.timeouts")
+                    .description("Number of calls to a property provider that timed out")
+                    .tag("provider", name)
+                    .register(meterRegistry);
+            failures = Counter.builder("olog.property.provider.failures")
+                    .description("Number of calls to a property provider that threw an exception")
+                    .tag("provider", name)
+                    .register(meterRegistry);
+            skipped = Counter.builder("olog.property.provider.skipped")
+                    .description("Number of calls to a property provider skipped as it keeps failing or all threads are busy")
+                    .tag("provider", name)
+                    .register(meterRegistry);
+        }
+
+        /**
+         * @return The {@link Property} returned by a cacheable provider, unless expired.
+         */
+        private Property getCached() {
+            CachedProperty cachedProperty = cached;
+            return cachedProperty != null && System.nanoTime() - cachedProperty.expires < 0 ? cachedProperty.property : null;
+        }
+
+        /**
+         * @return The pending call, or <code>null</code> if the provider is skipped.
+         */
+        private Future<Property> call(Log log) {
+            if (consecutiveFailures.get() >= failureThreshold) {
+                long until = openUntil.get();
+                // Once the retry interval has elapsed, only the first caller tries the provider again
+                if (System.nanoTime() - until < 0
+                        || !openUntil.compareAndSet(until, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryInterval))) {
+                    skipped.increment();
+                    return null;
+                }
+            }
+            try {
+                return executor.submit(() -> latency.recordCallable(() -> provider.getProperty(log)));
+            } catch (RejectedExecutionException e) {
+                skipped.increment();
+                return null;
+            }
+        }
+
+        /**
+         * @param future The pending call.
+         * @param start  System time in nanoseconds at which the providers were called.
+         * @return The {@link Property} returned by the provider, or <code>null</code> if it failed or timed out.
+         */
+        private Property await(Future<Property> future, long start) {
+            long timeout = provider.getTimeout() > 0 ? provider.getTimeout() : defaultTimeout;
+            long remaining = start + TimeUnit.MILLISECONDS.toNanos(timeout) - System.nanoTime();
+            try {
+                Property property = future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+                consecutiveFailures.set(0);
+                if (provider.getCacheTimeToLive() > 0) {
+                    cached = new CachedProperty(property, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(provider.getCacheTimeToLive()));
+                }
+                return property;
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                timeouts.increment();
+                failed("did not return within " + timeout + " ms", null);
+            } catch (ExecutionException e) {
+                failures.increment();
+                failed("failed", e.getCause());
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+
+        private void failed(String reason, Throwable cause) {
+            if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+                openUntil.set(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryInterval));
+                logger.log(Level.WARNING, "Property provider " + name + " " + reason + ", skipped for " + retryInterval + " ms", cause);
+            } else {
+                logger.log(Level.WARNING, "Property provider " + name + " " + reason, cause);
+            }
+        }
+    }
+
+    private static class CachedProperty {
+        private final Property property;
+        private final long expires;
+
+        private CachedProperty(Property property, long expires) {
+            this.property = property;
+            this.expires = expires;
+        }
+    }
+}
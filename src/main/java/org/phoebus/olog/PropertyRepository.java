@@ -36,6 +36,8 @@ import org.phoebus.olog.entity.State;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Repository;
@@ -56,14 +58,14 @@ public class PropertyRepository implements CrudRepository<Property, String> {
     @SuppressWarnings("unused")
     @Value("${elasticsearch.property.index:olog_properties}")
     private String ES_PROPERTY_INDEX;
-    @SuppressWarnings("unused")
-    @Value("${elasticsearch.result.size.properties:10}")
-    private int propertiesResultSize;
 
     @Autowired
     @Qualifier("client")
     ElasticsearchClient client;
 
+    @Autowired
+    private Catalog catalog;
+
     private final Logger logger = Logger.getLogger(PropertyRepository.class.getName());
 
     @Override
@@ -84,6 +86,7 @@ public class PropertyRepository implements CrudRepository<Property, String> {
                                 g.index(ES_PROPERTY_INDEX).id(response.id()));
                 GetResponse<Property> resp =
                         client.get(getRequest, Property.class);
+                catalog.getProperties().put(resp.source());
                 return (S) resp.source();
             }
             return null;
@@ -115,7 +118,7 @@ public class PropertyRepository implements CrudRepository<Property, String> {
                 throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
                         "Failed to create properties: " + properties);
             } else {
-
+                catalog.getProperties().putAll(properties);
                 return properties;
             }
         } catch (IOException e) {
@@ -162,29 +165,33 @@ public class PropertyRepository implements CrudRepository<Property, String> {
     }
 
     public Iterable<Property> findAll(boolean includeInactive) {
-        try {
-            SearchRequest searchRequest;
-            Query query;
-            if (includeInactive) {
-                query = new MatchAllQuery.Builder().build()._toQuery();
-            } else {
-                query = MatchQuery.of(t -> t.field("state").query(State.Active.toString()))._toQuery();
-            }
-            searchRequest = SearchRequest.of(s ->
-                    s.index(ES_PROPERTY_INDEX)
-                            .query(query)
-                            .timeout("10s")
-                            .size(propertiesResultSize)
-                            .sort(SortOptions.of(so -> so.field(FieldSort.of(f -> f.field("name"))))));
+        return getCatalogProperties().getAll().stream()
+                .filter(property -> includeInactive || State.Active.equals(property.getState()))
+                .collect(Collectors.toList());
+    }
 
-            SearchResponse<Property> response =
-                    client.search(searchRequest, Property.class);
+    /**
+     * Loads the properties of the {@link Catalog} when the service has started, rather than on first use.
+     * A failure does not prevent the service from starting.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadCatalog() {
+        try {
+            getCatalogProperties();
+        } catch (ResponseStatusException e) {
+            // Logged, the load is retried on first use
+        }
+    }
 
-            return response.hits().hits().stream().map(Hit::source).collect(Collectors.toList());
+    private Catalog.Section<Property> getCatalogProperties() {
+        Catalog.Section<Property> properties = catalog.getProperties();
+        try {
+            properties.load(() -> Catalog.readAll(client, ES_PROPERTY_INDEX, Property.class));
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Failed to find properties", e);
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to find properties");
         }
+        return properties;
     }
 
     @Override
@@ -231,6 +238,7 @@ public class PropertyRepository implements CrudRepository<Property, String> {
                 UpdateResponse<Property> updateResponse =
                         client.update(updateRequest, Property.class);
                 if (updateResponse.result().equals(co.elastic.clients.elasticsearch._types.Result.Updated)) {
+                    catalog.getProperties().put(property);
                     logger.log(Level.INFO, "Deleted property " + propertyName);
                 }
             }
@@ -270,6 +278,7 @@ public class PropertyRepository implements CrudRepository<Property, String> {
                 GetResponse<Property> resp =
                         client.get(getRequest, Property.class);
                 Property deletedProperty = resp.source();
+                catalog.getProperties().put(deletedProperty);
                 logger.log(Level.INFO, "Deleted property attribute" + deletedProperty.toLogger());
             }
         } catch (Exception e) {
@@ -1,10 +1,14 @@
 /**
- * 
+ *
  */
 package org.phoebus.olog;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -12,23 +16,19 @@ import javax.annotation.PostConstruct;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
 import co.elastic.clients.elasticsearch._types.ElasticsearchException;
-import co.elastic.clients.elasticsearch._types.FieldSort;
+import co.elastic.clients.elasticsearch._types.OpType;
 import co.elastic.clients.elasticsearch._types.Refresh;
-import co.elastic.clients.elasticsearch._types.SortOptions;
-import co.elastic.clients.elasticsearch._types.SortOrder;
-import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
-import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery.Builder;
-import co.elastic.clients.elasticsearch._types.query_dsl.MatchAllQuery;
-import co.elastic.clients.elasticsearch._types.query_dsl.RangeQuery;
-import co.elastic.clients.elasticsearch._types.query_dsl.TermQuery;
+import co.elastic.clients.elasticsearch.core.GetRequest;
+import co.elastic.clients.elasticsearch.core.GetResponse;
 import co.elastic.clients.elasticsearch.core.IndexRequest;
-import co.elastic.clients.elasticsearch.core.IndexResponse;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
 import co.elastic.clients.json.JsonData;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.phoebus.olog.entity.Log;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonNumber;
+import jakarta.json.JsonValue;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -37,47 +37,264 @@ import org.springframework.stereotype.Service;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
 /**
+ * Allocates log entry ids from blocks leased from a single counter document in the
+ * olog_sequence index.
+ * <p>
+ * Each lease advances the counter document by {@link #blockSize} using a compare-and-set
+ * (<code>if_seq_no</code>/<code>if_primary_term</code>) write, so several Olog instances sharing the
+ * same Elasticsearch cluster never hand out overlapping ranges. Ids within a leased block are handed
+ * out from an in-memory counter without any locking; only the thread exhausting a block pays for
+ * leasing the next one. Ids are therefore unique but, across instances, not strictly ordered by
+ * creation time. Unused ids of a block are lost when the service stops.
+ * <p>
+ * The counter is seeded from the sequence number of the index the first time it is used, which
+ * guarantees that leased ids are larger than any id handed out by the previous, one document per
+ * entry, scheme. All Olog instances sharing the index must use the lease based allocator.
+ * <p>
+ * The counter field is added to the mapping of sequence indices created by earlier versions on startup. A
+ * sequence index created by earlier versions of <code>es8_mapping_definitions.sh</code> disables the mapping of
+ * its documents, hence cannot store the counter, and the service fails to start until it is recreated. A counter
+ * document without the field is seeded once above the largest id of the existing log entries.
+ *
  * @author Kunal Shroff
  *
  */
 @Service
 public class SequenceGenerator
 {
+    private static final Logger logger = Logger.getLogger(SequenceGenerator.class.getName());
+
+    /**
+     * Id of the counter document in the sequence index.
+     */
+    static final String COUNTER_ID = "olog_log_id";
+    /**
+     * Stored field of the counter document holding the next id that has not yet been leased.
+     * The sequence index does not keep the <code>_source</code>, hence a stored field.
+     */
+    static final String COUNTER_FIELD = "next";
+
+    static final String MAX_ID_AGGREGATION = "max_id";
+    private static final String MAX_ID_SCRIPT = "Long.parseLong(doc['id'].value)";
+
     @SuppressWarnings("unused")
     @Value("${elasticsearch.sequence.index:olog_sequence}")
     private String ES_LOG_SEQ;
 
+    /**
+     * Number of ids reserved by each lease.
+     */
+    @Value("${elasticsearch.sequence.block.size:1000}")
+    private int blockSize;
+
+    @SuppressWarnings("unused")
+    @Value("${elasticsearch.log.index:olog_logs}")
+    private String ES_LOG_INDEX;
+
     @Autowired
     @Qualifier("client")
     private ElasticsearchClient client;
 
-    private OlogSequence seq;
     private ObjectMapper objectMapper;
-    private IndexRequest request;
+
+    private final AtomicReference<IdBlock> currentBlock = new AtomicReference<>(IdBlock.EMPTY);
+    private final AtomicBoolean counterMappingVerified = new AtomicBoolean();
+    private final AtomicBoolean counterSeeded = new AtomicBoolean();
+    private final Object leaseLock = new Object();
 
     @PostConstruct
     public void init()
     {
-        seq = new OlogSequence();
         objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
-        request = IndexRequest.of(i -> i.index(ES_LOG_SEQ)
-                .document(JsonData.of(seq, new JacksonJsonpMapper(objectMapper)))
+        try {
+            ensureCounterMapping();
+        } catch (IOException e) {
+            // Elasticsearch is not reachable yet, the mapping is verified by the first lease
+            logger.log(Level.WARNING, "Failed to verify the counter field of index " + ES_LOG_SEQ, e);
+        }
+    }
+
+    /**
+     * get a new unique id for a log entry
+     *
+     * @return a new unique id for a olog entry
+     * @throws IOException The Elasticsearch client may throw this
+     */
+    public long getID() throws IOException
+    {
+        while (true) {
+            IdBlock block = currentBlock.get();
+            long id = block.next.getAndIncrement();
+            if (id < block.end) {
+                return id;
+            }
+            synchronized (leaseLock) {
+                // Another thread may have replaced the exhausted block while this one was waiting
+                if (currentBlock.get() == block) {
+                    currentBlock.set(leaseBlock(blockSize));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves a contiguous range of ids in one step, e.g. for a bulk request. The range is taken from
+     * the current block if it has room for it, otherwise a dedicated block is leased.
+     *
+     * @param count The number of ids to reserve.
+     * @return The first id of the range [first, first + count)
+     * @throws IOException The Elasticsearch client may throw this
+     */
+    public long reserveIDs(int count) throws IOException
+    {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one id must be reserved");
+        }
+        IdBlock block = currentBlock.get();
+        long first = block.next.getAndAdd(count);
+        if (first + count <= block.end) {
+            return first;
+        }
+        return leaseBlock(count).next.get();
+    }
+
+    /**
+     * Reserves a new range of ids by advancing the counter document. Concurrent leases, from this or
+     * other Olog instances, are detected through the sequence number of the counter document, in which
+     * case the lease is retried.
+     *
+     * @param size The number of ids to reserve.
+     * @return The leased {@link IdBlock}
+     * @throws IOException The Elasticsearch client may throw this
+     */
+    IdBlock leaseBlock(int size) throws IOException
+    {
+        ensureCounterMapping();
+        while (true) {
+            GetRequest getRequest = GetRequest.of(g -> g.index(ES_LOG_SEQ).id(COUNTER_ID).storedFields(COUNTER_FIELD));
+            GetResponse<Object> response = client.get(getRequest, Object.class);
+            if (!response.found()) {
+                createCounter();
+                continue;
+            }
+            JsonData field = response.fields() != null ? response.fields().get(COUNTER_FIELD) : null;
+            long next = field != null ? readCounter(field) : seedCounter();
+            long end = next + size;
+            IndexRequest<Map<String, Long>> indexRequest =
+                    IndexRequest.of(i -> i.index(ES_LOG_SEQ)
+                            .id(COUNTER_ID)
+                            .document(Map.of(COUNTER_FIELD, end))
+                            .ifSeqNo(response.seqNo())
+                            .ifPrimaryTerm(response.primaryTerm()));
+            try {
+                client.index(indexRequest);
+                logger.log(Level.FINE, "Leased log entry ids [" + next + ", " + end + ")");
+                return new IdBlock(next, end);
+            } catch (ElasticsearchException e) {
+                if (e.status() != 409) {
+                    throw e;
+                }
+                // Lost the race against another lease, read the counter again
+            }
+        }
+    }
+
+    /**
+     * Creates the counter document unless another Olog instance already did. The counter starts
+     * above the current sequence number of the index, i.e. above any id allocated by indexing one
+     * document per log entry.
+     */
+    private void createCounter() throws IOException
+    {
+        IndexRequest<JsonData> legacyRequest = IndexRequest.of(i -> i.index(ES_LOG_SEQ)
+                .document(JsonData.of(new OlogSequence(), new JacksonJsonpMapper(objectMapper)))
                 .refresh(Refresh.True));
+        long start = client.index(legacyRequest).seqNo() + 1;
+        IndexRequest<Map<String, Long>> createRequest =
+                IndexRequest.of(i -> i.index(ES_LOG_SEQ)
+                        .id(COUNTER_ID)
+                        .document(Map.of(COUNTER_FIELD, start))
+                        .opType(OpType.Create));
+        try {
+            client.index(createRequest);
+            logger.log(Level.INFO, "Created log entry id counter starting at " + start);
+        } catch (ElasticsearchException e) {
+            if (e.status() != 409) {
+                throw e;
+            }
+        }
+    }
 
+    /**
+     * The counter field must be stored as the sequence index has no <code>_source</code>. Indices
+     * created from <code>seq_mapping.json</code> already declare it, older ones are updated here.
+     *
+     * @throws IllegalStateException if the index cannot store the counter field.
+     */
+    private void ensureCounterMapping() throws IOException
+    {
+        if (counterMappingVerified.get()) {
+            return;
+        }
+        try {
+            client.indices().putMapping(p -> p.index(ES_LOG_SEQ)
+                    .properties(COUNTER_FIELD, pr -> pr.long_(l -> l.store(true).index(false).docValues(false))));
+        } catch (ElasticsearchException e) {
+            throw new IllegalStateException("Index " + ES_LOG_SEQ + " cannot store the log entry id counter, "
+                    + "it must be deleted and recreated from seq_mapping.json", e);
+        }
+        counterMappingVerified.set(true);
     }
 
     /**
-     * get a new unique id from the olog_sequnce index
-     * 
-     * @return a new unique id for a olog entry
+     * Seeds a counter document without the counter field above the largest id of the existing log entries.
+     * The lease then stores the field, hence this happens once.
+     *
+     * @return The largest log entry id + 1.
      * @throws IOException The Elasticsearch client may throw this
+     * @throws IllegalStateException if the counter field was not stored by an earlier lease of this instance.
      */
-    public synchronized  long getID() throws IOException
+    private long seedCounter() throws IOException
     {
-        return client.index(request).seqNo();
+        if (!counterSeeded.compareAndSet(false, true)) {
+            throw new IllegalStateException("Index " + ES_LOG_SEQ + " did not store the log entry id counter");
+        }
+        // Include log entries written without a refresh
+        client.indices().refresh(r -> r.index(ES_LOG_INDEX));
+        SearchRequest searchRequest = SearchRequest.of(s -> s.index(ES_LOG_INDEX)
+                .size(0)
+                .aggregations(MAX_ID_AGGREGATION, a -> a.max(m -> m.script(sc -> sc.inline(i -> i.source(MAX_ID_SCRIPT))))));
+        SearchResponse<Void> response = client.search(searchRequest, Void.class);
+        Double maxId = response.aggregations().get(MAX_ID_AGGREGATION).max().value();
+        long next = maxId == null || maxId.isNaN() || maxId.isInfinite() ? 1 : maxId.longValue() + 1;
+        logger.log(Level.INFO, "Seeding log entry id counter at " + next);
+        return next;
     }
 
+    private static long readCounter(JsonData field)
+    {
+        JsonValue value = field.toJson();
+        if (value instanceof JsonArray) {
+            value = ((JsonArray) value).get(0);
+        }
+        return ((JsonNumber) value).longValue();
+    }
+
+    /**
+     * A range [next, end) of ids leased from the counter document.
+     */
+    static class IdBlock {
+        private static final IdBlock EMPTY = new IdBlock(0, 0);
+
+        private final AtomicLong next;
+        private final long end;
+
+        IdBlock(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
 
     private static class OlogSequence {
         private final Instant createDate;
@@ -24,6 +24,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import static org.phoebus.olog.OlogResourceDescriptors.SERVICE_CONFIGURATION_URI;
 
@@ -39,11 +40,17 @@ public class ServiceConfigurationResource {
     @Autowired
     private TagRepository tagRepository;
 
+    @Autowired
+    private Catalog catalog;
+
     @Value("#{'${levels:Urgent,Suggestion,Info,Request,Problem}'.split(',')}")
     private List<String> levels;
 
     @GetMapping
-    public ServiceConfiguration serviceConfiguration(){
+    public ServiceConfiguration serviceConfiguration(WebRequest webRequest){
+        if (webRequest.checkNotModified(catalog.getETag())) {
+            return null;
+        }
         ServiceConfiguration serviceConfiguration = new ServiceConfiguration();
         serviceConfiguration.setLevels(levels);
         serviceConfiguration.setLogbooks(logbookRepository.findAll());
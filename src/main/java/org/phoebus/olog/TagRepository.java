@@ -33,6 +33,8 @@ import org.phoebus.olog.entity.Tag;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Repository;
@@ -54,14 +56,14 @@ public class TagRepository implements CrudRepository<Tag, String> {
     @SuppressWarnings("unused")
     @Value("${elasticsearch.tag.index:olog_tags}")
     private String ES_TAG_INDEX;
-    @SuppressWarnings("unused")
-    @Value("${elasticsearch.result.size.tags:10}")
-    private int tagsResultSize;
 
     @Autowired
     @Qualifier("client")
     ElasticsearchClient client;
 
+    @Autowired
+    private Catalog catalog;
+
     /**
      *
      */
@@ -83,6 +85,7 @@ public class TagRepository implements CrudRepository<Tag, String> {
                                 g.index(ES_TAG_INDEX).id(response.id()));
                 GetResponse<Tag> resp =
                         client.get(getRequest, Tag.class);
+                catalog.getTags().put(resp.source());
                 return (S) resp.source();
             }
             return null;
@@ -114,6 +117,7 @@ public class TagRepository implements CrudRepository<Tag, String> {
                 throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
                         "Failed to create logbooks: " + tags);
             } else {
+                catalog.getTags().putAll(tags);
                 return tags;
             }
         } catch (IOException e) {
@@ -156,23 +160,41 @@ public class TagRepository implements CrudRepository<Tag, String> {
 
     @Override
     public Iterable<Tag> findAll() {
+        return getCatalogTags().getAll().stream()
+                .filter(tag -> State.Active.equals(tag.getState()))
+                .collect(Collectors.toList());
+    }
 
-        try {
-            SearchRequest searchRequest = SearchRequest.of(s ->
-                    s.index(ES_TAG_INDEX)
-                            .query(q -> q.match(t -> t.field("state").query(State.Active.toString())))
-                            .timeout("10s")
-                            .size(tagsResultSize)
-                            .sort(SortOptions.of(so -> so.field(FieldSort.of(f -> f.field("name"))))));
+    /**
+     * @param tagName The name of a tag.
+     * @return The tag held by the {@link Catalog}, active or not, or <code>null</code> if there is no such tag.
+     */
+    public Tag findInCatalog(String tagName) {
+        return getCatalogTags().get(tagName);
+    }
 
-            SearchResponse<Tag> response =
-                    client.search(searchRequest, Tag.class);
+    /**
+     * Loads the tags of the {@link Catalog} when the service has started, rather than on first use.
+     * A failure does not prevent the service from starting.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadCatalog() {
+        try {
+            getCatalogTags();
+        } catch (ResponseStatusException e) {
+            // Logged, the load is retried on first use
+        }
+    }
 
-            return response.hits().hits().stream().map(Hit::source).collect(Collectors.toList());
+    private Catalog.Section<Tag> getCatalogTags() {
+        Catalog.Section<Tag> tags = catalog.getTags();
+        try {
+            tags.load(() -> Catalog.readAll(client, ES_TAG_INDEX, Tag.class));
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Failed to find tags", e);
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to find tags");
         }
+        return tags;
     }
 
     @Override
@@ -220,6 +242,7 @@ public class TagRepository implements CrudRepository<Tag, String> {
                 UpdateResponse<Tag> updateResponse =
                         client.update(updateRequest, Tag.class);
                 if (updateResponse.result().equals(co.elastic.clients.elasticsearch._types.Result.Updated)) {
+                    catalog.getTags().put(tag);
                     logger.log(Level.INFO, "Deleted tag " + tagName);
                 }
             }
@@ -22,6 +22,7 @@ import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
 
 /**
@@ -38,6 +39,9 @@ public class TagsResource {
     @Autowired
     private TagRepository tagRepository;
 
+    @Autowired
+    private Catalog catalog;
+
     /** Creates a new instance of TagsResource */
     public TagsResource()
     {
@@ -46,11 +50,15 @@ public class TagsResource {
     /**
      * GET method for retrieving the list of tags in the database.
      *
-     * @return list of tags
+     * @param webRequest The request, used to check the ETag sent by the client.
+     * @return list of tags, or nothing if the tags have not changed since the client retrieved them
      */
     @GetMapping
-    public Iterable<Tag> findAll()
+    public Iterable<Tag> findAll(WebRequest webRequest)
     {
+        if (webRequest.checkNotModified(catalog.getETag())) {
+            return null;
+        }
         return tagRepository.findAll();
     }
 
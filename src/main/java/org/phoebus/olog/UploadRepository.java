@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.phoebus.olog.entity.Upload;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Repository;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores resumable uploads of attachments in the GridFS bucket <code>mongo.upload.bucket</code>.
+ * <p>
+ * An upload is an empty GridFS file, whose id is the upload id and whose metadata holds the announced length
+ * of the attachment. Each chunk received is stored as a GridFS file of its own, with the upload id and its
+ * offset as metadata, such that the bytes received before a transfer fails are kept and the client resumes
+ * from there. Once all bytes are received, the chunks are read back in order as a single stream and stored as
+ * an attachment by the {@link AttachmentRepository}.
+ * <p>
+ * Only one chunk of an upload may be received at a time by an Olog instance. Uploads without a chunk received
+ * within <code>attachment.upload.ttl</code> milliseconds are deleted every
+ * <code>attachment.upload.cleanup.interval</code> milliseconds.
+ */
+@Repository
+public class UploadRepository {
+
+    private static final Logger logger = Logger.getLogger(UploadRepository.class.getName());
+
+    static final String LENGTH = "length";
+    static final String UPLOAD = "upload";
+    static final String OFFSET = "offset";
+
+    @Value("${attachment.upload.ttl:86400000}")
+    private long ttl;
+
+    @Value("${attachment.upload.cleanup.interval:3600000}")
+    private long cleanupInterval;
+
+    @Autowired
+    @Qualifier("uploadGridFSBucket")
+    GridFSBucket uploadGridFSBucket;
+
+    /**
+     * Ids of the uploads currently receiving a chunk.
+     */
+    private final Set<String> receiving = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "olog-upload-cleanup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::deleteExpired, cleanupInterval, cleanupInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Creates an upload.
+     *
+     * @param filename                The name of the attachment.
+     * @param fileMetadataDescription The description of the attachment, e.g. its content type.
+     * @param length                  The size of the attachment in bytes.
+     * @return The upload, with no bytes received.
+     */
+    public Upload create(String filename, String fileMetadataDescription, long length) {
+        String id = UUID.randomUUID().toString();
+        GridFSUploadOptions options = new GridFSUploadOptions()
+                .metadata(new Document("meta-data", fileMetadataDescription).append(LENGTH, length));
+        uploadGridFSBucket.openUploadStream(new BsonString(id), filename, options).close();
+        return new Upload(id, filename, fileMetadataDescription, length, 0);
+    }
+
+    /**
+     * @param id The upload id.
+     * @return The upload, or {@link Optional#empty()} if there is no such upload.
+     */
+    public Optional<Upload> findById(String id) {
+        GridFSFile file = uploadGridFSBucket.find(Filters.eq("_id", new BsonString(id))).first();
+        if (file == null || file.getMetadata() == null || !file.getMetadata().containsKey(LENGTH)) {
+            return Optional.empty();
+        }
+        Upload upload = new Upload(id, file.getFilename(), file.getMetadata().getString("meta-data"),
+                file.getMetadata().get(LENGTH, Number.class).longValue(), 0);
+        upload.setOffset(offsetOf(id, findParts(id)));
+        return Optional.of(upload);
+    }
+
+    /**
+     * Stores a chunk of an upload. If reading the chunk fails, the bytes received up to then are kept.
+     *
+     * @param id          The upload id.
+     * @param offset      The offset of the chunk, which must be the number of bytes received so far.
+     * @param inputStream The chunk.
+     * @return The number of bytes received so far, including the chunk.
+     * @throws IOException if reading the chunk fails.
+     *                     HTTP status 404 if there is no such upload, 409 if the offset does not match or a chunk
+     *                     is being received concurrently, or 413 if the chunk exceeds the length of the upload.
+     */
+    public long append(String id, long offset, InputStream inputStream) throws IOException {
+        if (!receiving.add(id)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "A chunk of upload " + id + " is being received");
+        }
+        try {
+            Upload upload = findById(id).orElseThrow(() ->
+                    new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload " + id + " not found"));
+            if (offset != upload.getOffset()) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT,
+                        "Upload " + id + " continues at offset " + upload.getOffset() + ", not " + offset);
+            }
+            GridFSUploadStream uploadStream = uploadGridFSBucket.openUploadStream(id,
+                    new GridFSUploadOptions().metadata(new Document(UPLOAD, id).append(OFFSET, offset)));
+            byte[] buffer = new byte[uploadGridFSBucket.getChunkSizeBytes()];
+            long received = 0;
+            try {
+                int length;
+                while ((length = inputStream.readNBytes(buffer, 0, buffer.length)) > 0) {
+                    if (offset + received + length > upload.getLength()) {
+                        throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                                "Chunk exceeds the length " + upload.getLength() + " of upload " + id);
+                    }
+                    uploadStream.write(buffer, 0, length);
+                    received += length;
+                }
+            } catch (IOException e) {
+                // Keep what was received, the client resumes from there
+                if (received > 0) {
+                    uploadStream.close();
+                    logger.log(Level.INFO, "Upload " + id + " interrupted at offset " + (offset + received));
+                } else {
+                    uploadStream.abort();
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                uploadStream.abort();
+                throw e;
+            }
+            if (received > 0) {
+                uploadStream.close();
+            } else {
+                uploadStream.abort();
+            }
+            return offset + received;
+        } finally {
+            receiving.remove(id);
+        }
+    }
+
+    /**
+     * @param upload A complete upload.
+     * @return The bytes of the upload, reading its chunks one after the other.
+     */
+    public InputStream openStream(Upload upload) {
+        Iterator<GridFSFile> parts = findParts(upload.getId()).iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return parts.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return uploadGridFSBucket.openDownloadStream(parts.next().getId());
+            }
+        });
+    }
+
+    /**
+     * Deletes an upload and its chunks. Nothing is done if there is no such upload.
+     *
+     * @param id The upload id.
+     */
+    public void deleteById(String id) {
+        for (GridFSFile part : findParts(id)) {
+            uploadGridFSBucket.delete(part.getId());
+        }
+        if (uploadGridFSBucket.find(Filters.eq("_id", new BsonString(id))).first() != null) {
+            uploadGridFSBucket.delete(new BsonString(id));
+        }
+    }
+
+    /**
+     * Deletes the uploads without a chunk received within <code>attachment.upload.ttl</code> milliseconds.
+     */
+    void deleteExpired() {
+        try {
+            Date expired = new Date(System.currentTimeMillis() - ttl);
+            List<GridFSFile> uploads = uploadGridFSBucket.find(Filters.and(
+                    Filters.exists("metadata." + LENGTH), Filters.lt("uploadDate", expired))).into(new ArrayList<>());
+            for (GridFSFile upload : uploads) {
+                String id = upload.getId().asString().getValue();
+                List<GridFSFile> parts = findParts(id);
+                if (parts.stream().noneMatch(part -> part.getUploadDate().after(expired)) && !receiving.contains(id)) {
+                    deleteById(id);
+                    logger.log(Level.INFO, "Deleted expired upload " + id);
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to delete expired uploads", e);
+        }
+    }
+
+    private List<GridFSFile> findParts(String id) {
+        return uploadGridFSBucket.find(Filters.eq("metadata." + UPLOAD, id))
+                .sort(Sorts.ascending("metadata." + OFFSET))
+                .into(new ArrayList<>());
+    }
+
+    /**
+     * @param id    The upload id.
+     * @param parts The chunks of the upload, ordered by offset.
+     * @return The number of bytes received.
+     * @throws IllegalStateException if the chunks are not contiguous, e.g. if they were received concurrently
+     *                               by several Olog instances.
+     */
+    static long offsetOf(String id, List<GridFSFile> parts) {
+        long offset = 0;
+        for (GridFSFile part : parts) {
+            long partOffset = part.getMetadata().get(OFFSET, Number.class).longValue();
+            if (partOffset != offset) {
+                throw new IllegalStateException("Upload " + id + " has a chunk at offset " + partOffset + " instead of " + offset);
+            }
+            offset += part.getLength();
+        }
+        return offset;
+    }
+}
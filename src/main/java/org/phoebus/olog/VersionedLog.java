@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import org.phoebus.olog.entity.Log;
+
+/**
+ * A log entry along with the version of its Elasticsearch document, used for optimistic concurrency
+ * control of updates. Clients see the version as ETag.
+ */
+public class VersionedLog {
+
+    private final Log log;
+    private final Version version;
+
+    public VersionedLog(Log log, Version version) {
+        this.log = log;
+        this.version = version;
+    }
+
+    public Log getLog() {
+        return log;
+    }
+
+    public Version getVersion() {
+        return version;
+    }
+
+    /**
+     * The sequence number and primary term of an Elasticsearch document, which together identify a
+     * specific write of the document.
+     */
+    public static class Version {
+        private final long seqNo;
+        private final long primaryTerm;
+
+        public Version(long seqNo, long primaryTerm) {
+            this.seqNo = seqNo;
+            this.primaryTerm = primaryTerm;
+        }
+
+        public long getSeqNo() {
+            return seqNo;
+        }
+
+        public long getPrimaryTerm() {
+            return primaryTerm;
+        }
+
+        /**
+         * @return The version as (strong) ETag value, e.g. <code>"12-1"</code>.
+         */
+        public String toETag() {
+            return "\"" + seqNo + "-" + primaryTerm + "\"";
+        }
+
+        /**
+         * @param etag An ETag value as created by {@link #toETag()}.
+         * @return The {@link Version}
+         * @throws IllegalArgumentException if the value is not such an ETag.
+         */
+        public static Version parseETag(String etag) {
+            String value = etag.strip();
+            if (value.length() < 2 || !value.startsWith("\"") || !value.endsWith("\"")) {
+                throw new IllegalArgumentException("Invalid ETag: " + etag);
+            }
+            String[] seqNoAndPrimaryTerm = value.substring(1, value.length() - 1).split("-");
+            if (seqNoAndPrimaryTerm.length != 2) {
+                throw new IllegalArgumentException("Invalid ETag: " + etag);
+            }
+            try {
+                return new Version(Long.parseLong(seqNoAndPrimaryTerm[0]), Long.parseLong(seqNoAndPrimaryTerm[1]));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid ETag: " + etag);
+            }
+        }
+    }
+}
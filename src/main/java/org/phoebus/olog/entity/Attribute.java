@@ -1,5 +1,14 @@
 package org.phoebus.olog.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Pattern;
+
 /**
  * A representation of an attribute associated with a property.
  * Simply put it is a key value pair with a state.
@@ -8,6 +17,16 @@ package org.phoebus.olog.entity;
  *
  */
 public class Attribute {
+
+    /**
+     * Values parsed by {@link #parseNumber(String)}.
+     */
+    public static final Pattern NUMBER = Pattern.compile("[-+]?(\\d+\\.?\\d*|\\.\\d+)([eE][-+]?\\d+)?");
+    /**
+     * Values parsed by {@link #parseDate(String)}.
+     */
+    public static final Pattern DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}([T ]\\d{2}:\\d{2}.*)?");
+
     private String name;
     private String value;
     private State state = State.Active;
@@ -88,6 +107,64 @@ public class Attribute {
     public void setValue(String value) {
         this.value = value;
     }
+    /**
+     * Getter for the value as number, indexed next to the value such that attributes are searched by range.
+     * It is only part of the Elasticsearch document, see {@link org.phoebus.olog.LogDocumentModule}.
+     *
+     * @return the value as number, or <code>null</code> if it is not a number
+     */
+    @JsonIgnore
+    public Double getDoubleValue() {
+        return parseNumber(value);
+    }
+
+    /**
+     * Getter for the value as date, indexed next to the value such that attributes are searched by range.
+     * It is only part of the Elasticsearch document, see {@link org.phoebus.olog.LogDocumentModule}.
+     *
+     * @return the value as epoch milliseconds, or <code>null</code> if it is not a date
+     */
+    @JsonIgnore
+    public Long getDateValue() {
+        return parseDate(value);
+    }
+
+    /**
+     * @param value An attribute value.
+     * @return The value as number, or <code>null</code> if it is not a finite decimal number.
+     */
+    public static Double parseNumber(String value) {
+        if (value == null || !NUMBER.matcher(value.strip()).matches()) {
+            return null;
+        }
+        double number = Double.parseDouble(value.strip());
+        return Double.isFinite(number) ? number : null;
+    }
+
+    /**
+     * @param value An attribute value.
+     * @return The value as epoch milliseconds, or <code>null</code> if it is not an ISO-8601 date, or date and
+     * time, optionally with offset. Dates and times without offset are in the time zone of the service.
+     */
+    public static Long parseDate(String value) {
+        if (value == null || !DATE.matcher(value.strip()).matches()) {
+            return null;
+        }
+        String date = value.strip().replace(' ', 'T');
+        try {
+            if (date.length() == 10) {
+                return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+            try {
+                return OffsetDateTime.parse(date).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return LocalDateTime.parse(date).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
     /**
      * Getter for attribute state.
      *
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog.entity;
+
+/**
+ * Outcome of one log entry in a bulk request. Items are reported in the same order as the
+ * log entries of the request.
+ */
+public class BulkItemResult {
+
+    /**
+     * HTTP status of the item, e.g. 201 if the log entry was created.
+     */
+    private int status;
+
+    /**
+     * The persisted log entry, <code>null</code> if the item failed.
+     */
+    private Log log;
+
+    /**
+     * Reason of a failure, <code>null</code> if the item succeeded.
+     */
+    private String error;
+
+    public BulkItemResult(){
+
+    }
+
+    public BulkItemResult(int status, Log log, String error){
+        this.status = status;
+        this.log = log;
+        this.error = error;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public Log getLog() {
+        return log;
+    }
+
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
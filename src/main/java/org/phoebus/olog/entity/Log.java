@@ -11,10 +11,14 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.springframework.data.annotation.Id;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreType;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
@@ -38,6 +42,7 @@ public class Log implements Serializable
 
     private String source;
     private String description;
+    private String html;
 
     @NotNull
     @Size(min = 1, message = "A title must be specified.")
@@ -55,6 +60,9 @@ public class Log implements Serializable
 
     private List<Event> events;
 
+    private Integer occurrences;
+    private String dedupKey;
+
     @NotNull
     @Size(min = 1, message = "At least one logbook must be specified.")
     private Set<Logbook> logbooks = new HashSet<Logbook>();
@@ -62,6 +70,7 @@ public class Log implements Serializable
     private Set<Property> properties = new HashSet<Property>();
 
     private Set<Attachment> attachments = new HashSet<Attachment>();
+    private List<String> attachmentText;
 
     private Log()
     {
@@ -315,6 +324,172 @@ public class Log implements Serializable
         this.properties = properties;
     }
 
+    /**
+     * Getter for the id of the log entry group, i.e. of the thread of replies, the log entry belongs to.
+     * It is derived from the {@link LogEntryGroupHelper#LOG_ENTRY_GROUP} property and indexed as a
+     * top-level keyword such that a whole thread is found with a single term query. It is only part of the
+     * Elasticsearch document, see {@link org.phoebus.olog.LogDocumentModule}.
+     * 
+     * @return the group id, or <code>null</code> if the log entry is not part of a group
+     */
+    @JsonIgnore
+    public String getGroupId()
+    {
+        return LogEntryGroupHelper.getGroupId(this);
+    }
+
+    /**
+     * Getter for the attributes of the properties flattened to <code>property.attribute=value</code>. They are
+     * indexed as a top-level keyword such that a property search for exact values is a single terms query
+     * rather than a nested one. Attributes without value are left out. It is only part of the Elasticsearch
+     * document, see {@link org.phoebus.olog.LogDocumentModule}.
+     *
+     * @return the flattened attributes, sorted
+     */
+    @JsonIgnore
+    public List<String> getPropertyAttributes()
+    {
+        Set<String> propertyAttributes = new TreeSet<>();
+        if (properties != null) {
+            for (Property property : properties) {
+                if (property.getAttributes() == null) {
+                    continue;
+                }
+                for (Attribute attribute : property.getAttributes()) {
+                    if (attribute.getName() != null && attribute.getValue() != null) {
+                        propertyAttributes.add(flattenAttribute(property.getName(), attribute.getName(), attribute.getValue()));
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(propertyAttributes);
+    }
+
+    /**
+     * Getter for the creation date and the instants of the events, in epoch milliseconds. They are indexed
+     * as a top-level date array such that a search including events is a single range query rather than a
+     * nested one. It is only part of the Elasticsearch document, see {@link org.phoebus.olog.LogDocumentModule}.
+     *
+     * @return the creation date, if set, followed by the instants of the events
+     */
+    @JsonIgnore
+    public List<Long> getEventTimes()
+    {
+        List<Long> eventTimes = new ArrayList<>();
+        if (createdDate != null) {
+            eventTimes.add(createdDate.toEpochMilli());
+        }
+        if (events != null) {
+            for (Event event : events) {
+                if (event.getInstant() != null) {
+                    eventTimes.add(event.getInstant().toEpochMilli());
+                }
+            }
+        }
+        return eventTimes;
+    }
+
+    /**
+     * @param property  The name of a property.
+     * @param attribute The name of an attribute of the property.
+     * @param value     The value of the attribute.
+     * @return The attribute as held by {@link #getPropertyAttributes()}.
+     */
+    public static String flattenAttribute(String property, String attribute, String value)
+    {
+        return property + "." + attribute + "=" + value;
+    }
+
+    /**
+     * Getter for the number of times the log entry has been submitted, see {@link #getDedupKey()}.
+     *
+     * @return the number of occurrences, or <code>null</code> if the log entry has been submitted once
+     */
+    public Integer getOccurrences()
+    {
+        return occurrences;
+    }
+
+    /**
+     * Setter for the number of occurrences
+     *
+     * @param occurrences - the number of occurrences
+     */
+    public void setOccurrences(Integer occurrences)
+    {
+        this.occurrences = occurrences;
+    }
+
+    /**
+     * Getter for the key identifying identical log entries submitted to a logbook with a dedup window. Such
+     * entries are merged into the first one, adding an occurrence event, instead of being created. The key
+     * is indexed as a top-level keyword. It is only part of the Elasticsearch document, see
+     * {@link org.phoebus.olog.LogDocumentModule}.
+     *
+     * @return the dedup key, or <code>null</code> if the log entry is not subject to merging
+     */
+    @JsonIgnore
+    public String getDedupKey()
+    {
+        return dedupKey;
+    }
+
+    /**
+     * Setter for the dedup key
+     *
+     * @param dedupKey - the dedup key
+     */
+    public void setDedupKey(String dedupKey)
+    {
+        this.dedupKey = dedupKey;
+    }
+
+    /**
+     * Getter for the source rendered to sanitized HTML by the markup cleaner when the log entry was written,
+     * such that clients need not render it again. It is stored but not indexed, and only returned when
+     * requested. It is ignored when a log entry is deserialized from a client.
+     *
+     * @return the rendered source, or <code>null</code> if the markup scheme does not render HTML
+     */
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getHtml()
+    {
+        return html;
+    }
+
+    /**
+     * Setter for the rendered source
+     *
+     * @param html - the sanitized HTML
+     */
+    public void setHtml(String html)
+    {
+        this.html = html;
+    }
+
+    /**
+     * Getter for the text extracted from the attachments by the {@link org.phoebus.olog.AttachmentTextExtractor}. It is indexed
+     * for searches, but never sent to or read from clients.
+     *
+     * @return the text of each attachment it has been extracted from, or <code>null</code> if none
+     */
+    @JsonIgnore
+    public List<String> getAttachmentText()
+    {
+        return attachmentText;
+    }
+
+    /**
+     * Setter for the extracted attachment text
+     *
+     * @param attachmentText - the text of each attachment
+     */
+    public void setAttachmentText(List<String> attachmentText)
+    {
+        this.attachmentText = attachmentText;
+    }
+
     /**
      * Getter for log attachments
      * 
@@ -386,10 +561,13 @@ public class Log implements Serializable
         private Instant createDate;
         private Instant modifyDate;
         private List<Event> events = new ArrayList<Event>();
+        private Integer occurrences;
+        private String dedupKey;
 
         private String owner;
         private StringBuilder source = new StringBuilder();
         private StringBuilder description = new StringBuilder();
+        private String html;
         private StringBuilder title = new StringBuilder();
 
         private String level = "Info";
@@ -399,6 +577,7 @@ public class Log implements Serializable
         private Set<Logbook> logbooks = new HashSet<Logbook>();
         private Set<Tag> tags = new HashSet<Tag>();
         private Set<Attachment> attachments = new HashSet<Attachment>();
+        private List<String> attachmentText;
 
         public LogBuilder()
         {
@@ -423,17 +602,21 @@ public class Log implements Serializable
                 this.source = new StringBuilder();
             }
             this.description = new StringBuilder(log.getDescription());
+            this.html = log.getHtml();
             this.title = new StringBuilder(log.getTitle());
             this.level = log.getLevel();
             this.state = log.getState();
 
             this.events = log.getEvents();
+            this.occurrences = log.getOccurrences();
+            this.dedupKey = log.getDedupKey();
 
             this.properties = log.getProperties();
             this.logbooks = log.getLogbooks();
             this.tags = log.getTags();
 
             this.attachments = log.getAttachments();
+            this.attachmentText = log.getAttachmentText();
         }
 
         public LogBuilder(String source)
@@ -625,15 +808,19 @@ public class Log implements Serializable
                 log.setModifyDate(modifyDate);
             }
             log.setEvents(events);
+            log.setOccurrences(occurrences);
+            log.setDedupKey(dedupKey);
             log.setDescription(this.description.toString());
             log.setTitle(this.title.toString());
             log.setSource(this.source.toString());
+            log.setHtml(html);
             log.setLevel(level);
             log.setState(state);
             log.setLogbooks(logbooks);
             log.setTags(tags);
             log.setProperties(properties);
             log.setAttachments(attachments);
+            log.setAttachmentText(attachmentText);
             return log;
         }
     }
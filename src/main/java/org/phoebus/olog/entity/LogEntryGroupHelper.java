@@ -38,14 +38,31 @@ public class LogEntryGroupHelper {
     public static Property getLogEntryGroupProperty(Log originalLogEntry){
         // Check if the original log entry already contains the log entry group property
         Set<Property> originalLogEntryProperties = originalLogEntry.getProperties();
-        Optional<Property> prop = null;
-        if(originalLogEntryProperties != null){
-            prop =
-                originalLogEntryProperties.stream().filter(property -> property.getName().equals(LOG_ENTRY_GROUP)).findFirst();
+        if(originalLogEntryProperties == null){
+            return null;
         }
+        Optional<Property> prop =
+                originalLogEntryProperties.stream().filter(property -> LOG_ENTRY_GROUP.equals(property.getName())).findFirst();
         return prop.isPresent() ? prop.get() : null;
     }
 
+    /**
+     * @param logEntry A log entry.
+     * @return The id of the log entry group the log entry belongs to, or <code>null</code> if it is not
+     * part of a group.
+     */
+    public static String getGroupId(Log logEntry){
+        Property property = getLogEntryGroupProperty(logEntry);
+        if(property == null || property.getAttributes() == null){
+            return null;
+        }
+        return property.getAttributes().stream()
+                .filter(attribute -> ATTRIBUTE_ID.equals(attribute.getName()) && attribute.getValue() != null)
+                .map(Attribute::getValue)
+                .findFirst()
+                .orElse(null);
+    }
+
     /**
      * @return A {@link Property} containing two {@link Attribute}s: one with the unique log entry group id,
      * one with the title of the original entry.
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog.entity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tags and logbooks to add to, or remove from, existing log entries. The log entries are identified by their
+ * ids, by search parameters, or both.
+ */
+public class LogLabelUpdate {
+
+    /**
+     * Ids of the log entries, empty to update the log entries matching the search parameters.
+     */
+    private List<Long> ids = new ArrayList<>();
+
+    /**
+     * Names of the tags to add.
+     */
+    private List<String> addTags = new ArrayList<>();
+
+    /**
+     * Names of the tags to remove.
+     */
+    private List<String> removeTags = new ArrayList<>();
+
+    /**
+     * Names of the logbooks to add.
+     */
+    private List<String> addLogbooks = new ArrayList<>();
+
+    /**
+     * Names of the logbooks to remove. Log entries that would be left without logbook are not updated.
+     */
+    private List<String> removeLogbooks = new ArrayList<>();
+
+    public LogLabelUpdate() {
+
+    }
+
+    public List<Long> getIds() {
+        return ids;
+    }
+
+    public void setIds(List<Long> ids) {
+        this.ids = ids;
+    }
+
+    public List<String> getAddTags() {
+        return addTags;
+    }
+
+    public void setAddTags(List<String> addTags) {
+        this.addTags = addTags;
+    }
+
+    public List<String> getRemoveTags() {
+        return removeTags;
+    }
+
+    public void setRemoveTags(List<String> removeTags) {
+        this.removeTags = removeTags;
+    }
+
+    public List<String> getAddLogbooks() {
+        return addLogbooks;
+    }
+
+    public void setAddLogbooks(List<String> addLogbooks) {
+        this.addLogbooks = addLogbooks;
+    }
+
+    public List<String> getRemoveLogbooks() {
+        return removeLogbooks;
+    }
+
+    public void setRemoveLogbooks(List<String> removeLogbooks) {
+        this.removeLogbooks = removeLogbooks;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog.entity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progress of a task updating log entries in the background, e.g. adding tags to the log entries matching
+ * a search.
+ */
+public class TaskStatus {
+
+    /**
+     * Id of the Elasticsearch task.
+     */
+    private String taskId;
+
+    private boolean completed;
+
+    /**
+     * Number of log entries to process, 0 until known.
+     */
+    private long total;
+
+    /**
+     * Number of log entries updated so far.
+     */
+    private long updated;
+
+    /**
+     * Number of log entries left unchanged, e.g. because they already had the tags to add.
+     */
+    private long noops;
+
+    /**
+     * Number of log entries skipped because they were modified concurrently.
+     */
+    private long versionConflicts;
+
+    /**
+     * Failures reported by Elasticsearch.
+     */
+    private List<String> failures = new ArrayList<>();
+
+    /**
+     * Reason the task failed, <code>null</code> if it did not.
+     */
+    private String error;
+
+    public TaskStatus() {
+
+    }
+
+    public TaskStatus(String taskId) {
+        this.taskId = taskId;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public void setTaskId(String taskId) {
+        this.taskId = taskId;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(boolean completed) {
+        this.completed = completed;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(long updated) {
+        this.updated = updated;
+    }
+
+    public long getNoops() {
+        return noops;
+    }
+
+    public void setNoops(long noops) {
+        this.noops = noops;
+    }
+
+    public long getVersionConflicts() {
+        return versionConflicts;
+    }
+
+    public void setVersionConflicts(long versionConflicts) {
+        this.versionConflicts = versionConflicts;
+    }
+
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    public void setFailures(List<String> failures) {
+        this.failures = failures;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog.entity;
+
+/**
+ * An attachment uploaded in chunks, which may be resumed after a failed transfer and is added to a log entry
+ * once complete.
+ */
+public class Upload {
+
+    private String id;
+
+    private String filename;
+
+    private String fileMetadataDescription;
+
+    /**
+     * Size of the attachment in bytes, as announced when the upload was created.
+     */
+    private long length;
+
+    /**
+     * Number of bytes received so far, i.e. where the next chunk starts.
+     */
+    private long offset;
+
+    public Upload() {
+
+    }
+
+    public Upload(String id, String filename, String fileMetadataDescription, long length, long offset) {
+        this.id = id;
+        this.filename = filename;
+        this.fileMetadataDescription = fileMetadataDescription;
+        this.length = length;
+        this.offset = offset;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public String getFileMetadataDescription() {
+        return fileMetadataDescription;
+    }
+
+    public void setFileMetadataDescription(String fileMetadataDescription) {
+        this.fileMetadataDescription = fileMetadataDescription;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * @return <code>true</code> if all bytes of the attachment have been received.
+     */
+    public boolean isComplete() {
+        return offset == length;
+    }
+}
@@ -38,4 +38,24 @@ public interface LogPropertyProvider {
      * if it applies a filter that rules out the log entry.
      */
     Property getProperty(Log log);
+
+    /**
+     * @return The time in milliseconds the service waits for {@link #getProperty(Log)} to return, or
+     * <code>0</code> to use the configured <code>propertyProvidersTimeout</code>.
+     */
+    default long getTimeout() {
+        return 0;
+    }
+
+    /**
+     * Providers whose {@link Property} does not depend on the log entry, e.g. a snapshot of machine state,
+     * may declare themselves cacheable. The {@link Property} returned is then added to the log entries
+     * created during this time without calling {@link #getProperty(Log)} again.
+     *
+     * @return The time in milliseconds a returned {@link Property} may be reused, or <code>0</code> if the
+     * provider is not cacheable.
+     */
+    default long getCacheTimeToLive() {
+        return 0;
+    }
 }
@@ -20,6 +20,7 @@ package org.phoebus.olog.entity.preprocess.impl;
 
 import org.commonmark.node.Node;
 import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
 import org.commonmark.renderer.text.TextContentRenderer;
 import org.phoebus.olog.entity.Log;
 import org.phoebus.olog.entity.preprocess.MarkupCleaner;
@@ -27,13 +28,18 @@ import org.phoebus.olog.entity.preprocess.MarkupCleaner;
 public class CommonmarkCleaner implements MarkupCleaner {
 
     private TextContentRenderer textContentRenderer = TextContentRenderer.builder().build();
+    /**
+     * Escapes raw HTML of the source and drops links and images with URLs other than http(s), mailto and data,
+     * such that the rendered HTML can be shown by clients as is.
+     */
+    private HtmlRenderer htmlRenderer = HtmlRenderer.builder().escapeHtml(true).sanitizeUrls(true).build();
     private Parser parser = Parser.builder().build();
 
     /**
      * Processes the log entry under the assumption that the description field of a {@link Log} object
      * client can be overwritten. This method treats the source field as a Commonmark source and copies 
      * it to the description field. Then the same string is processed to set the description field to a 
-     * "plain text" variant of the Commonmark source.
+     * "plain text" variant of the Commonmark source, and the html field to the sanitized HTML rendering of it.
      * @param log The {@link Log} entry to clean of markup.
      * @return The processed log entry.
      */
@@ -47,6 +53,7 @@ public class CommonmarkCleaner implements MarkupCleaner {
             Node document = parser.parse(log.getDescription());
             String plainText = textContentRenderer.render(document);
             log.setDescription(plainText);
+            log.setHtml(htmlRenderer.render(document));
             return log;
         }
         return log;
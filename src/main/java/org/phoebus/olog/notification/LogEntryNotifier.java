@@ -20,11 +20,27 @@ package org.phoebus.olog.notification;
 
 import org.phoebus.olog.entity.Log;
 
+import java.util.List;
+
 /**
  * Interface for notifying when a new log record has been created. Implementations should
  * register through the regular Java SPI mechanism.
- * See {@link org.phoebus.olog.LogResource}
+ * <p>
+ * New log entries are delivered from a persistent outbox, see {@link org.phoebus.olog.LogEntryOutbox},
+ * in batches and in creation order. A notification that throws an exception is retried, hence a log
+ * entry may be delivered more than once.
  */
 public interface LogEntryNotifier {
     void notify(Log logEntry);
+
+    /**
+     * Notifies a batch of new log entries. Implementations sending the log entries to another system should
+     * override this to do so in a single request. The default implementation calls {@link #notify(Log)} for
+     * each log entry.
+     *
+     * @param logEntries New log entries, oldest first.
+     */
+    default void notifyBatch(List<Log> logEntries) {
+        logEntries.forEach(this::notify);
+    }
 }
@@ -102,8 +102,14 @@ curl -H 'Content-Type: application/json' -XPUT 'http://localhost:9200/olog_seque
            "_source": {
                   "enabled": false
                },
-               "enabled": false
-
+           "properties": {
+                  "next": {
+                         "type": "long",
+                         "store": true,
+                         "index": false,
+                         "doc_values": false
+                  }
+           }
   }
 }
 '
@@ -145,6 +151,30 @@ curl -H 'Content-Type: application/json' -XPUT 'http://localhost:9200/olog_logs/
                     "type": "date",
                     "format": "epoch_millis||yyyy-MM-dd HH:mm:ss.SSS"
                 },
+                "groupId": {
+                    "type": "keyword"
+                },
+                "dedupKey": {
+                    "type": "keyword"
+                },
+                "occurrences": {
+                    "type": "integer"
+                },
+                "propertyAttributes": {
+                    "type": "keyword",
+                    "ignore_above": 8191
+                },
+                "attachmentText": {
+                    "type": "text"
+                },
+                "html": {
+                    "type": "text",
+                    "index": false
+                },
+                "eventTimes": {
+                    "type": "date",
+                    "format": "epoch_millis"
+                },
                 "events": {
                     "type": "nested",
                     "properties": {
@@ -158,29 +188,10 @@ curl -H 'Content-Type: application/json' -XPUT 'http://localhost:9200/olog_logs/
                     }
                 },
                 "logbooks": {
-                    "type": "nested",
-                    "properties": {
-                        "name": {
-                            "type": "keyword"
-                        },
-                        "owner": {
-                            "type": "keyword"
-                        },
-                        "state": {
-                            "type": "keyword"
-                        }
-                    }
+                    "type": "keyword"
                 },
                 "tags": {
-                    "type": "nested",
-                    "properties": {
-                        "name": {
-                            "type": "keyword"
-                        },
-                        "state": {
-                            "type": "keyword"
-                        }
-                    }
+                    "type": "keyword"
                 },
                 "properties": {
                     "type": "nested",
@@ -203,6 +214,13 @@ curl -H 'Content-Type: application/json' -XPUT 'http://localhost:9200/olog_logs/
                                 "value": {
                                     "type": "keyword"
                                 },
+                                "doubleValue": {
+                                    "type": "double"
+                                },
+                                "dateValue": {
+                                    "type": "date",
+                                    "format": "epoch_millis"
+                                },
                                 "state": {
                                     "type": "keyword"
                                 }
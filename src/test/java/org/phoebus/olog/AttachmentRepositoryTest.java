@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.phoebus.olog.entity.Attachment;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests streamed uploads of {@link AttachmentRepository} with a mocked {@link GridFSBucket}.
+ */
+public class AttachmentRepositoryTest {
+
+    private AttachmentRepository attachmentRepository;
+    private GridFSUploadStream uploadStream;
+    private final ObjectId objectId = new ObjectId();
+
+    @BeforeEach
+    public void init() {
+        GridFSBucket gridFSBucket = Mockito.mock(GridFSBucket.class);
+        uploadStream = Mockito.mock(GridFSUploadStream.class);
+        when(gridFSBucket.getChunkSizeBytes()).thenReturn(4);
+        when(gridFSBucket.openUploadStream(eq("file.txt"), any(GridFSUploadOptions.class))).thenReturn(uploadStream);
+        when(uploadStream.getObjectId()).thenReturn(objectId);
+        attachmentRepository = new AttachmentRepository();
+        ReflectionTestUtils.setField(attachmentRepository, "gridFSBucket", gridFSBucket);
+    }
+
+    @Test
+    public void testStreamedInChunks() throws Exception {
+        byte[] content = "0123456789".getBytes();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        Attachment attachment = attachmentRepository.save(new Attachment(null, "file.txt", "text/plain"),
+                new ByteArrayInputStream(content), 10, digest);
+
+        assertEquals(objectId.toString(), attachment.getId());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), digest.digest());
+        verify(uploadStream, times(2)).write(any(byte[].class), eq(0), eq(4));
+        verify(uploadStream).write(any(byte[].class), eq(0), eq(2));
+        verify(uploadStream).close();
+        verify(uploadStream, never()).abort();
+    }
+
+    @Test
+    public void testAbortedWhenTooLarge() throws Exception {
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class, () ->
+                attachmentRepository.save(new Attachment(null, "file.txt", "text/plain"),
+                        new ByteArrayInputStream("0123456789".getBytes()), 9, MessageDigest.getInstance("SHA-256")));
+
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, exception.getStatus());
+        verify(uploadStream).abort();
+        verify(uploadStream, never()).close();
+        verify(uploadStream, times(2)).write(any(byte[].class), anyInt(), anyInt());
+    }
+}
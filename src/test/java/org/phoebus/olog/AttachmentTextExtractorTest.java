@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch.core.UpdateRequest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.Log;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests {@link AttachmentTextExtractor} with a mocked Elasticsearch client and attachment store.
+ */
+public class AttachmentTextExtractorTest {
+
+    private AttachmentTextExtractor extractor;
+    private ElasticsearchClient client;
+    private AttachmentRepository attachmentRepository;
+
+    @BeforeEach
+    public void init() {
+        client = Mockito.mock(ElasticsearchClient.class);
+        attachmentRepository = Mockito.mock(AttachmentRepository.class);
+        extractor = new AttachmentTextExtractor();
+        ReflectionTestUtils.setField(extractor, "ES_LOG_INDEX", "olog_logs");
+        ReflectionTestUtils.setField(extractor, "enabled", true);
+        ReflectionTestUtils.setField(extractor, "types", new String[]{"text/plain", "text/csv", "application/pdf"});
+        ReflectionTestUtils.setField(extractor, "threads", 1);
+        ReflectionTestUtils.setField(extractor, "queueSize", 10);
+        ReflectionTestUtils.setField(extractor, "maxLength", 16);
+        ReflectionTestUtils.setField(extractor, "client", client);
+        ReflectionTestUtils.setField(extractor, "attachmentRepository", attachmentRepository);
+        ReflectionTestUtils.setField(extractor, "meterRegistry", new SimpleMeterRegistry());
+        extractor.init();
+    }
+
+    @AfterEach
+    public void shutdown() {
+        extractor.shutdown();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testTextIndexedIntoLogEntry() throws Exception {
+        Attachment stored = new Attachment("csv-id", new ByteArrayResource("time,current\n1,100\n2,101\n".getBytes(StandardCharsets.UTF_8)),
+                "beam.csv", "text/csv");
+        when(attachmentRepository.findById("csv-id")).thenReturn(Optional.of(stored));
+
+        extractor.submit("7", List.of(new Attachment("csv-id", null, "beam.csv", "text/csv"),
+                new Attachment("png-id", null, "screenshot.png", "image/png")));
+
+        ArgumentCaptor<UpdateRequest<Log, Log>> captor = ArgumentCaptor.forClass(UpdateRequest.class);
+        verify(client, timeout(5000)).update(captor.capture(), eq(Log.class));
+        UpdateRequest<Log, Log> request = captor.getValue();
+        assertEquals("7", request.id());
+        assertEquals(AttachmentTextExtractor.APPEND_TEXT_SCRIPT, request.script().inline().source());
+        // Truncated to the maximum length
+        assertEquals("time,current\n1,1", request.script().inline().params().get("text").to(String.class));
+        verify(attachmentRepository, never()).findById("png-id");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testTypeWithoutParserSkipped() throws Exception {
+        Attachment stored = new Attachment("csv-id", new ByteArrayResource("time,current".getBytes(StandardCharsets.UTF_8)),
+                "beam.csv", "text/csv");
+        when(attachmentRepository.findById("csv-id")).thenReturn(Optional.of(stored));
+
+        // Only tika-core is on the test class path, hence there is no PDF parser
+        extractor.submit("7", List.of(new Attachment("pdf-id", null, "report.pdf", "application/pdf"),
+                new Attachment("csv-id", null, "beam.csv", "text/csv")));
+
+        verify(client, timeout(5000)).update(any(UpdateRequest.class), eq(Log.class));
+        verify(attachmentRepository, never()).findById("pdf-id");
+    }
+
+    @Test
+    public void testContentType() {
+        assertEquals("text/csv", AttachmentTextExtractor.getContentType(new Attachment(null, null, "data.bin", "text/csv; charset=utf-8")));
+        assertEquals("application/pdf", AttachmentTextExtractor.getContentType(new Attachment(null, null, "report.pdf", "Shift report")));
+        assertNull(AttachmentTextExtractor.getContentType(new Attachment(null, null, null, null)));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import org.junit.jupiter.api.Test;
+import org.phoebus.olog.entity.State;
+import org.phoebus.olog.entity.Tag;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests {@link Catalog} loading and versioning.
+ */
+public class CatalogTest {
+
+    @Test
+    public void testLoadedOnce() throws Exception {
+        Catalog catalog = new Catalog();
+        AtomicInteger loads = new AtomicInteger();
+        Catalog.Loader<Tag> loader = () -> {
+            loads.incrementAndGet();
+            return List.of(new Tag("b"), new Tag("a"));
+        };
+        catalog.getTags().load(loader);
+        catalog.getTags().load(loader);
+
+        assertEquals(1, loads.get());
+        assertEquals(List.of("a", "b"), names(catalog));
+    }
+
+    @Test
+    public void testWritesChangeVersion() throws Exception {
+        Catalog catalog = new Catalog();
+        // Ignored until loaded
+        catalog.getTags().put(new Tag("a"));
+        assertTrue(catalog.getTags().getAll().isEmpty());
+
+        catalog.getTags().load(List::of);
+        String etag = catalog.getETag();
+        catalog.getTags().put(new Tag("a"));
+        assertNotEquals(etag, catalog.getETag());
+        assertEquals(List.of("a"), names(catalog));
+
+        etag = catalog.getETag();
+        catalog.getTags().put(new Tag("a", State.Inactive));
+        assertNotEquals(etag, catalog.getETag());
+        assertEquals(State.Inactive, catalog.getTags().getAll().iterator().next().getState());
+    }
+
+    @Test
+    public void testReloadedAfterRefreshInterval() throws Exception {
+        Catalog catalog = new Catalog();
+        catalog.setRefreshInterval(0);
+        AtomicInteger loads = new AtomicInteger();
+        List<Tag> stored = new ArrayList<>(List.of(new Tag("a")));
+        catalog.getTags().load(() -> {
+            loads.incrementAndGet();
+            return List.copyOf(stored);
+        });
+
+        // Unchanged, the ETag is kept
+        String etag = catalog.getETag();
+        assertEquals(etag, catalog.getETag());
+        assertTrue(loads.get() > 1);
+
+        // Created and deactivated by another instance
+        stored.add(new Tag("b"));
+        stored.set(0, new Tag("a", State.Inactive));
+        assertNotEquals(etag, catalog.getETag());
+        assertEquals(List.of("a", "b"), names(catalog));
+        assertEquals(State.Inactive, catalog.getTags().get("a").getState());
+    }
+
+    @Test
+    public void testFailedReloadKeepsItems() throws Exception {
+        Catalog catalog = new Catalog();
+        catalog.setRefreshInterval(0);
+        AtomicInteger loads = new AtomicInteger();
+        catalog.getTags().load(() -> {
+            if (loads.incrementAndGet() > 1) {
+                throw new IOException("unavailable");
+            }
+            return List.of(new Tag("a"));
+        });
+        String etag = catalog.getETag();
+        assertEquals(etag, catalog.getETag());
+        assertEquals(List.of("a"), names(catalog));
+    }
+
+    private static List<String> names(Catalog catalog) {
+        return catalog.getTags().getAll().stream().map(Tag::getName).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.ErrorResponse;
+import co.elastic.clients.elasticsearch.core.CreateRequest;
+import co.elastic.clients.elasticsearch.core.GetRequest;
+import co.elastic.clients.elasticsearch.core.GetResponse;
+import co.elastic.clients.elasticsearch.core.IndexRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests claiming idempotency keys by {@link IdempotencyStore} against a mocked {@link ElasticsearchClient}.
+ */
+public class IdempotencyStoreTest {
+
+    private IdempotencyStore idempotencyStore;
+    private ElasticsearchClient client;
+
+    @BeforeEach
+    public void init() {
+        client = Mockito.mock(ElasticsearchClient.class);
+        idempotencyStore = new IdempotencyStore();
+        idempotencyStore.client = client;
+        ReflectionTestUtils.setField(idempotencyStore, "ES_IDEMPOTENCY_INDEX", "olog_idempotency_keys");
+        ReflectionTestUtils.setField(idempotencyStore, "ttl", 86400000L);
+        ReflectionTestUtils.setField(idempotencyStore, "pendingTimeout", 60000L);
+    }
+
+    @Test
+    public void testNewKeyClaimed() throws Exception {
+        assertNull(idempotencyStore.claim("key", "user", "PUT /logs"));
+        verify(client).create(any(CreateRequest.class));
+    }
+
+    @Test
+    public void testCompletedKeyReturnsLogId() throws Exception {
+        existing(IdempotencyStore.COMPLETED, "PUT /logs", System.currentTimeMillis());
+
+        assertEquals("7", idempotencyStore.claim("key", "user", "PUT /logs"));
+    }
+
+    @Test
+    public void testKeyOfOtherRequestRejected() throws Exception {
+        existing(IdempotencyStore.COMPLETED, "POST /logs/attachments/7", System.currentTimeMillis());
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> idempotencyStore.claim("key", "user", "PUT /logs"));
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, exception.getStatus());
+    }
+
+    @Test
+    public void testPendingKeyConflicts() throws Exception {
+        existing(IdempotencyStore.PENDING, "PUT /logs", System.currentTimeMillis());
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> idempotencyStore.claim("key", "user", "PUT /logs"));
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+    }
+
+    @Test
+    public void testAbandonedKeyClaimedAgain() throws Exception {
+        existing(IdempotencyStore.PENDING, "PUT /logs", System.currentTimeMillis() - 120000);
+
+        assertNull(idempotencyStore.claim("key", "user", "PUT /logs"));
+        verify(client).index(any(IndexRequest.class));
+    }
+
+    @Test
+    public void testProceedsWhenElasticsearchFails() throws Exception {
+        when(client.create(any(CreateRequest.class))).thenThrow(new IOException("unavailable"));
+
+        assertNull(idempotencyStore.claim("key", "user", "PUT /logs"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void existing(String state, String request, long created) throws IOException {
+        when(client.create(any(CreateRequest.class))).thenThrow(new ElasticsearchException("create",
+                ErrorResponse.of(e -> e.status(409).error(c -> c.type("version_conflict_engine_exception").reason("exists")))));
+        IdempotencyStore.Record record = new IdempotencyStore.Record("user", request, state, "7", created);
+        when(client.get(any(GetRequest.class), eq(IdempotencyStore.Record.class))).thenReturn(GetResponse.of(g ->
+                g.index("olog_idempotency_keys").id("id").found(true).seqNo(1L).primaryTerm(1L).source(record)));
+    }
+}
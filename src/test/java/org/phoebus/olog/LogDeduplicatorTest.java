@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.Event;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Log.LogBuilder;
+import org.phoebus.olog.entity.Logbook;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests merging of repeated log entries by {@link LogDeduplicator} with a mocked {@link LogRepository}.
+ */
+public class LogDeduplicatorTest {
+
+    private LogDeduplicator logDeduplicator;
+    private LogRepository logRepository;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void init() {
+        logRepository = Mockito.mock(LogRepository.class);
+        meterRegistry = new SimpleMeterRegistry();
+        logDeduplicator = new LogDeduplicator();
+        ReflectionTestUtils.setField(logDeduplicator, "logRepository", logRepository);
+        ReflectionTestUtils.setField(logDeduplicator, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(logDeduplicator, "windows", "Alarms=60, Operations=10, Broken");
+        ReflectionTestUtils.setField(logDeduplicator, "maxEvents", 100);
+        logDeduplicator.init();
+    }
+
+    @Test
+    public void testMergedIntoRecentEntry() {
+        Log first = log("Alarms");
+        assertNull(logDeduplicator.coalesce(first, null));
+        assertNotNull(first.getDedupKey());
+        Log created = LogBuilder.createLog(first).id(7L).createDate(Instant.now()).build();
+        logDeduplicator.created(created);
+
+        Log merged = LogBuilder.createLog(created).build();
+        merged.setOccurrences(2);
+        when(logRepository.addOccurrence(eq("7"), eq(first.getDedupKey()), any(Instant.class),
+                argThat(e -> e != null && e.getName().equals(LogDeduplicator.OCCURRENCE_EVENT)), eq(100), isNull()))
+                .thenReturn(merged);
+
+        assertEquals(merged, logDeduplicator.coalesce(log("Alarms"), null));
+        // Found in the recently created entries, and once before the first entry was created
+        verify(logRepository, Mockito.times(1)).findByDedupKey(anyString(), any(Instant.class));
+        assertEquals(1.0, meterRegistry.counter("olog.log.coalesced").count());
+    }
+
+    @Test
+    public void testMergedIntoSearchedEntry() {
+        Log log = log("Alarms", "Operations");
+        when(logRepository.findByDedupKey(anyString(), any(Instant.class))).thenAnswer(invocation -> {
+            Instant since = invocation.getArgument(1);
+            // The shortest window of the logbooks applies
+            assertEquals(10, Instant.now().getEpochSecond() - since.getEpochSecond(), 1);
+            return "3";
+        });
+
+        logDeduplicator.coalesce(log, null);
+
+        verify(logRepository).addOccurrence(eq("3"), eq(log.getDedupKey()), any(Instant.class), any(Event.class), anyInt(), isNull());
+    }
+
+    @Test
+    public void testCreatedWhenExistingEntryDoesNotMatch() {
+        when(logRepository.findByDedupKey(anyString(), any(Instant.class))).thenReturn("3");
+        when(logRepository.addOccurrence(anyString(), anyString(), any(Instant.class), any(Event.class), anyInt(), any())).thenReturn(null);
+
+        assertNull(logDeduplicator.coalesce(log("Alarms"), null));
+        assertEquals(0.0, meterRegistry.counter("olog.log.coalesced").count());
+    }
+
+    @Test
+    public void testNotMerged() {
+        Log log = log("Alarms", "Physics");
+        assertNull(logDeduplicator.coalesce(log, null));
+        assertNull(log.getDedupKey());
+
+        Log logWithAttachment = LogBuilder.createLog(log("Alarms"))
+                .withAttachment(new Attachment(new MockMultipartFile("image.png", new byte[]{1}), "image.png", "image/png"))
+                .build();
+        assertNull(logDeduplicator.coalesce(logWithAttachment, null));
+        assertNull(logWithAttachment.getDedupKey());
+
+        verify(logRepository, never()).findByDedupKey(anyString(), any(Instant.class));
+    }
+
+    @Test
+    public void testDedupKey() {
+        String dedupKey = LogDeduplicator.getDedupKey(log("Alarms", "Operations"));
+        assertEquals(dedupKey, LogDeduplicator.getDedupKey(log("Operations", "Alarms")));
+        Log other = log("Alarms", "Operations");
+        other.setDescription("other description");
+        assertNotEquals(dedupKey, LogDeduplicator.getDedupKey(other));
+    }
+
+    private static Log log(String... logbooks) {
+        LogBuilder logBuilder = LogBuilder.createLog()
+                .owner("user")
+                .title("Vacuum alarm")
+                .description("Pressure above threshold");
+        for (String logbook : logbooks) {
+            logBuilder.withLogbook(new Logbook(logbook, "user"));
+        }
+        return logBuilder.build();
+    }
+}
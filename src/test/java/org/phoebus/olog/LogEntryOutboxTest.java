@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Log.LogBuilder;
+import org.phoebus.olog.entity.Logbook;
+import org.phoebus.olog.notification.LogEntryNotifier;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests batched delivery, retries and recovery of the {@link LogEntryOutbox} on a temporary directory.
+ */
+public class LogEntryOutboxTest {
+
+    @TempDir
+    Path directory;
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    public void testFailedBatchRetried() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        List<Long> notified = new CopyOnWriteArrayList<>();
+        LogEntryNotifier notifier = new LogEntryNotifier() {
+            @Override
+            public void notify(Log logEntry) {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new IllegalStateException("unavailable");
+                }
+                notified.add(logEntry.getId());
+            }
+        };
+        LogEntryOutbox outbox = createOutbox(notifier);
+        outbox.add(log(1L));
+        outbox.add(log(2L));
+
+        await(() -> notified.size() == 2);
+        assertEquals(List.of(1L, 2L), notified);
+        assertEquals(1.0, meterRegistry.get("olog.notification.failures").counter().count());
+        await(() -> meterRegistry.get("olog.notification.outbox.depth").gauge().value() == 0);
+        outbox.shutdown();
+    }
+
+    @Test
+    public void testFailingNotifierDoesNotDelayOthers() throws Exception {
+        RecordingNotifier failing = new RecordingNotifier(true);
+        List<Long> notified = new CopyOnWriteArrayList<>();
+        LogEntryNotifier notifier = new LogEntryNotifier() {
+            @Override
+            public void notify(Log logEntry) {
+                notified.add(logEntry.getId());
+            }
+        };
+        LogEntryOutbox outbox = createOutbox(failing, notifier);
+        outbox.add(log(1L));
+        outbox.add(log(2L));
+
+        await(() -> notified.size() == 2);
+        assertEquals(List.of(1L, 2L), notified);
+        assertEquals(2.0, meterRegistry.get("olog.notification.outbox.depth")
+                .tag("notifier", RecordingNotifier.class.getName()).gauge().value());
+        outbox.shutdown();
+    }
+
+    @Test
+    public void testPendingLogEntriesDeliveredAfterRestart() throws Exception {
+        LogEntryOutbox outbox = createOutbox(new RecordingNotifier(true));
+        outbox.add(log(1L));
+        outbox.add(log(2L));
+        await(() -> meterRegistry.find("olog.notification.failures").counter() != null);
+        assertTrue(meterRegistry.get("olog.notification.lag").gauge().value() > 0);
+        outbox.shutdown();
+
+        RecordingNotifier notifier = new RecordingNotifier(false);
+        outbox = createOutbox(notifier);
+        await(() -> !notifier.batches.isEmpty());
+        assertEquals(List.of(List.of(1L, 2L)), notifier.batches);
+        outbox.shutdown();
+    }
+
+    @Test
+    public void testLogEntriesDeliveredAsInRestApi() throws Exception {
+        List<Log> notified = new CopyOnWriteArrayList<>();
+        LogEntryOutbox outbox = createOutbox(new LogEntryNotifier() {
+            @Override
+            public void notify(Log logEntry) {
+                notified.add(logEntry);
+            }
+        });
+        Log log = log(1L);
+        log.setLogbooks(Set.of(new Logbook("operations", "operator")));
+        outbox.add(log);
+
+        await(() -> notified.size() == 1);
+        Logbook logbook = notified.get(0).getLogbooks().iterator().next();
+        assertEquals("operations", logbook.getName());
+        assertEquals("operator", logbook.getOwner());
+        outbox.shutdown();
+    }
+
+    private LogEntryOutbox createOutbox(LogEntryNotifier... notifiers) throws Exception {
+        LogEntryOutbox outbox = new LogEntryOutbox();
+        ReflectionTestUtils.setField(outbox, "directory", directory.toString());
+        ReflectionTestUtils.setField(outbox, "segmentSize", 4096);
+        ReflectionTestUtils.setField(outbox, "batchSize", 10);
+        ReflectionTestUtils.setField(outbox, "retryDelay", 10L);
+        ReflectionTestUtils.setField(outbox, "maxRetryDelay", 100L);
+        ReflectionTestUtils.setField(outbox, "maxAttempts", 1000);
+        ReflectionTestUtils.setField(outbox, "logEntryNotifiers", List.of(notifiers));
+        ReflectionTestUtils.setField(outbox, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(outbox, "objectMapper", new ObjectMapper());
+        outbox.init();
+        return outbox;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Records the ids of the batches it is notified of, or fails if <code>failing</code>. A named class, such that
+     * it finds its outbox again after a restart.
+     */
+    private static class RecordingNotifier implements LogEntryNotifier {
+
+        private final boolean failing;
+        private final List<List<Long>> batches = new CopyOnWriteArrayList<>();
+
+        private RecordingNotifier(boolean failing) {
+            this.failing = failing;
+        }
+
+        @Override
+        public void notify(Log logEntry) {
+        }
+
+        @Override
+        public void notifyBatch(List<Log> logEntries) {
+            if (failing) {
+                throw new IllegalStateException("unavailable");
+            }
+            batches.add(logEntries.stream().map(Log::getId).collect(Collectors.toList()));
+        }
+    }
+
+    private static Log log(long id) {
+        return LogBuilder.createLog()
+                .id(id)
+                .owner("user")
+                .title("title " + id)
+                .createDate(Instant.now().minusSeconds(10))
+                .build();
+    }
+}
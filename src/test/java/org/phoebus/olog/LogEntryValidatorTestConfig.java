@@ -40,6 +40,11 @@ public class LogEntryValidatorTestConfig {
         return Mockito.mock(TagRepository.class);
     }
 
+    @Bean
+    public Catalog catalog(){
+        return new Catalog();
+    }
+
     @Bean("client")
     public ElasticsearchClient client() {
         return Mockito.mock(ElasticsearchClient.class);
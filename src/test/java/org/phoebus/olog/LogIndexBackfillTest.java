@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.ErrorResponse;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.CountRequest;
+import co.elastic.clients.elasticsearch.core.CountResponse;
+import co.elastic.clients.elasticsearch.core.IndexRequest;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryRequest;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryResponse;
+import co.elastic.clients.elasticsearch.tasks.ElasticsearchTasksClient;
+import co.elastic.clients.elasticsearch.tasks.GetTasksRequest;
+import co.elastic.clients.elasticsearch.tasks.GetTasksResponse;
+import co.elastic.clients.elasticsearch.tasks.TaskInfo;
+import co.elastic.clients.elasticsearch.tasks.TaskStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the task handling and locking of {@link LogIndexBackfill} against a mocked {@link ElasticsearchClient}.
+ */
+public class LogIndexBackfillTest {
+
+    private ElasticsearchClient client;
+    private ElasticsearchTasksClient tasksClient;
+    private LogIndexBackfill logIndexBackfill;
+
+    private final LogIndexBackfill.Backfill backfill = new LogIndexBackfill.Backfill("eventTimes",
+            Query.of(q -> q.matchAll(m -> m)), LogIndexBackfill.EVENT_TIMES_SCRIPT, Map.of());
+
+    @BeforeEach
+    public void init() throws Exception {
+        client = Mockito.mock(ElasticsearchClient.class);
+        tasksClient = Mockito.mock(ElasticsearchTasksClient.class);
+        when(client.tasks()).thenReturn(tasksClient);
+        when(client.updateByQuery(any(UpdateByQueryRequest.class))).thenReturn(UpdateByQueryResponse.of(u -> u.task("node:1")));
+
+        logIndexBackfill = new LogIndexBackfill();
+        ReflectionTestUtils.setField(logIndexBackfill, "client", client);
+        ReflectionTestUtils.setField(logIndexBackfill, "ES_LOG_INDEX", "olog_logs");
+        ReflectionTestUtils.setField(logIndexBackfill, "ES_SEQ_INDEX", "olog_sequence");
+        ReflectionTestUtils.setField(logIndexBackfill, "enabled", true);
+        ReflectionTestUtils.setField(logIndexBackfill, "requestsPerSecond", 500L);
+        ReflectionTestUtils.setField(logIndexBackfill, "batchSize", 500L);
+    }
+
+    @Test
+    public void testRunUntilNoneLeft() throws Exception {
+        whenCount(10, 3, 0);
+        whenTaskCompleted(3, 0);
+
+        logIndexBackfill.run(backfill);
+
+        verify(client, times(2)).updateByQuery(any(UpdateByQueryRequest.class));
+    }
+
+    @Test
+    public void testRunStopsWithoutConflicts() throws Exception {
+        // Two log entries have no value to derive the field from, another task would not change them
+        whenCount(10, 2);
+        whenTaskCompleted(0);
+
+        logIndexBackfill.run(backfill);
+
+        verify(client, times(1)).updateByQuery(any(UpdateByQueryRequest.class));
+    }
+
+    @Test
+    public void testNothingToBackfill() throws Exception {
+        whenCount(0);
+
+        logIndexBackfill.backfill();
+
+        verify(client, never()).index(any(IndexRequest.class));
+        verify(client, never()).updateByQuery(any(UpdateByQueryRequest.class));
+        assertTrue(logIndexBackfill.isEventTimesBackfilled());
+    }
+
+    @Test
+    public void testBackfillUnderLock() throws Exception {
+        // Only the event times are missing, on 5 log entries
+        whenCount(0, 0, 0, 5, 5, 0, 0);
+        whenTaskCompleted(0);
+
+        logIndexBackfill.backfill();
+
+        verify(client, times(1)).index(any(IndexRequest.class));
+        verify(client, times(1)).updateByQuery(any(UpdateByQueryRequest.class));
+        assertTrue(logIndexBackfill.isEventTimesBackfilled());
+    }
+
+    @Test
+    public void testBackfillLockedByOtherInstance() throws Exception {
+        whenCount(5, 5, 5, 5, 0);
+        when(client.index(any(IndexRequest.class))).thenThrow(new ElasticsearchException("index",
+                ErrorResponse.of(e -> e.status(409).error(c -> c.type("version_conflict_engine_exception").reason("conflict")))));
+
+        logIndexBackfill.backfill();
+
+        verify(client, never()).updateByQuery(any(UpdateByQueryRequest.class));
+        assertTrue(logIndexBackfill.isEventTimesBackfilled());
+    }
+
+    @Test
+    public void testBackfillDisabled() throws Exception {
+        ReflectionTestUtils.setField(logIndexBackfill, "enabled", false);
+        whenCount(5, 5, 5, 5, 0);
+
+        logIndexBackfill.backfill();
+
+        verify(client, never()).index(any(IndexRequest.class));
+        verify(client, never()).updateByQuery(any(UpdateByQueryRequest.class));
+        assertTrue(logIndexBackfill.isEventTimesBackfilled());
+    }
+
+    @Test
+    public void testEventTimesNotBackfilledOnFailure() throws Exception {
+        whenCount(5, 5, 5, 5, 5);
+        when(tasksClient.get(any(GetTasksRequest.class))).thenReturn(GetTasksResponse.of(r -> r.completed(true)
+                .task(this::taskInfo)
+                .response(s -> taskStatus(s, 0, List.of("mapper_parsing_exception")))));
+
+        logIndexBackfill.backfill();
+
+        verify(client, times(1)).updateByQuery(any(UpdateByQueryRequest.class));
+        assertFalse(logIndexBackfill.isEventTimesBackfilled());
+    }
+
+    private void whenCount(long first, long... next) throws Exception {
+        CountResponse[] responses = new CountResponse[next.length];
+        for (int i = 0; i < next.length; i++) {
+            responses[i] = countResponse(next[i]);
+        }
+        when(client.count(any(CountRequest.class))).thenReturn(countResponse(first), responses);
+    }
+
+    private CountResponse countResponse(long count) {
+        return CountResponse.of(c -> c.count(count).shards(s -> s.total(1).successful(1).failed(0)));
+    }
+
+    private void whenTaskCompleted(long firstConflicts, long... nextConflicts) throws Exception {
+        GetTasksResponse[] responses = new GetTasksResponse[nextConflicts.length];
+        for (int i = 0; i < nextConflicts.length; i++) {
+            responses[i] = completedTask(nextConflicts[i]);
+        }
+        when(tasksClient.get(any(GetTasksRequest.class))).thenReturn(completedTask(firstConflicts), responses);
+    }
+
+    private GetTasksResponse completedTask(long versionConflicts) {
+        return GetTasksResponse.of(r -> r.completed(true)
+                .task(this::taskInfo)
+                .response(s -> taskStatus(s, versionConflicts, List.of())));
+    }
+
+    private TaskInfo.Builder taskInfo(TaskInfo.Builder t) {
+        return t.action("indices:data/write/update/byquery").cancellable(true).headers(Map.of())
+                .id(1).node("node").runningTimeInNanos(1).startTimeInMillis(0).type("transport");
+    }
+
+    private TaskStatus.Builder taskStatus(TaskStatus.Builder s, long versionConflicts, List<String> failures) {
+        return s.batches(1).created(0).deleted(0).noops(0).requestsPerSecond(500)
+                .retries(r -> r.bulk(0).search(0)).throttledMillis(0).throttledUntilMillis(0)
+                .total(10).updated(10 - versionConflicts).versionConflicts(versionConflicts).failures(failures);
+    }
+}
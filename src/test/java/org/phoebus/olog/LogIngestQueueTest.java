@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.phoebus.olog.entity.BulkItemResult;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Log.LogBuilder;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests {@link LogIngestQueue} with a mocked {@link LogRepository}.
+ */
+public class LogIngestQueueTest {
+
+    @TempDir
+    Path directory;
+
+    private LogIngestQueue logIngestQueue;
+    private LogRepository logRepository;
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void init() {
+        logRepository = Mockito.mock(LogRepository.class);
+        meterRegistry = new SimpleMeterRegistry();
+        logIngestQueue = new LogIngestQueue();
+        ReflectionTestUtils.setField(logIngestQueue, "enabled", true);
+        ReflectionTestUtils.setField(logIngestQueue, "batchSize", 2);
+        ReflectionTestUtils.setField(logIngestQueue, "flushInterval", 50L);
+        ReflectionTestUtils.setField(logIngestQueue, "logRepository", logRepository);
+        ReflectionTestUtils.setField(logIngestQueue, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(logIngestQueue, "journal", new LogJournal());
+    }
+
+    @Test
+    public void testQueuedLogsIndexedInBatches() {
+        ReflectionTestUtils.setField(logIngestQueue, "capacity", 10);
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        when(logRepository.index(anyList(), isNull())).thenAnswer(invocation -> {
+            List<Log> documents = invocation.getArgument(0);
+            batchSizes.add(documents.size());
+            return documents.stream()
+                    .map(log -> new BulkItemResult(HttpStatus.CREATED.value(), log, null))
+                    .collect(Collectors.toList());
+        });
+        List<Long> indexed = new CopyOnWriteArrayList<>();
+        logIngestQueue.init();
+        for (long id = 1; id <= 5; id++) {
+            assertTrue(logIngestQueue.offer(LogBuilder.createLog().id(id).build(), log -> indexed.add(log.getId())));
+        }
+        // Queued log entries are flushed on shutdown
+        logIngestQueue.shutdown();
+
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), indexed);
+        assertTrue(batchSizes.stream().allMatch(size -> size <= 2));
+        assertEquals(0, meterRegistry.get("olog.ingest.queue.depth").gauge().value());
+        assertEquals(batchSizes.size(), meterRegistry.get("olog.ingest.flush").timer().count());
+    }
+
+    @Test
+    public void testFailedBatchRetried() throws Exception {
+        ReflectionTestUtils.setField(logIngestQueue, "capacity", 10);
+        AtomicInteger attempts = new AtomicInteger();
+        when(logRepository.index(anyList(), isNull())).thenAnswer(invocation -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Elasticsearch unavailable");
+            }
+            List<Log> documents = invocation.getArgument(0);
+            return documents.stream()
+                    .map(log -> new BulkItemResult(HttpStatus.CREATED.value(), log, null))
+                    .collect(Collectors.toList());
+        });
+        List<Long> indexed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        logIngestQueue.init();
+        assertTrue(logIngestQueue.offer(LogBuilder.createLog().id(1L).build(), log -> {
+            throw new IllegalStateException("Notifier failed");
+        }));
+        assertTrue(logIngestQueue.offer(LogBuilder.createLog().id(2L).build(), log -> {
+            indexed.add(log.getId());
+            done.countDown();
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        logIngestQueue.shutdown();
+
+        // Retried after the first failure, and a failing callback does not stop the writer
+        assertTrue(attempts.get() >= 2);
+        assertEquals(List.of(2L), indexed);
+    }
+
+    @Test
+    public void testQueuedLogsJournaled() throws Exception {
+        ReflectionTestUtils.setField(logIngestQueue, "capacity", 10);
+        LogJournal journal = openJournal();
+        ReflectionTestUtils.setField(logIngestQueue, "journal", journal);
+        // Elasticsearch accepts log entry 1 but is overloaded for log entry 2
+        when(logRepository.index(anyList(), isNull())).thenAnswer(invocation -> {
+            List<Log> documents = invocation.getArgument(0);
+            return documents.stream()
+                    .map(log -> log.getId() == 1L
+                            ? new BulkItemResult(HttpStatus.CREATED.value(), log, null)
+                            : new BulkItemResult(HttpStatus.TOO_MANY_REQUESTS.value(), null, "rejected"))
+                    .collect(Collectors.toList());
+        });
+        logIngestQueue.init();
+        assertTrue(logIngestQueue.offer(LogBuilder.createLog().id(1L).build(), log -> { }));
+        assertTrue(logIngestQueue.offer(LogBuilder.createLog().id(2L).build(), log -> { }));
+        logIngestQueue.shutdown();
+        journal.close();
+
+        // Log entry 2 is replayed once the service starts again, and keeps its attachments
+        LogJournal recovered = openJournal();
+        assertEquals(List.of(2L), recovered.getDeferred(10).stream()
+                .map(entry -> entry.getLog().getId()).collect(Collectors.toList()));
+        recovered.close();
+        verify(logRepository, never()).deleteAttachments(any());
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        ReflectionTestUtils.setField(logIngestQueue, "capacity", 1);
+        CountDownLatch indexing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(logRepository.index(anyList(), isNull())).thenAnswer(invocation -> {
+            indexing.countDown();
+            release.await();
+            return new ArrayList<BulkItemResult>();
+        });
+        logIngestQueue.init();
+        assertTrue(logIngestQueue.offer(LogBuilder.createLog().id(1L).build(), log -> { }));
+        // The writer is now blocked indexing the first log entry
+        assertTrue(indexing.await(5, TimeUnit.SECONDS));
+        assertTrue(logIngestQueue.offer(LogBuilder.createLog().id(2L).build(), log -> { }));
+        assertFalse(logIngestQueue.offer(LogBuilder.createLog().id(3L).build(), log -> { }));
+        assertEquals(1, meterRegistry.get("olog.ingest.rejected").counter().count());
+
+        release.countDown();
+        logIngestQueue.shutdown();
+    }
+
+    private LogJournal openJournal() throws IOException {
+        LogJournal journal = new LogJournal();
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "directory", directory.toString());
+        ReflectionTestUtils.setField(journal, "segmentSize", 4096);
+        journal.init();
+        return journal;
+    }
+}
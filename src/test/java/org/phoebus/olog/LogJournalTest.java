@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Log.LogBuilder;
+import org.phoebus.olog.entity.Logbook;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests {@link LogJournal} recovery and segment handling on a temporary directory.
+ */
+public class LogJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testUnindexedEntriesRecoveredOnStartup() throws Exception {
+        LogJournal journal = openJournal(4096);
+        LogJournal.Entry first = journal.append(log(1L));
+        journal.append(log(2L));
+        journal.append(log(3L));
+        journal.markIndexed(first);
+        journal.close();
+
+        journal = openJournal(4096);
+        List<LogJournal.Entry> deferred = journal.getDeferred(10);
+        assertEquals(List.of(2L, 3L), deferred.stream().map(e -> e.getLog().getId()).collect(Collectors.toList()));
+        assertEquals("title 2", deferred.get(0).getLog().getTitle());
+
+        deferred.forEach(journal::replayed);
+        assertFalse(journal.hasDeferred());
+        journal.close();
+
+        journal = openJournal(4096);
+        assertFalse(journal.hasDeferred());
+        journal.close();
+    }
+
+    @Test
+    public void testSegmentsDeletedWhenIndexed() throws Exception {
+        LogJournal journal = openJournal(1024);
+        List<LogJournal.Entry> entries = new ArrayList<>();
+        for (long id = 1; id <= 20; id++) {
+            entries.add(journal.append(log(id)));
+        }
+        assertTrue(segmentCount() > 1);
+
+        entries.forEach(journal::markIndexed);
+        // Only the active segment remains
+        assertEquals(1, segmentCount());
+
+        // The active segment is reused from the start once all its records are indexed
+        journal.append(log(21L));
+        journal.close();
+        journal = openJournal(1024);
+        assertEquals(List.of(21L), journal.getDeferred(10).stream().map(e -> e.getLog().getId()).collect(Collectors.toList()));
+        journal.close();
+    }
+
+    @Test
+    public void testDedupKeyRecovered() throws Exception {
+        LogJournal journal = openJournal(4096);
+        Log log = log(1L);
+        log.setDedupKey("key");
+        journal.defer(journal.append(log));
+        journal.close();
+
+        LogJournal recovered = openJournal(4096);
+        List<LogJournal.Entry> deferred = recovered.getDeferred(10);
+        assertEquals(1, deferred.size());
+        assertEquals("key", deferred.get(0).getLog().getDedupKey());
+        assertEquals("logbook", deferred.get(0).getLog().getLogbooks().iterator().next().getName());
+        recovered.close();
+    }
+
+    @Test
+    public void testEntryLargerThanSegment() throws Exception {
+        LogJournal journal = openJournal(64);
+        assertThrows(IOException.class, () -> journal.append(log(1L)));
+        journal.close();
+    }
+
+    private LogJournal openJournal(int segmentSize) throws IOException {
+        LogJournal journal = new LogJournal();
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "directory", directory.toString());
+        ReflectionTestUtils.setField(journal, "segmentSize", segmentSize);
+        journal.init();
+        return journal;
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static Log log(long id) {
+        return LogBuilder.createLog()
+                .id(id)
+                .owner("user")
+                .title("title " + id)
+                .description("description " + id)
+                .withLogbook(new Logbook("logbook", "user"))
+                .build();
+    }
+}
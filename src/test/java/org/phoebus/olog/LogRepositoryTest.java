@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.ErrorResponse;
+import co.elastic.clients.elasticsearch._types.Refresh;
+import co.elastic.clients.elasticsearch._types.Result;
+import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.GetRequest;
+import co.elastic.clients.elasticsearch.core.IndexRequest;
+import co.elastic.clients.elasticsearch.core.IndexResponse;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryRequest;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryResponse;
+import co.elastic.clients.elasticsearch.core.UpdateRequest;
+import co.elastic.clients.elasticsearch.core.UpdateResponse;
+import co.elastic.clients.elasticsearch.core.bulk.OperationType;
+import co.elastic.clients.elasticsearch.core.bulk.UpdateOperation;
+import co.elastic.clients.json.JsonData;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.phoebus.olog.entity.Attachment;
+import org.phoebus.olog.entity.Attribute;
+import org.phoebus.olog.entity.BulkItemResult;
+import org.phoebus.olog.entity.Event;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Log.LogBuilder;
+import org.phoebus.olog.entity.LogEntryGroupHelper;
+import org.phoebus.olog.entity.Logbook;
+import org.phoebus.olog.entity.Property;
+import org.phoebus.olog.entity.Tag;
+import org.phoebus.olog.entity.TaskStatus;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests {@link LogRepository} write operations against a mocked {@link ElasticsearchClient}. The documents
+ * returned by save and update must be identical to what reading them back from Elasticsearch would yield.
+ */
+public class LogRepositoryTest {
+
+    private LogRepository logRepository;
+    private ElasticsearchClient client;
+
+    /**
+     * The {@link ObjectMapper} used by the Elasticsearch client to (de)serialize documents.
+     */
+    private final ObjectMapper elasticObjectMapper = LogDocumentModule.jsonpMapper().objectMapper();
+
+    private final Log log = LogBuilder.createLog()
+            .owner("user")
+            .title("title")
+            .source("source")
+            .description("description")
+            .withLogbook(new Logbook("logbook", "user"))
+            .withTag(new Tag("tag"))
+            .withProperty(new Property("property", Set.of(new Attribute("name", "value"))))
+            .withEvents(List.of(new Event("event", Instant.ofEpochMilli(1000L))))
+            .build();
+
+    @BeforeEach
+    public void init() throws Exception {
+        client = Mockito.mock(ElasticsearchClient.class);
+        SequenceGenerator generator = Mockito.mock(SequenceGenerator.class);
+        when(generator.getID()).thenReturn(7L);
+
+        logRepository = new LogRepository();
+        logRepository.client = client;
+        logRepository.generator = generator;
+        logRepository.attachmentRepository = Mockito.mock(AttachmentRepository.class);
+        logRepository.journal = Mockito.mock(LogJournal.class);
+        logRepository.logbookRepository = Mockito.mock(LogbookRepository.class);
+        when(logRepository.logbookRepository.findInCatalog("logbook")).thenReturn(new Logbook("logbook", "user"));
+        logRepository.tagRepository = Mockito.mock(TagRepository.class);
+        logRepository.attachmentTextExtractor = Mockito.mock(AttachmentTextExtractor.class);
+        when(logRepository.tagRepository.findInCatalog("tag")).thenReturn(new Tag("tag"));
+        ReflectionTestUtils.setField(logRepository, "ES_LOG_INDEX", "olog_logs");
+        ReflectionTestUtils.setField(logRepository, "refreshPolicy", "wait_for");
+        ReflectionTestUtils.setField(logRepository, "attachmentUploadThreads", 2);
+        ReflectionTestUtils.setField(logRepository, "labelUpdateRequestsPerSecond", 500L);
+        ReflectionTestUtils.setField(logRepository, "labelUpdateBatchSize", 500L);
+        logRepository.init();
+    }
+
+    @Test
+    public void testSaveReturnsIndexedDocument() throws Exception {
+        when(client.index(any(IndexRequest.class))).thenReturn(indexResponse(Result.Created));
+
+        Log savedLog = logRepository.save(log);
+
+        IndexRequest<?> indexRequest = captureIndexRequest();
+        assertEquals(Refresh.WaitFor, indexRequest.refresh());
+        assertEquals(Long.valueOf(7L), savedLog.getId());
+        assertEquals(readBack(indexRequest), savedLog);
+        verify(client, never()).get(any(GetRequest.class), any());
+    }
+
+    @Test
+    public void testSaveDeferredToJournalWhenIndexingFails() throws Exception {
+        LogJournal.Entry entry = Mockito.mock(LogJournal.Entry.class);
+        when(logRepository.journal.isEnabled()).thenReturn(true);
+        when(logRepository.journal.append(any(Log.class))).thenReturn(entry);
+        when(client.index(any(IndexRequest.class))).thenThrow(new IOException("Connection refused"));
+
+        Log savedLog = logRepository.save(log);
+
+        assertEquals(Long.valueOf(7L), savedLog.getId());
+        verify(logRepository.journal).defer(entry);
+        verify(logRepository.journal, never()).markIndexed(entry);
+    }
+
+    @Test
+    public void testSaveNotIndexedWhileJournalReplayPending() throws Exception {
+        LogJournal.Entry entry = Mockito.mock(LogJournal.Entry.class);
+        when(logRepository.journal.isEnabled()).thenReturn(true);
+        when(logRepository.journal.append(any(Log.class))).thenReturn(entry);
+        when(logRepository.journal.hasDeferred()).thenReturn(true);
+
+        logRepository.save(log);
+
+        verify(client, never()).index(any(IndexRequest.class));
+        verify(logRepository.journal).defer(entry);
+    }
+
+    @Test
+    public void testSaveAllDefersTransientFailuresToJournal() throws Exception {
+        LogJournal.Entry first = Mockito.mock(LogJournal.Entry.class);
+        LogJournal.Entry second = Mockito.mock(LogJournal.Entry.class);
+        LogJournal.Entry third = Mockito.mock(LogJournal.Entry.class);
+        when(logRepository.generator.reserveIDs(3)).thenReturn(1L);
+        when(logRepository.journal.isEnabled()).thenReturn(true);
+        when(logRepository.journal.append(any(Log.class))).thenReturn(first, second, third);
+        when(client.bulk(any(BulkRequest.class))).thenReturn(BulkResponse.of(b -> b.errors(true).took(1L)
+                .items(i -> i.operationType(OperationType.Index).index("olog_logs").id("1").status(201))
+                .items(i -> i.operationType(OperationType.Index).index("olog_logs").id("2").status(429)
+                        .error(e -> e.type("es_rejected_execution_exception").reason("rejected")))
+                .items(i -> i.operationType(OperationType.Index).index("olog_logs").id("3").status(400)
+                        .error(e -> e.type("mapper_parsing_exception").reason("invalid")))));
+
+        List<BulkItemResult> results = logRepository.saveAll(List.of(log, log, log), null);
+
+        // Rejected for overload, hence replayed, but invalid documents are not
+        assertEquals(Long.valueOf(1L), results.get(0).getLog().getId());
+        assertEquals(Long.valueOf(2L), results.get(1).getLog().getId());
+        assertEquals(400, results.get(2).getStatus());
+        verify(logRepository.journal).markIndexed(first);
+        verify(logRepository.journal).defer(second);
+        verify(logRepository.journal).markIndexed(third);
+    }
+
+    @Test
+    public void testAttachmentsDeletedWhenIndexingFails() throws Exception {
+        doAnswer(invocation -> {
+            Attachment attachment = invocation.getArgument(0);
+            attachment.setId("id-" + attachment.getFilename());
+            return attachment;
+        }).when(logRepository.attachmentRepository).save(any(Attachment.class));
+        when(client.index(any(IndexRequest.class))).thenThrow(new IOException("Connection refused"));
+
+        assertThrows(ResponseStatusException.class, () -> logRepository.save(logWithAttachments("a", "b")));
+
+        verify(logRepository.attachmentRepository).deleteById("id-a");
+        verify(logRepository.attachmentRepository).deleteById("id-b");
+    }
+
+    @Test
+    public void testAttachmentsDeletedWhenUploadFails() throws Exception {
+        doAnswer(invocation -> {
+            Attachment attachment = invocation.getArgument(0);
+            if (attachment.getFilename().equals("b")) {
+                return null;
+            }
+            attachment.setId("id-" + attachment.getFilename());
+            return attachment;
+        }).when(logRepository.attachmentRepository).save(any(Attachment.class));
+
+        assertThrows(ResponseStatusException.class, () -> logRepository.save(logWithAttachments("a", "b")));
+
+        verify(logRepository.attachmentRepository).deleteById("id-a");
+        verify(client, never()).index(any(IndexRequest.class));
+    }
+
+    @Test
+    public void testAddAttachmentsWithSingleUpdate() throws Exception {
+        mockAttachmentUploads();
+        Log updated = LogBuilder.createLog(log).id(7L).build();
+        when(client.update(any(UpdateRequest.class), eq(Log.class))).thenReturn(updateResponse(updated));
+
+        Log result = logRepository.addAttachments("7", attachments("a", "b"), null);
+
+        assertEquals(updated, result);
+        ArgumentCaptor<UpdateRequest> captor = ArgumentCaptor.forClass(UpdateRequest.class);
+        verify(client, times(1)).update(captor.capture(), eq(Log.class));
+        List<?> attachments = captor.getValue().script().inline().params().get("attachments").to(List.class);
+        assertEquals(2, attachments.size());
+        verify(client, never()).index(any(IndexRequest.class));
+        verify(client, never()).get(any(GetRequest.class), any());
+    }
+
+    @Test
+    public void testAddAttachmentsLogNotFound() throws Exception {
+        mockAttachmentUploads();
+        when(client.update(any(UpdateRequest.class), eq(Log.class))).thenThrow(new ElasticsearchException("update",
+                ErrorResponse.of(e -> e.status(404).error(c -> c.type("document_missing_exception").reason("missing")))));
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> logRepository.addAttachments("7", attachments("a", "b"), null));
+
+        assertEquals(HttpStatus.NOT_FOUND, exception.getStatus());
+        verify(logRepository.attachmentRepository).deleteById("id-a");
+        verify(logRepository.attachmentRepository).deleteById("id-b");
+    }
+
+    @Test
+    public void testDedupKeyIndexed() throws Exception {
+        when(client.index(any(IndexRequest.class))).thenReturn(indexResponse(Result.Created));
+        Log logWithDedupKey = LogBuilder.createLog(log).build();
+        logWithDedupKey.setDedupKey("key");
+
+        assertEquals("key", logRepository.save(logWithDedupKey).getDedupKey());
+
+        Map<?, ?> document = elasticObjectMapper.convertValue(captureIndexRequest().document(), Map.class);
+        assertEquals("key", document.get("dedupKey"));
+    }
+
+    @Test
+    public void testAddOccurrenceWithSingleUpdate() throws Exception {
+        Log updated = LogBuilder.createLog(log).id(7L).build();
+        updated.setOccurrences(2);
+        when(client.update(any(UpdateRequest.class), eq(Log.class))).thenReturn(updateResponse(updated));
+        Instant since = Instant.ofEpochMilli(1000L);
+
+        Log result = logRepository.addOccurrence("7", "key", since, new Event("Occurrence", Instant.ofEpochMilli(2000L)), 100, null);
+
+        assertEquals(Integer.valueOf(2), result.getOccurrences());
+        ArgumentCaptor<UpdateRequest> captor = ArgumentCaptor.forClass(UpdateRequest.class);
+        verify(client, times(1)).update(captor.capture(), eq(Log.class));
+        Map<String, JsonData> params = captor.getValue().script().inline().params();
+        assertEquals("key", params.get("dedupKey").to(String.class));
+        assertEquals(1000L, params.get("since").to(Long.class));
+
+        when(client.update(any(UpdateRequest.class), eq(Log.class))).thenReturn(UpdateResponse.of(r -> r.index("olog_logs").id("7")
+                .result(Result.NoOp).seqNo(2L).primaryTerm(1L).version(2L)
+                .shards(s -> s.total(1).successful(1).failed(0))));
+        assertNull(logRepository.addOccurrence("7", "key", since, new Event("Occurrence", Instant.ofEpochMilli(2000L)), 100, null));
+    }
+
+    @Test
+    public void testUpdatePartiallyWithVersion() throws Exception {
+        Log updated = LogBuilder.createLog(log).id(7L).build();
+        when(client.update(any(UpdateRequest.class), eq(Log.class))).thenReturn(updateResponse(updated));
+        Log changes = LogBuilder.createLog(log).id(7L).title("new title").build();
+        changes.setModifyDate(Instant.now());
+
+        VersionedLog result = logRepository.updatePartially("7", changes, new VersionedLog.Version(1L, 1L), Refresh.True);
+
+        assertEquals(updated, result.getLog());
+        assertEquals("\"2-1\"", result.getVersion().toETag());
+        ArgumentCaptor<UpdateRequest> captor = ArgumentCaptor.forClass(UpdateRequest.class);
+        verify(client).update(captor.capture(), eq(Log.class));
+        UpdateRequest<?, ?> updateRequest = captor.getValue();
+        assertEquals(Long.valueOf(1L), updateRequest.ifSeqNo());
+        assertEquals(Long.valueOf(1L), updateRequest.ifPrimaryTerm());
+        Map<?, ?> document = (Map<?, ?>) updateRequest.doc();
+        assertEquals("new title", document.get("title"));
+        assertFalse(document.containsKey("owner"));
+        assertFalse(document.containsKey("createdDate"));
+        verify(client, never()).index(any(IndexRequest.class));
+    }
+
+    @Test
+    public void testUpdatePartiallyStaleVersion() throws Exception {
+        when(client.update(any(UpdateRequest.class), eq(Log.class))).thenThrow(new ElasticsearchException("update",
+                ErrorResponse.of(e -> e.status(409).error(c -> c.type("version_conflict_engine_exception").reason("conflict")))));
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> logRepository.updatePartially("7", log, new VersionedLog.Version(1L, 1L), null));
+
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+    }
+
+    @Test
+    public void testUpdatePartiallyWithoutVersionRetriesOnConflict() throws Exception {
+        when(client.update(any(UpdateRequest.class), eq(Log.class))).thenThrow(new ElasticsearchException("update",
+                ErrorResponse.of(e -> e.status(409).error(c -> c.type("version_conflict_engine_exception").reason("conflict")))));
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> logRepository.updatePartially("7", log, null, null));
+
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+        ArgumentCaptor<UpdateRequest> captor = ArgumentCaptor.forClass(UpdateRequest.class);
+        verify(client).update(captor.capture(), eq(Log.class));
+        assertNull(captor.getValue().ifSeqNo());
+        assertTrue(captor.getValue().retryOnConflict() > 0);
+    }
+
+    @Test
+    public void testUpdatePropertiesWithSingleBulkRequest() throws Exception {
+        when(client.bulk(any(BulkRequest.class))).thenReturn(BulkResponse.of(b -> b.errors(true).took(1L)
+                .items(i -> i.operationType(OperationType.Update).index("olog_logs").id("1").status(200))
+                .items(i -> i.operationType(OperationType.Update).index("olog_logs").id("2").status(409)
+                        .error(e -> e.type("version_conflict_engine_exception").reason("conflict")))));
+        List<VersionedLog> logs = List.of(
+                new VersionedLog(LogBuilder.createLog(log).id(1L).build(), new VersionedLog.Version(3L, 1L)),
+                new VersionedLog(LogBuilder.createLog(log).id(2L).build(), new VersionedLog.Version(4L, 1L)));
+
+        List<BulkItemResult> results = logRepository.updateProperties(logs, null);
+
+        assertEquals(logs.get(0).getLog(), results.get(0).getLog());
+        assertEquals(409, results.get(1).getStatus());
+        ArgumentCaptor<BulkRequest> captor = ArgumentCaptor.forClass(BulkRequest.class);
+        verify(client, times(1)).bulk(captor.capture());
+        UpdateOperation<?, ?> operation = captor.getValue().operations().get(1).update();
+        assertEquals("2", operation.id());
+        assertEquals(Long.valueOf(4L), operation.ifSeqNo());
+        assertEquals(Long.valueOf(1L), operation.ifPrimaryTerm());
+    }
+
+    @Test
+    public void testGroupIdIndexedWithProperties() throws Exception {
+        when(client.bulk(any(BulkRequest.class))).thenReturn(BulkResponse.of(b -> b.errors(false).took(1L)
+                .items(i -> i.operationType(OperationType.Update).index("olog_logs").id("1").status(200))));
+        Property groupProperty = LogEntryGroupHelper.createNewLogEntryProperty();
+        String groupId = groupProperty.getAttributes().iterator().next().getValue();
+        Log grouped = LogBuilder.createLog(log).id(1L).withProperty(groupProperty).build();
+
+        logRepository.updateProperties(List.of(new VersionedLog(grouped, new VersionedLog.Version(3L, 1L))), null);
+
+        ArgumentCaptor<BulkRequest> captor = ArgumentCaptor.forClass(BulkRequest.class);
+        verify(client, times(1)).bulk(captor.capture());
+        Map<?, ?> document = (Map<?, ?>) captor.getValue().operations().get(0).update().action().doc();
+        assertEquals(groupId, document.get("groupId"));
+        // Derived, hence written to the document but ignored when it is read back
+        String json = elasticObjectMapper.writeValueAsString(grouped);
+        assertTrue(json.contains("\"groupId\":\"" + groupId + "\""));
+        assertEquals(groupId, elasticObjectMapper.readValue(json, Log.class).getGroupId());
+    }
+
+    @Test
+    public void testFindByGroupIdWithTermQuery() throws Exception {
+        Log reply = LogBuilder.createLog(log).id(8L).build();
+        when(client.search(any(SearchRequest.class), eq(Log.class))).thenReturn(SearchResponse.of(r -> r
+                .took(1L).timedOut(false)
+                .shards(sh -> sh.total(1).successful(1).failed(0))
+                .hits(h -> h.hits(hit -> hit.index("olog_logs").id("8").source(reply)))));
+
+        assertEquals(List.of(reply), logRepository.findByGroupId("group"));
+
+        ArgumentCaptor<SearchRequest> captor = ArgumentCaptor.forClass(SearchRequest.class);
+        verify(client, times(1)).search(captor.capture(), eq(Log.class));
+        assertEquals("groupId", captor.getValue().query().term().field());
+        assertEquals("group", captor.getValue().query().term().value().stringValue());
+        assertEquals("createdDate", captor.getValue().sort().get(0).field().field());
+        // Ties broken by the id as a number, not as a keyword nor by the sequence number changing on updates
+        assertEquals(LogRepository.NUMERIC_ID_SCRIPT, captor.getValue().sort().get(1).script().script().inline().source());
+    }
+
+    @Test
+    public void testStartLabelUpdateByIds() throws Exception {
+        when(client.updateByQuery(any(UpdateByQueryRequest.class))).thenReturn(UpdateByQueryResponse.of(r -> r.task("node:42")));
+
+        TaskStatus taskStatus = logRepository.startLabelUpdate(List.of(1L, 2L), new LinkedMultiValueMap<>(),
+                List.of("tag"), List.of(), List.of(), List.of("logbook"));
+
+        assertEquals("node:42", taskStatus.getTaskId());
+        ArgumentCaptor<UpdateByQueryRequest> captor = ArgumentCaptor.forClass(UpdateByQueryRequest.class);
+        verify(client).updateByQuery(captor.capture());
+        UpdateByQueryRequest request = captor.getValue();
+        assertEquals(List.of("1", "2"), request.query().bool().filter().get(0).ids().values());
+        assertEquals(Boolean.FALSE, request.waitForCompletion());
+        assertEquals(Long.valueOf(500L), request.requestsPerSecond());
+        assertEquals(LogRepository.UPDATE_LABELS_SCRIPT, request.script().inline().source());
+        assertEquals(List.of("logbook"), request.script().inline().params().get("removeLogbooks").to(List.class));
+        verify(client, never()).index(any(IndexRequest.class));
+    }
+
+    @Test
+    public void testLabelsStoredByNameAndAttributesFlattened() throws Exception {
+        when(client.index(any(IndexRequest.class))).thenReturn(indexResponse(Result.Created));
+
+        logRepository.save(log);
+
+        String json = elasticObjectMapper.writeValueAsString(captureIndexRequest().document());
+        Map<String, Object> document = elasticObjectMapper.readValue(json, new TypeReference<>() {});
+        assertEquals(List.of("logbook"), document.get("logbooks"));
+        assertEquals(List.of("tag"), document.get("tags"));
+        assertEquals(List.of("property.name=value"), document.get("propertyAttributes"));
+        assertEquals(List.of(document.get("createdDate"), 1000), document.get("eventTimes"));
+
+        // Documents written before logbooks and tags were stored by name are still read
+        Map<String, Object> legacy = new HashMap<>(document);
+        legacy.put("logbooks", List.of(Map.of("name", "logbook", "owner", "user", "state", "Active")));
+        legacy.put("tags", List.of(Map.of("name", "tag", "state", "Active")));
+        legacy.put("attachmentText", List.of("attachment text"));
+        Log legacyLog = elasticObjectMapper.readValue(elasticObjectMapper.writeValueAsString(legacy), Log.class);
+        assertEquals(log.getLogbooks(), legacyLog.getLogbooks());
+        assertEquals(log.getTags(), legacyLog.getTags());
+        // Kept in the document, but not sent to clients
+        assertEquals(List.of("attachment text"), legacyLog.getAttachmentText());
+        assertFalse(new ObjectMapper().writeValueAsString(legacyLog).contains("attachmentText"));
+    }
+
+    @Test
+    public void testParseRefreshPolicy() {
+        assertEquals(Refresh.False, LogRepository.parseRefreshPolicy("none"));
+        assertEquals(Refresh.WaitFor, LogRepository.parseRefreshPolicy("wait_for"));
+        assertEquals(Refresh.True, LogRepository.parseRefreshPolicy("TRUE"));
+        assertThrows(IllegalArgumentException.class, () -> LogRepository.parseRefreshPolicy("sometimes"));
+    }
+
+    private Log logWithAttachments(String... filenames) {
+        LogBuilder logBuilder = LogBuilder.createLog(log);
+        attachments(filenames).forEach(logBuilder::withAttachment);
+        return logBuilder.build();
+    }
+
+    private static List<Attachment> attachments(String... filenames) {
+        List<Attachment> attachments = new ArrayList<>();
+        for (String filename : filenames) {
+            attachments.add(new Attachment(new MockMultipartFile(filename, new byte[]{1, 2, 3}), filename, "image/png"));
+        }
+        return attachments;
+    }
+
+    /**
+     * Makes the mocked {@link AttachmentRepository} assign an id derived from the file name.
+     */
+    private void mockAttachmentUploads() {
+        doAnswer(invocation -> {
+            Attachment attachment = invocation.getArgument(0);
+            attachment.setId("id-" + attachment.getFilename());
+            return attachment;
+        }).when(logRepository.attachmentRepository).save(any(Attachment.class));
+    }
+
+    private IndexRequest<?> captureIndexRequest() throws Exception {
+        ArgumentCaptor<IndexRequest> captor = ArgumentCaptor.forClass(IndexRequest.class);
+        verify(client).index(captor.capture());
+        return captor.getValue();
+    }
+
+    /**
+     * @return The {@link Log} as Elasticsearch would return it for the document of the request.
+     */
+    private Log readBack(IndexRequest<?> indexRequest) throws Exception {
+        String json = elasticObjectMapper.writeValueAsString(indexRequest.document());
+        return logRepository.hydrate(elasticObjectMapper.readValue(json, Log.class));
+    }
+
+    private static UpdateResponse<Log> updateResponse(Log source) {
+        return UpdateResponse.of(r -> r.index("olog_logs").id("7").result(Result.Updated)
+                .seqNo(2L).primaryTerm(1L).version(2L)
+                .shards(s -> s.total(1).successful(1).failed(0))
+                .get(g -> g.found(true).source(source).seqNo(2L).primaryTerm(1L)));
+    }
+
+    private static IndexResponse indexResponse(Result result) {
+        return IndexResponse.of(r -> r.index("olog_logs").id("7").result(result)
+                .seqNo(1L).primaryTerm(1L).version(1L)
+                .shards(s -> s.total(1).successful(1).failed(0)));
+    }
+}
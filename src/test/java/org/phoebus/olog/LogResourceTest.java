@@ -18,24 +18,32 @@
 
 package org.phoebus.olog;
 
+import co.elastic.clients.elasticsearch._types.Refresh;
 import com.fasterxml.jackson.core.type.TypeReference;
+import org.hamcrest.Matchers;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mockito;
 import org.mockito.internal.util.collections.Sets;
+import org.phoebus.olog.entity.Attachment;
 import org.phoebus.olog.entity.Attribute;
+import org.phoebus.olog.entity.BulkItemResult;
 import org.phoebus.olog.entity.Log;
 import org.phoebus.olog.entity.Log.LogBuilder;
 import org.phoebus.olog.entity.LogEntryGroupHelper;
+import org.phoebus.olog.entity.LogLabelUpdate;
 import org.phoebus.olog.entity.Logbook;
 import org.phoebus.olog.entity.Property;
 import org.phoebus.olog.entity.SearchResult;
 import org.phoebus.olog.entity.Tag;
+import org.phoebus.olog.entity.TaskStatus;
+import org.phoebus.olog.entity.Upload;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.ContextConfiguration;
@@ -49,21 +57,38 @@ import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.head;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -79,12 +104,24 @@ public class LogResourceTest extends ResourcesTestBase {
     @Autowired
     private LogRepository logRepository;
 
+    @Autowired
+    private AttachmentRepository attachmentRepository;
+
     @Autowired
     private LogbookRepository logbookRepository;
 
     @Autowired
     private TagRepository tagRepository;
 
+    @Autowired
+    private LogIngestQueue logIngestQueue;
+
+    @Autowired
+    private IdempotencyStore idempotencyStore;
+
+    @Autowired
+    private UploadRepository uploadRepository;
+
     @Autowired
     private LogEntryValidator logEntryValidator;
 
@@ -131,24 +168,62 @@ public class LogResourceTest extends ResourcesTestBase {
 
     @Test
     public void testGetLogById() throws Exception {
-        when(logRepository.findById("1")).thenAnswer(invocationOnMock -> Optional.of(log1));
+        when(logRepository.findVersionedById("1")).thenReturn(new VersionedLog(log1, new VersionedLog.Version(5L, 1L)));
 
         MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1");
         MvcResult result = mockMvc.perform(request).andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"5-1\""))
                 .andReturn();
         Log log = objectMapper.readValue(result.getResponse().getContentAsString(), Log.class);
         assertEquals("description1", log.getDescription());
-        verify(logRepository, times(1)).findById("1");
+        verify(logRepository, times(1)).findVersionedById("1");
+        reset(logRepository);
+    }
+
+    @Test
+    public void testGetLogRenderedHtml() throws Exception {
+        Log renderedLog = LogBuilder.createLog(log1).build();
+        renderedLog.setHtml("<p>description1</p>\n");
+        when(logRepository.findVersionedById("1")).thenAnswer(invocation ->
+                new VersionedLog(LogBuilder.createLog(renderedLog).build(), new VersionedLog.Version(5L, 1L)));
+
+        mockMvc.perform(get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.html").doesNotExist());
+        mockMvc.perform(get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1?render=html"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.html").value("<p>description1</p>\n"));
         reset(logRepository);
     }
 
     @Test
     public void testGetLogByIdRepositoryThrowsException() throws Exception {
-        when(logRepository.findById("1")).thenThrow(new ResponseStatusException(HttpStatus.NOT_FOUND, ""));
+        when(logRepository.findVersionedById("1")).thenThrow(new ResponseStatusException(HttpStatus.NOT_FOUND, ""));
 
         MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1");
         mockMvc.perform(request).andExpect(status().isNotFound());
-        verify(logRepository, times(1)).findById("1");
+        verify(logRepository, times(1)).findVersionedById("1");
+        reset(logRepository);
+    }
+
+    @Test
+    public void testGetLogGroup() throws Exception {
+        Property groupProperty = LogEntryGroupHelper.createNewLogEntryProperty();
+        String groupId = groupProperty.getAttributes().iterator().next().getValue();
+        Log original = Log.LogBuilder.createLog().id(7L).description("original").withProperty(groupProperty).build();
+        Log reply = Log.LogBuilder.createLog().id(8L).description("reply").withProperty(groupProperty).build();
+        when(logRepository.findByGroupId(groupId)).thenReturn(List.of(original, reply));
+
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/groups/" + groupId);
+        MvcResult result = mockMvc.perform(request).andExpect(status().isOk())
+                // Derived for searches only, not part of the REST API
+                .andExpect(jsonPath("$[0].groupId").doesNotExist())
+                .andReturn();
+        List<Log> logs = objectMapper.readValue(result.getResponse().getContentAsString(), new TypeReference<>() {
+        });
+        assertEquals(List.of(7L, 8L), logs.stream().map(Log::getId).collect(Collectors.toList()));
+        assertEquals(groupId, logs.get(1).getGroupId());
+        verify(logRepository, times(1)).findByGroupId(groupId);
         reset(logRepository);
     }
 
@@ -235,7 +310,7 @@ public class LogResourceTest extends ResourcesTestBase {
                 .build();
         when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
         when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
-        when(logRepository.save(argThat(new LogMatcher(log)))).thenReturn(log);
+        when(logRepository.save(argThat(new LogMatcher(log)), Mockito.isNull())).thenReturn(log);
         MockHttpServletRequestBuilder request = put("/" + OlogResourceDescriptors.LOG_RESOURCE_URI)
                 .content(objectMapper.writeValueAsString(log1))
                 .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
@@ -247,6 +322,150 @@ public class LogResourceTest extends ResourcesTestBase {
         reset(logRepository);
     }
 
+    @Test
+    public void testCreateLogWithIdempotencyKey() throws Exception {
+        when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
+        when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
+        when(logRepository.save(any(Log.class), isNull())).thenReturn(log1);
+        MockHttpServletRequestBuilder request = put("/" + OlogResourceDescriptors.LOG_RESOURCE_URI)
+                .content(objectMapper.writeValueAsString(log1))
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                .header("Idempotency-Key", "key")
+                .contentType(JSON);
+        mockMvc.perform(request).andExpect(status().isOk());
+
+        verify(idempotencyStore, times(1)).claim(eq("key"), anyString(), eq("PUT /logs"));
+        verify(idempotencyStore, times(1)).complete(eq("key"), anyString(), eq("1"));
+        reset(logRepository, idempotencyStore);
+    }
+
+    @Test
+    public void testCreateLogRetriedWithIdempotencyKey() throws Exception {
+        when(idempotencyStore.claim(eq("key"), anyString(), eq("PUT /logs"))).thenReturn("1");
+        Log storedLog = LogBuilder.createLog(log1).build();
+        storedLog.setHtml("<p>description1</p>");
+        when(logRepository.findVersionedById("1")).thenReturn(new VersionedLog(storedLog, new VersionedLog.Version(5L, 1L)));
+        MockHttpServletRequestBuilder request = put("/" + OlogResourceDescriptors.LOG_RESOURCE_URI)
+                .content(objectMapper.writeValueAsString(log1))
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                .header("Idempotency-Key", "key")
+                .contentType(JSON);
+        MvcResult result = mockMvc.perform(request).andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"5-1\""))
+                // Same as the response to the original request, which does not render HTML
+                .andExpect(jsonPath("$.html").doesNotExist())
+                .andReturn();
+
+        assertEquals(Long.valueOf(1L), objectMapper.readValue(result.getResponse().getContentAsString(), Log.class).getId());
+        verify(logRepository, never()).save(any(Log.class), any());
+        verify(idempotencyStore, never()).complete(anyString(), anyString(), anyString());
+        reset(logRepository, idempotencyStore);
+    }
+
+    @Test
+    public void testIdempotencyKeyReleasedWhenAttachmentFails() throws Exception {
+        when(logRepository.addAttachments(eq("1"), any(), isNull()))
+                .thenThrow(new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log with id: 1"));
+        MockMultipartFile file = new MockMultipartFile("file", "filename.txt", "text/plain", "some xml".getBytes());
+        mockMvc.perform(MockMvcRequestBuilders.multipart("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/attachments-multi/1")
+                        .file(file)
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                        .header("Idempotency-Key", "key"))
+                .andExpect(status().isNotFound());
+
+        verify(idempotencyStore, times(1)).claim(eq("key"), anyString(), eq("POST /logs/attachments/1"));
+        verify(idempotencyStore, times(1)).release(eq("key"), anyString());
+        reset(logRepository, idempotencyStore);
+    }
+
+    @Test
+    public void testCreateLogQueued() throws Exception {
+        when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
+        when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
+        when(logIngestQueue.isEnabled()).thenReturn(true);
+        when(logRepository.prepare(Mockito.any(Log.class))).thenReturn(log1);
+        when(logIngestQueue.offer(Mockito.eq(log1), Mockito.any())).thenReturn(true);
+        MockHttpServletRequestBuilder request = put("/" + OlogResourceDescriptors.LOG_RESOURCE_URI)
+                .content(objectMapper.writeValueAsString(log1))
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                .contentType(JSON);
+        mockMvc.perform(request)
+                .andExpect(status().isAccepted())
+                .andExpect(header().string(HttpHeaders.LOCATION, Matchers.endsWith("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1")));
+        verify(logRepository, times(0)).save(Mockito.any(Log.class), Mockito.any());
+
+        when(logIngestQueue.offer(Mockito.eq(log1), Mockito.any())).thenReturn(false);
+        mockMvc.perform(request).andExpect(status().isTooManyRequests());
+        verify(logRepository, times(1)).deleteAttachments(log1);
+        reset(logRepository);
+        reset(logIngestQueue);
+    }
+
+    @Test
+    public void testCreateLogWithRefreshPolicy() throws Exception {
+        when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
+        when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
+        when(logRepository.save(Mockito.any(Log.class), Mockito.eq(Refresh.True))).thenReturn(log1);
+        MockHttpServletRequestBuilder request = put("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "?refresh=true")
+                .content(objectMapper.writeValueAsString(log1))
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                .contentType(JSON);
+        mockMvc.perform(request).andExpect(status().isOk());
+        verify(logRepository, times(1)).save(Mockito.any(Log.class), Mockito.eq(Refresh.True));
+        reset(logRepository);
+    }
+
+    @Test
+    public void testCreateLogInvalidRefreshPolicy() throws Exception {
+        MockHttpServletRequestBuilder request = put("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "?refresh=sometimes")
+                .content(objectMapper.writeValueAsString(log1))
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                .contentType(JSON);
+        mockMvc.perform(request).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testCreateLogsBulk() throws Exception {
+        Log invalidLog = LogBuilder.createLog()
+                .title("title")
+                .withLogbooks(Set.of(new Logbook("nonexisting", "user")))
+                .description("description")
+                .build();
+        when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
+        when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
+        Log savedLog = LogBuilder.createLog(log1).build();
+        savedLog.setHtml("<p>description</p>");
+        when(logRepository.saveAll(Mockito.anyList(), Mockito.isNull()))
+                .thenReturn(List.of(new BulkItemResult(HttpStatus.CREATED.value(), savedLog, null)));
+        MockHttpServletRequestBuilder request = put("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/bulk")
+                .content(objectMapper.writeValueAsString(List.of(log1, invalidLog)))
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                .contentType(JSON);
+        MvcResult result = mockMvc.perform(request).andExpect(status().isOk())
+                // Rendered on request only, as for a single log entry
+                .andExpect(jsonPath("$[0].log.html").doesNotExist())
+                .andReturn();
+        List<BulkItemResult> results = objectMapper.readValue(result.getResponse().getContentAsString(),
+                new TypeReference<>() {
+                });
+        assertEquals(2, results.size());
+        assertEquals(HttpStatus.CREATED.value(), results.get(0).getStatus());
+        assertEquals(log1.getId(), results.get(0).getLog().getId());
+        assertEquals(HttpStatus.BAD_REQUEST.value(), results.get(1).getStatus());
+        // Only the valid log entry is sent to the repository, in one request
+        verify(logRepository, times(1)).saveAll(argThat((List<Log> logs) -> logs.size() == 1), Mockito.isNull());
+        reset(logRepository);
+    }
+
+    @Test
+    public void testCreateLogsBulkEmpty() throws Exception {
+        MockHttpServletRequestBuilder request = put("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/bulk")
+                .content("[]")
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                .contentType(JSON);
+        mockMvc.perform(request).andExpect(status().isBadRequest());
+    }
+
     /**
      * Basically only test the endpoint...
      *
@@ -271,16 +490,43 @@ public class LogResourceTest extends ResourcesTestBase {
                 .setProperties(Sets.newSet(property1))
                 .build();
 
-        when(logRepository.findById("1")).thenReturn(Optional.of(log));
-        when(logRepository.update(log)).thenReturn(log);
+        when(logRepository.updatePartially(eq("1"), argThat(changes -> changes.getId() == 1L && changes.getModifyDate() != null), isNull(), isNull()))
+                .thenReturn(new VersionedLog(log, new VersionedLog.Version(6L, 1L)));
 
         MockHttpServletRequestBuilder request = post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1")
                 .content(objectMapper.writeValueAsString(log))
                 .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
                 .contentType(JSON);
-        MvcResult result = mockMvc.perform(request).andExpect(status().isOk()).andReturn();
+        MvcResult result = mockMvc.perform(request).andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"6-1\""))
+                .andReturn();
         Log savedLog = objectMapper.readValue(result.getResponse().getContentAsString(), Log.class);
         assertEquals(Long.valueOf(1L), savedLog.getId());
+        verify(logRepository, never()).findById("1");
+        reset(logRepository);
+    }
+
+    @Test
+    public void testUpdateLogStaleVersion() throws Exception {
+        Log log = LogBuilder.createLog(log1).build();
+        when(logRepository.updatePartially(eq("1"), any(Log.class),
+                argThat(version -> version.getSeqNo() == 5L && version.getPrimaryTerm() == 1L), isNull()))
+                .thenThrow(new ResponseStatusException(HttpStatus.CONFLICT));
+
+        MockHttpServletRequestBuilder request = post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1")
+                .content(objectMapper.writeValueAsString(log))
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                .header(HttpHeaders.IF_MATCH, "\"5-1\"")
+                .contentType(JSON);
+        mockMvc.perform(request).andExpect(status().isConflict());
+
+        request = post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1")
+                .content(objectMapper.writeValueAsString(log))
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                .header(HttpHeaders.IF_MATCH, "W/\"5\"")
+                .contentType(JSON);
+        mockMvc.perform(request).andExpect(status().isBadRequest());
+        reset(logRepository);
     }
 
     @Test
@@ -302,14 +548,12 @@ public class LogResourceTest extends ResourcesTestBase {
                 .setProperties(Sets.newSet(property1))
                 .build();
 
-        when(logRepository.findById("1")).thenReturn(Optional.of(log));
-        when(logRepository.update(log)).thenReturn(log);
-
         MockHttpServletRequestBuilder request = post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1")
                 .content(objectMapper.writeValueAsString(log))
                 .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
                 .contentType(JSON);
         mockMvc.perform(request).andExpect(status().isBadRequest());
+        verify(logRepository, never()).updatePartially(any(), any(), any(), any());
     }
 
     /**
@@ -340,6 +584,12 @@ public class LogResourceTest extends ResourcesTestBase {
     public void testCreateAttachment() throws Exception {
 
         when(logRepository.findById("1")).thenReturn(Optional.of(log1));
+        when(logRepository.addAttachments(eq("1"), any(), isNull())).thenAnswer(invocation -> {
+            Log log = LogBuilder.createLog(log1).build();
+            log.setAttachments(new HashSet<>(invocation.getArgument(1)));
+            log.setHtml("<p>description</p>");
+            return log;
+        });
         MockMultipartFile file =
                 new MockMultipartFile("file", "filename.txt", "text/plain", "some xml".getBytes());
         MockMultipartFile filename =
@@ -351,8 +601,299 @@ public class LogResourceTest extends ResourcesTestBase {
                         .file(filename)
                         .file(fileMetadataDescription)
                         .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
-                .andExpect(status().is(200));
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.id").value(1))
+                .andExpect(jsonPath("$.attachments[0].filename").value("some xml"))
+                .andExpect(jsonPath("$.html").doesNotExist());
+        reset(logRepository);
+    }
+
+    @Test
+    public void testCreateLogWithAttachments() throws Exception {
+        when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
+        when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
+        when(logRepository.save(any(Log.class), isNull())).thenAnswer(invocation -> {
+            Log log = invocation.getArgument(0);
+            log.setId(1L);
+            return log;
+        });
+        Log log = LogBuilder.createLog(log1).id(null).build();
+        log.setAttachments(Set.of(new Attachment("image-id", null, "image.png", "screenshot")));
+        MockMultipartFile logEntry = new MockMultipartFile("logEntry", "", JSON, objectMapper.writeValueAsBytes(log));
+        MockMultipartFile image = new MockMultipartFile("files", "image.png", "image/png", "png".getBytes());
+        MockMultipartFile text = new MockMultipartFile("files", "notes.txt", "text/plain", "text".getBytes());
+
+        mockMvc.perform(MockMvcRequestBuilders.multipart(HttpMethod.PUT, "/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/multipart")
+                        .file(logEntry)
+                        .file(image)
+                        .file(text)
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value(1));
+
+        verify(logRepository, times(1)).save(argThat(l -> {
+            if (l == null || l.getAttachments().size() != 2 || !l.getAttachments().stream().allMatch(a -> a.getAttachment() != null)) {
+                return false;
+            }
+            Attachment listed = l.getAttachments().stream().filter(a -> a.getFilename().equals("image.png")).findFirst().get();
+            Attachment unlisted = l.getAttachments().stream().filter(a -> a.getFilename().equals("notes.txt")).findFirst().get();
+            return listed.getId().equals("image-id") && listed.getFileMetadataDescription().equals("screenshot")
+                    && unlisted.getFileMetadataDescription().equals("text/plain");
+        }), isNull());
+        verify(logRepository, never()).addAttachments(anyString(), any(), any());
+        reset(logRepository);
+    }
+
+    @Test
+    public void testCreateLogWithAttachmentsQueued() throws Exception {
+        when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
+        when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
+        when(logIngestQueue.isEnabled()).thenReturn(true);
+        when(logRepository.prepare(Mockito.any(Log.class))).thenReturn(log1);
+        when(logIngestQueue.offer(Mockito.eq(log1), Mockito.any())).thenReturn(true);
+        MockMultipartFile logEntry = new MockMultipartFile("logEntry", "", JSON, objectMapper.writeValueAsBytes(log1));
+
+        // The location is that of the log entry, not below the multipart endpoint
+        mockMvc.perform(MockMvcRequestBuilders.multipart(HttpMethod.PUT, "/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/multipart")
+                        .file(logEntry)
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
+                .andExpect(status().isAccepted())
+                .andExpect(header().string(HttpHeaders.LOCATION, Matchers.endsWith("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/1")));
         reset(logRepository);
+        reset(logIngestQueue);
+    }
+
+    @Test
+    public void testCreateLogWithMissingAttachment() throws Exception {
+        Log log = LogBuilder.createLog(log1).id(null).build();
+        log.setAttachments(Set.of(new Attachment(null, null, "image.png", "screenshot")));
+        MockMultipartFile logEntry = new MockMultipartFile("logEntry", "", JSON, objectMapper.writeValueAsBytes(log));
+        MockMultipartFile text = new MockMultipartFile("files", "notes.txt", "text/plain", "text".getBytes());
+
+        mockMvc.perform(MockMvcRequestBuilders.multipart(HttpMethod.PUT, "/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/multipart")
+                        .file(logEntry)
+                        .file(text)
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
+                .andExpect(status().isBadRequest());
+
+        verify(logRepository, never()).save(any(Log.class), any());
+        reset(logRepository);
+    }
+
+    @Test
+    public void testUpdateLabels() throws Exception {
+        when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
+        when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
+        when(logRepository.startLabelUpdate(any(), any(), any(), any(), any(), any())).thenReturn(new TaskStatus("node:42"));
+        LogLabelUpdate labelUpdate = new LogLabelUpdate();
+        labelUpdate.setAddTags(List.of("tag1"));
+        labelUpdate.setRemoveLogbooks(List.of("name2"));
+
+        mockMvc.perform(post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/labels")
+                        .param("tags", "tag2")
+                        .content(objectMapper.writeValueAsString(labelUpdate))
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                        .contentType(JSON))
+                .andExpect(status().isAccepted())
+                .andExpect(header().string(HttpHeaders.LOCATION, Matchers.endsWith("/logs/tasks/node:42")))
+                .andExpect(jsonPath("$.taskId").value("node:42"));
+
+        verify(logRepository, times(1)).startLabelUpdate(eq(List.of()),
+                argThat(searchParameters -> searchParameters != null && searchParameters.getFirst("tags").equals("tag2")),
+                eq(List.of("tag1")), eq(List.of()), eq(List.of()), eq(List.of("name2")));
+        reset(logRepository);
+    }
+
+    @Test
+    public void testUpdateLabelsInvalid() throws Exception {
+        when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
+        when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
+        LogLabelUpdate labelUpdate = new LogLabelUpdate();
+        labelUpdate.setAddTags(List.of("tag1"));
+
+        // Neither ids nor search parameters
+        mockMvc.perform(post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/labels")
+                        .content(objectMapper.writeValueAsString(labelUpdate))
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                        .contentType(JSON))
+                .andExpect(status().isBadRequest());
+
+        labelUpdate.setIds(List.of(1L, 2L));
+        labelUpdate.setAddTags(List.of("unknown"));
+        mockMvc.perform(post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/labels")
+                        .content(objectMapper.writeValueAsString(labelUpdate))
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                        .contentType(JSON))
+                .andExpect(status().isBadRequest());
+
+        verify(logRepository, never()).startLabelUpdate(any(), any(), any(), any(), any(), any());
+        reset(logRepository);
+    }
+
+    @Test
+    public void testGetTaskStatus() throws Exception {
+        TaskStatus taskStatus = new TaskStatus("node:42");
+        taskStatus.setCompleted(true);
+        taskStatus.setTotal(5000);
+        taskStatus.setUpdated(4990);
+        when(logRepository.getTaskStatus("node:42")).thenReturn(taskStatus);
+
+        mockMvc.perform(get("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/tasks/node:42"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.completed").value(true))
+                .andExpect(jsonPath("$.updated").value(4990));
+        reset(logRepository);
+    }
+
+    @Test
+    public void testStreamAttachment() throws Exception {
+        byte[] content = "some xml".getBytes();
+        String digest = "sha-256=" + Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(content));
+        Log log = LogBuilder.createLog(log1).build();
+        // A copy, as the builder shares the attachments of the log1 fixture
+        log.setAttachments(new HashSet<>(log1.getAttachments()));
+        when(logRepository.appendAttachments(eq("1"), any(), isNull())).thenAnswer(invocation -> {
+            log.getAttachments().addAll(invocation.getArgument(1));
+            return log;
+        });
+        mockAttachmentStore("attachment-id");
+
+        mockMvc.perform(post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/attachments/1/stream")
+                        .param("filename", "image.png")
+                        .contentType("image/png")
+                        .header("Digest", digest)
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                        .content(content))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Digest", digest));
+        Attachment attachment = log.getAttachments().stream()
+                .filter(a -> a != null && "attachment-id".equals(a.getId())).findFirst().orElseThrow();
+        assertEquals("image/png", attachment.getFileMetadataDescription());
+        verify(attachmentRepository, never()).deleteById("attachment-id");
+        reset(logRepository);
+        reset(attachmentRepository);
+    }
+
+    @Test
+    public void testStreamAttachmentDigestMismatch() throws Exception {
+        mockAttachmentStore("attachment-id");
+
+        mockMvc.perform(post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/attachments/1/stream")
+                        .param("filename", "filename.txt")
+                        .contentType("text/plain")
+                        .header("Digest", "sha-256=" + Base64.getEncoder().encodeToString(new byte[32]))
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                        .content("some xml".getBytes()))
+                .andExpect(status().isBadRequest());
+        verify(attachmentRepository).deleteById("attachment-id");
+        verify(logRepository, never()).appendAttachments(any(), any(), any());
+        reset(logRepository);
+        reset(attachmentRepository);
+    }
+
+    @Test
+    public void testStreamAttachmentLogNotFound() throws Exception {
+        when(logRepository.appendAttachments(eq("1"), any(), isNull()))
+                .thenThrow(new ResponseStatusException(HttpStatus.NOT_FOUND));
+        mockAttachmentStore("attachment-id");
+
+        mockMvc.perform(post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/attachments/1/stream")
+                        .param("filename", "image.png")
+                        .contentType("image/png")
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                        .content("some xml".getBytes()))
+                .andExpect(status().isNotFound());
+        verify(attachmentRepository).deleteById("attachment-id");
+        reset(logRepository);
+        reset(attachmentRepository);
+    }
+
+    @Test
+    public void testResumableUpload() throws Exception {
+        byte[] content = "some xml".getBytes();
+        when(uploadRepository.create("data.xml", "text/xml", content.length))
+                .thenReturn(new Upload("upload-id", "data.xml", "text/xml", content.length, 0));
+        when(uploadRepository.append(eq("upload-id"), eq(0L), any())).thenReturn(4L);
+        when(uploadRepository.findById("upload-id"))
+                .thenReturn(Optional.of(new Upload("upload-id", "data.xml", "text/xml", content.length, 4)));
+
+        mockMvc.perform(post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/uploads")
+                        .param("filename", "data.xml")
+                        .param("fileMetadataDescription", "text/xml")
+                        .header("Upload-Length", content.length)
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
+                .andExpect(status().isCreated())
+                .andExpect(header().string(HttpHeaders.LOCATION, Matchers.endsWith("/logs/uploads/upload-id")))
+                .andExpect(header().string("Upload-Offset", "0"));
+
+        // Transfer interrupted after 4 bytes, resumed from there
+        mockMvc.perform(patch("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/uploads/upload-id")
+                        .header("Upload-Offset", 0)
+                        .contentType("application/offset+octet-stream")
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                        .content(Arrays.copyOf(content, 4)))
+                .andExpect(status().isNoContent())
+                .andExpect(header().string("Upload-Offset", "4"));
+        mockMvc.perform(head("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/uploads/upload-id")
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Upload-Offset", "4"))
+                .andExpect(header().string("Upload-Length", String.valueOf(content.length)));
+
+        // Not complete yet
+        mockMvc.perform(post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/attachments/1/uploads/upload-id")
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
+                .andExpect(status().isConflict());
+
+        Upload upload = new Upload("upload-id", "data.xml", "text/xml", content.length, content.length);
+        when(uploadRepository.findById("upload-id")).thenReturn(Optional.of(upload));
+        when(uploadRepository.openStream(upload)).thenReturn(new ByteArrayInputStream(content));
+        Log log = LogBuilder.createLog(log1).build();
+        // A copy, as the builder shares the attachments of the log1 fixture
+        log.setAttachments(new HashSet<>(log1.getAttachments()));
+        when(logRepository.appendAttachments(eq("1"), any(), isNull())).thenAnswer(invocation -> {
+            log.getAttachments().addAll(invocation.getArgument(1));
+            return log;
+        });
+        mockAttachmentStore("upload-attachment-id");
+
+        mockMvc.perform(post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/attachments/1/uploads/upload-id")
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Digest", "sha-256="
+                        + Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(content))));
+        Attachment attachment = log.getAttachments().stream()
+                .filter(a -> a != null && "upload-attachment-id".equals(a.getId())).findFirst().orElseThrow();
+        assertEquals("data.xml", attachment.getFilename());
+        assertEquals("text/xml", attachment.getFileMetadataDescription());
+        verify(uploadRepository).deleteById("upload-id");
+        reset(uploadRepository);
+        reset(logRepository);
+        reset(attachmentRepository);
+    }
+
+    @Test
+    public void testCreateUploadTooLarge() throws Exception {
+        mockMvc.perform(post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/uploads")
+                        .param("filename", "data.xml")
+                        .header("Upload-Length", Long.MAX_VALUE)
+                        .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
+                .andExpect(status().isPayloadTooLarge());
+        verify(uploadRepository, never()).create(any(), any(), anyLong());
+    }
+
+    /**
+     * Makes the mocked {@link AttachmentRepository} consume streamed attachments like the real one.
+     */
+    private void mockAttachmentStore(String attachmentId) throws Exception {
+        doAnswer(invocation -> {
+            Attachment attachment = invocation.getArgument(0);
+            InputStream inputStream = invocation.getArgument(1);
+            MessageDigest digest = invocation.getArgument(3);
+            digest.update(inputStream.readAllBytes());
+            attachment.setId(attachmentId);
+            return attachment;
+        }).when(attachmentRepository).save(any(Attachment.class), any(InputStream.class), anyLong(), any(MessageDigest.class));
     }
 
     /**
@@ -363,6 +904,12 @@ public class LogResourceTest extends ResourcesTestBase {
     @Test
     public void testCreateMultipleAttachments() throws Exception {
         when(logRepository.findById("1")).thenReturn(Optional.of(log1));
+        when(logRepository.addAttachments(eq("1"), any(), isNull())).thenAnswer(invocation -> {
+            Log log = LogBuilder.createLog(log1).build();
+            log.setAttachments(new HashSet<>(invocation.getArgument(1)));
+            log.setHtml("<p>description</p>");
+            return log;
+        });
         MockMultipartFile file1 =
                 new MockMultipartFile("file", "filename1.txt", "text/plain", "some xml".getBytes());
         MockMultipartFile file2 =
@@ -371,7 +918,11 @@ public class LogResourceTest extends ResourcesTestBase {
                         .file(file1)
                         .file(file2)
                         .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
-                .andExpect(status().is(200));
+                .andExpect(status().is(200))
+                .andExpect(jsonPath("$.id").value(1))
+                .andExpect(jsonPath("$.attachments.length()").value(2))
+                .andExpect(jsonPath("$.html").doesNotExist());
+        verify(logRepository).addAttachments(eq("1"), argThat(attachments -> attachments.size() == 2), isNull());
         reset(logRepository);
     }
 
@@ -404,7 +955,7 @@ public class LogResourceTest extends ResourcesTestBase {
     public void testReplyInvalidLogEntryId() throws Exception {
         when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
         when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
-        when(logRepository.findById("7"))
+        when(logRepository.findVersionedById("7"))
                 .thenThrow(new ResponseStatusException(HttpStatus.NOT_FOUND, "Failed to retrieve log"));
         MockHttpServletRequestBuilder request = put("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "?inReplyTo=7")
                 .content(objectMapper.writeValueAsString(log1))
@@ -418,10 +969,12 @@ public class LogResourceTest extends ResourcesTestBase {
     public void testReplyValidLogEntryId() throws Exception {
         when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
         when(tagRepository.findAll()).thenReturn(Arrays.asList(tag1, tag2));
-        when(logRepository.findById("7"))
-                .thenReturn(Optional.of(Log.LogBuilder.createLog().id(7L).build()));
+        when(logRepository.findVersionedById("7"))
+                .thenReturn(versioned(Log.LogBuilder.createLog().id(7L).build()));
+        when(logRepository.updateProperties(argThat(logs -> logs.size() == 1), isNull()))
+                .thenAnswer(invocation -> updated(invocation.getArgument(0)));
         Log log = Log.LogBuilder.createLog().id(1L).build();
-        when(logRepository.save(Mockito.any(Log.class))).thenAnswer(invocationOnMock -> log);
+        when(logRepository.save(Mockito.any(Log.class), Mockito.isNull())).thenAnswer(invocationOnMock -> log);
         MockHttpServletRequestBuilder request = put("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "?inReplyTo=7")
                 .content(objectMapper.writeValueAsString(log1))
                 .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
@@ -432,8 +985,8 @@ public class LogResourceTest extends ResourcesTestBase {
 
     @Test
     public void testGroupNonExistingLogEntryId() throws Exception {
-        when(logRepository.findById("1")).thenReturn(Optional.of(Log.LogBuilder.createLog().build()));
-        when(logRepository.findById("2")).thenThrow(new ResponseStatusException(HttpStatus.NOT_FOUND, "Not found."));
+        when(logRepository.findVersionedByIds(List.of("1", "2")))
+                .thenReturn(Arrays.asList(versioned(Log.LogBuilder.createLog().id(1L).build()), null));
 
         List<Long> ids = Arrays.asList(1L, 2L);
 
@@ -442,6 +995,7 @@ public class LogResourceTest extends ResourcesTestBase {
                 .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
                 .contentType(JSON);
         mockMvc.perform(request).andExpect(status().isBadRequest());
+        verify(logRepository, never()).updateProperties(any(), any());
 
         reset(logRepository);
     }
@@ -452,8 +1006,7 @@ public class LogResourceTest extends ResourcesTestBase {
         Log log1 = Log.LogBuilder.createLog().id(1L).setProperties(Set.of(logEntryGroupProperty1)).build();
         Property logEntryGroupProperty2 = LogEntryGroupHelper.createNewLogEntryProperty();
         Log log2 = Log.LogBuilder.createLog().id(2L).setProperties(Set.of(logEntryGroupProperty2)).build();
-        when(logRepository.findById("1")).thenReturn(Optional.of(log1));
-        when(logRepository.findById("2")).thenReturn(Optional.of(log2));
+        when(logRepository.findVersionedByIds(List.of("1", "2"))).thenReturn(List.of(versioned(log1), versioned(log2)));
 
         List<Long> ids = Arrays.asList(1L, 2L);
 
@@ -471,8 +1024,8 @@ public class LogResourceTest extends ResourcesTestBase {
         Property logEntryGroupProperty1 = LogEntryGroupHelper.createNewLogEntryProperty();
         Log log1 = Log.LogBuilder.createLog().id(1L).setProperties(Set.of(logEntryGroupProperty1)).build();
         Log log2 = Log.LogBuilder.createLog().id(2L).setProperties(Set.of(logEntryGroupProperty1)).build();
-        when(logRepository.findById("1")).thenReturn(Optional.of(log1));
-        when(logRepository.findById("2")).thenReturn(Optional.of(log2));
+        when(logRepository.findVersionedByIds(List.of("1", "2"))).thenReturn(List.of(versioned(log1), versioned(log2)));
+        when(logRepository.updateProperties(List.of(), null)).thenReturn(List.of());
 
         List<Long> ids = Arrays.asList(1L, 2L);
 
@@ -490,8 +1043,9 @@ public class LogResourceTest extends ResourcesTestBase {
         Property logEntryGroupProperty1 = LogEntryGroupHelper.createNewLogEntryProperty();
         Log log1 = Log.LogBuilder.createLog().id(1L).setProperties(Set.of(logEntryGroupProperty1)).build();
         Log log2 = Log.LogBuilder.createLog().id(2L).build();
-        when(logRepository.findById("1")).thenReturn(Optional.of(log1));
-        when(logRepository.findById("2")).thenReturn(Optional.of(log2));
+        when(logRepository.findVersionedByIds(List.of("1", "2"))).thenReturn(List.of(versioned(log1), versioned(log2)));
+        when(logRepository.updateProperties(argThat(logs -> logs.size() == 1), isNull()))
+                .thenAnswer(invocation -> updated(invocation.getArgument(0)));
 
         List<Long> ids = Arrays.asList(1L, 2L);
 
@@ -500,6 +1054,7 @@ public class LogResourceTest extends ResourcesTestBase {
                 .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
                 .contentType(JSON);
         mockMvc.perform(request).andExpect(status().isOk());
+        assertEquals(logEntryGroupProperty1, LogEntryGroupHelper.getLogEntryGroupProperty(log2));
 
         reset(logRepository);
     }
@@ -508,8 +1063,9 @@ public class LogResourceTest extends ResourcesTestBase {
     public void testGroupNoExisting() throws Exception {
         Log log1 = Log.LogBuilder.createLog().id(1L).build();
         Log log2 = Log.LogBuilder.createLog().id(2L).build();
-        when(logRepository.findById("1")).thenReturn(Optional.of(log1));
-        when(logRepository.findById("2")).thenReturn(Optional.of(log2));
+        when(logRepository.findVersionedByIds(List.of("1", "2"))).thenReturn(List.of(versioned(log1), versioned(log2)));
+        when(logRepository.updateProperties(argThat(logs -> logs.size() == 2), isNull()))
+                .thenAnswer(invocation -> updated(invocation.getArgument(0)));
 
         List<Long> ids = Arrays.asList(1L, 2L);
 
@@ -518,7 +1074,44 @@ public class LogResourceTest extends ResourcesTestBase {
                 .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
                 .contentType(JSON);
         mockMvc.perform(request).andExpect(status().isOk());
+        verify(logRepository, times(1)).updateProperties(any(), any());
+
+        reset(logRepository);
+    }
+
+    @Test
+    public void testGroupRetriedOnConflict() throws Exception {
+        Property logEntryGroupProperty = LogEntryGroupHelper.createNewLogEntryProperty();
+        Log concurrentlyGrouped = Log.LogBuilder.createLog().id(2L).build();
+        concurrentlyGrouped.getProperties().add(logEntryGroupProperty);
+        when(logRepository.findVersionedByIds(List.of("1", "2")))
+                .thenReturn(List.of(versioned(Log.LogBuilder.createLog().id(1L).build()), versioned(Log.LogBuilder.createLog().id(2L).build())))
+                .thenReturn(List.of(versioned(Log.LogBuilder.createLog().id(1L).build()), versioned(concurrentlyGrouped)));
+        when(logRepository.updateProperties(any(), isNull()))
+                // Log entry 2 has been grouped concurrently
+                .thenReturn(List.of(new BulkItemResult(200, log1, null), new BulkItemResult(409, null, "version conflict")))
+                .thenAnswer(invocation -> {
+                    List<VersionedLog> logs = invocation.getArgument(0);
+                    assertEquals(1, logs.size());
+                    assertEquals(logEntryGroupProperty, LogEntryGroupHelper.getLogEntryGroupProperty(logs.get(0).getLog()));
+                    return updated(logs);
+                });
+
+        MockHttpServletRequestBuilder request = post("/" + OlogResourceDescriptors.LOG_RESOURCE_URI + "/group")
+                .content(objectMapper.writeValueAsString(Arrays.asList(1L, 2L)))
+                .header(HttpHeaders.AUTHORIZATION, AUTHORIZATION)
+                .contentType(JSON);
+        mockMvc.perform(request).andExpect(status().isOk());
+        verify(logRepository, times(2)).findVersionedByIds(List.of("1", "2"));
 
         reset(logRepository);
     }
+
+    private static VersionedLog versioned(Log log) {
+        return new VersionedLog(log, new VersionedLog.Version(1L, 1L));
+    }
+
+    private static List<BulkItemResult> updated(List<VersionedLog> logs) {
+        return logs.stream().map(log -> new BulkItemResult(200, log.getLog(), null)).collect(Collectors.toList());
+    }
 }
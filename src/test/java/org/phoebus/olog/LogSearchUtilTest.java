@@ -18,17 +18,25 @@
 
 package org.phoebus.olog;
 
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch._types.query_dsl.RangeQuery;
 import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
 import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
 import static org.phoebus.olog.LogSearchUtil.MILLI_FORMAT;
 
 @TestPropertySource(locations = "classpath:no_ldap_test_application.properties")
@@ -134,4 +142,116 @@ public class LogSearchUtilTest {
 
     }
 
+    @Test
+    public void testTagsSearchedByName() {
+        LogSearchUtil logSearchUtil = new LogSearchUtil();
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.put("tags", List.of("tag1,tag2|op*"));
+
+        Query tagsQuery = logSearchUtil.buildSearchRequest(params).query().bool().must().get(0);
+
+        List<Query> queries = tagsQuery.disMax().queries();
+        assertEquals(2, queries.size());
+        assertEquals("tags", queries.get(0).wildcard().field());
+        assertEquals("op*", queries.get(0).wildcard().value());
+        assertEquals("tags", queries.get(1).terms().field());
+        assertEquals(List.of("tag1", "tag2"), queries.get(1).terms().terms().value().stream()
+                .map(FieldValue::stringValue).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testExactPropertyValuesSearchedFlattened() {
+        LogSearchUtil logSearchUtil = new LogSearchUtil();
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.put("properties", List.of("Beam.current.1.5|Beam.mode.stable,Shift.lead.*"));
+
+        Query propertiesQuery = logSearchUtil.buildSearchRequest(params).query().bool().must().get(0);
+
+        List<Query> queries = propertiesQuery.disMax().queries();
+        assertEquals(2, queries.size());
+        assertEquals("properties", queries.get(0).nested().path());
+        assertEquals("propertyAttributes", queries.get(1).terms().field());
+        assertEquals(List.of("Beam.current=1.5", "Beam.mode=stable"), queries.get(1).terms().terms().value().stream()
+                .map(FieldValue::stringValue).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testPropertyRangeSearch() {
+        LogSearchUtil logSearchUtil = new LogSearchUtil();
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.put("properties", List.of("Beam.current>100|Shift.start<=2020-01-01T00:00:00Z|Beam.mode.>x"));
+
+        List<Query> queries = logSearchUtil.buildSearchRequest(params).query().bool().must().get(0).disMax().queries();
+
+        assertEquals(3, queries.size());
+        RangeQuery current = rangeQuery(queries.get(0));
+        assertEquals("properties.attributes.doubleValue", current.field());
+        assertEquals(100.0, current.gt().to(Double.class));
+        RangeQuery start = rangeQuery(queries.get(1));
+        assertEquals("properties.attributes.dateValue", start.field());
+        assertEquals(1577836800000L, start.lte().to(Long.class));
+        // Not a comparison to a number or date, but an exact value
+        assertEquals("Beam.mode=>x", queries.get(2).terms().terms().value().get(0).stringValue());
+    }
+
+    @Test
+    public void testIncludeEventsSearchedOnEventTimes() {
+        LogSearchUtil logSearchUtil = new LogSearchUtil();
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        Instant now = Instant.now();
+        params.put("start", List.of(MILLI_FORMAT.format(now.minusSeconds(3600))));
+        params.put("end", List.of(MILLI_FORMAT.format(now)));
+
+        assertEquals("createdDate", logSearchUtil.buildSearchRequest(params).query().bool().must().get(0).range().field());
+
+        params.put("includeEvents", List.of(""));
+        assertEquals("eventTimes", logSearchUtil.buildSearchRequest(params).query().bool().must().get(0).range().field());
+    }
+
+    @Test
+    public void testIncludeEventsBeforeBackfill() {
+        LogSearchUtil logSearchUtil = new LogSearchUtil();
+        LogIndexBackfill logIndexBackfill = Mockito.mock(LogIndexBackfill.class);
+        ReflectionTestUtils.setField(logSearchUtil, "logIndexBackfill", logIndexBackfill);
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.put("start", List.of(MILLI_FORMAT.format(Instant.now().minusSeconds(3600))));
+        params.put("includeEvents", List.of(""));
+
+        // Log entries without eventTimes are also found by their creation date and events
+        List<Query> queries = logSearchUtil.buildSearchRequest(params).query().bool().must().get(0).disMax().queries();
+        assertEquals("eventTimes", queries.get(0).range().field());
+        assertEquals("createdDate", queries.get(1).range().field());
+        assertEquals("events.instant", queries.get(2).nested().query().range().field());
+
+        when(logIndexBackfill.isEventTimesBackfilled()).thenReturn(true);
+        assertEquals("eventTimes", logSearchUtil.buildSearchRequest(params).query().bool().must().get(0).range().field());
+    }
+
+    @Test
+    public void testHtmlFetchedOnlyWhenRendered() {
+        LogSearchUtil logSearchUtil = new LogSearchUtil();
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+
+        assertEquals(List.of("attachmentText", "html"), logSearchUtil.buildSearchRequest(params).source().filter().excludes());
+
+        params.put("render", List.of("html"));
+        assertEquals(List.of("attachmentText"), logSearchUtil.buildSearchRequest(params).source().filter().excludes());
+    }
+
+    @Test
+    public void testAttachmentTextSearch() {
+        LogSearchUtil logSearchUtil = new LogSearchUtil();
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.put("attachmentText", List.of("beam dump"));
+
+        List<Query> queries = logSearchUtil.buildSearchRequest(params).query().bool().must().get(0).disMax().queries();
+        assertEquals(1, queries.size());
+        assertEquals("attachmentText", queries.get(0).match().field());
+        assertEquals("beam dump", queries.get(0).match().query().stringValue());
+    }
+
+    private static RangeQuery rangeQuery(Query propertyQuery) {
+        return propertyQuery.nested().query().bool().must().get(1).nested().query().bool().must().get(1).range();
+    }
+
 }
@@ -40,6 +40,7 @@ import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -104,6 +105,22 @@ public class LogbookResourceTest extends ResourcesTestBase {
         reset(logbookRepository);
     }
 
+    @Test
+    public void testFindAllNotModified() throws Exception {
+        when(logbookRepository.findAll()).thenReturn(Arrays.asList(logbook1, logbook2));
+
+        MockHttpServletRequestBuilder request = get("/" + OlogResourceDescriptors.LOGBOOK_RESOURCE_URI);
+        MvcResult result = mockMvc.perform(request).andExpect(status().isOk())
+                .andReturn();
+        String etag = result.getResponse().getHeader(HttpHeaders.ETAG);
+        reset(logbookRepository);
+
+        request = get("/" + OlogResourceDescriptors.LOGBOOK_RESOURCE_URI).header(HttpHeaders.IF_NONE_MATCH, etag);
+        mockMvc.perform(request).andExpect(status().isNotModified());
+        verify(logbookRepository, never()).findAll();
+        reset(logbookRepository);
+    }
+
     @Test
     public void testFindLogbookByName() throws Exception {
         when(logbookRepository.findById("name1")).thenReturn(Optional.of(logbook1));
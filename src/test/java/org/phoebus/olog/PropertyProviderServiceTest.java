@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.phoebus.olog.entity.Attribute;
+import org.phoebus.olog.entity.Log;
+import org.phoebus.olog.entity.Log.LogBuilder;
+import org.phoebus.olog.entity.Property;
+import org.phoebus.olog.entity.preprocess.LogPropertyProvider;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests timeouts, circuit breaking and caching of {@link LogPropertyProvider}s by {@link PropertyProviderService}.
+ */
+public class PropertyProviderServiceTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final Log log = LogBuilder.createLog().title("title").build();
+    private PropertyProviderService service;
+
+    @AfterEach
+    public void shutdown() {
+        service.shutdown();
+    }
+
+    @Test
+    public void testTimeoutPerProvider() {
+        TestProvider slow = new TestProvider("slow", 50, 0, l -> {
+            sleep(1000);
+            return property("slow");
+        });
+        TestProvider patient = new TestProvider("patient", 2000, 0, l -> {
+            sleep(200);
+            return property("patient");
+        });
+        service = createService(List.of(slow, patient, new TestProvider("fast", 0, 0, l -> property("fast"))));
+
+        long start = System.currentTimeMillis();
+        assertEquals(List.of("patient", "fast"), names(service.getProperties(log)));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(1.0, meterRegistry.get("olog.property.provider.timeouts").tag("provider", TestProvider.class.getName()).counter().count());
+    }
+
+    @Test
+    public void testFailingProviderSkipped() {
+        AtomicInteger calls = new AtomicInteger();
+        service = createService(List.of(new TestProvider("failing", 0, 0, l -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("unavailable");
+        })));
+        ReflectionTestUtils.setField(service, "retryInterval", 500L);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(service.getProperties(log).isEmpty());
+        }
+        assertEquals(3, calls.get());
+        assertEquals(2.0, meterRegistry.get("olog.property.provider.skipped").counter().count());
+
+        // Tried again once the retry interval has elapsed, and skipped again as it still fails
+        sleep(600);
+        service.getProperties(log);
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testCacheableProviderCalledOnce() {
+        AtomicInteger calls = new AtomicInteger();
+        service = createService(List.of(new TestProvider("cached", 0, 60000, l -> property("cached" + calls.incrementAndGet()))));
+
+        assertEquals(List.of("cached1"), names(service.getProperties(log)));
+        assertEquals(List.of("cached1"), names(service.getProperties(log)));
+        assertEquals(1, calls.get());
+    }
+
+    private PropertyProviderService createService(List<LogPropertyProvider> providers) {
+        PropertyProviderService propertyProviderService = new PropertyProviderService();
+        ReflectionTestUtils.setField(propertyProviderService, "defaultTimeout", 500L);
+        ReflectionTestUtils.setField(propertyProviderService, "threads", 4);
+        ReflectionTestUtils.setField(propertyProviderService, "failureThreshold", 3);
+        ReflectionTestUtils.setField(propertyProviderService, "retryInterval", 60000L);
+        ReflectionTestUtils.setField(propertyProviderService, "propertyProviders", providers);
+        ReflectionTestUtils.setField(propertyProviderService, "meterRegistry", meterRegistry);
+        propertyProviderService.init();
+        return propertyProviderService;
+    }
+
+    private static List<String> names(List<Property> properties) {
+        return properties.stream().map(Property::getName).collect(Collectors.toList());
+    }
+
+    private static Property property(String name) {
+        return new Property(name, Set.of(new Attribute("attribute", "value")));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class TestProvider implements LogPropertyProvider {
+        private final String name;
+        private final long timeout;
+        private final long cacheTimeToLive;
+        private final Function<Log, Property> function;
+
+        private TestProvider(String name, long timeout, long cacheTimeToLive, Function<Log, Property> function) {
+            this.name = name;
+            this.timeout = timeout;
+            this.cacheTimeToLive = cacheTimeToLive;
+            this.function = function;
+        }
+
+        @Override
+        public Property getProperty(Log log) {
+            return function.apply(log);
+        }
+
+        @Override
+        public long getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        public long getCacheTimeToLive() {
+            return cacheTimeToLive;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
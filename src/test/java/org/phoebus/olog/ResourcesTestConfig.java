@@ -20,6 +20,8 @@ package org.phoebus.olog;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mongodb.client.gridfs.GridFSBucket;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.mockito.Mockito;
 import org.springframework.boot.autoconfigure.h2.H2ConsoleProperties;
 import org.springframework.boot.test.context.TestConfiguration;
@@ -56,11 +58,31 @@ public class ResourcesTestConfig {
         return Mockito.mock(LogRepository.class);
     }
 
+    @Bean
+    public LogIngestQueue logIngestQueue() {
+        return Mockito.mock(LogIngestQueue.class);
+    }
+
+    @Bean
+    public IdempotencyStore idempotencyStore() {
+        return Mockito.mock(IdempotencyStore.class);
+    }
+
+    @Bean
+    public MeterRegistry meterRegistry() {
+        return new SimpleMeterRegistry();
+    }
+
     @Bean
     public AttachmentRepository attachmentRepository() {
         return Mockito.mock(AttachmentRepository.class);
     }
 
+    @Bean
+    public UploadRepository uploadRepository() {
+        return Mockito.mock(UploadRepository.class);
+    }
+
     //@Bean("indexClient")
     //public RestHighLevelClient client() {
     //    return Mockito.mock(RestHighLevelClient.class);
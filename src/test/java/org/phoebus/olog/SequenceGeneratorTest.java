@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.ErrorResponse;
+import co.elastic.clients.elasticsearch._types.OpType;
+import co.elastic.clients.elasticsearch._types.Result;
+import co.elastic.clients.elasticsearch.core.GetRequest;
+import co.elastic.clients.elasticsearch.core.GetResponse;
+import co.elastic.clients.elasticsearch.core.IndexRequest;
+import co.elastic.clients.elasticsearch.core.IndexResponse;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.json.JsonData;
+import jakarta.json.Json;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.ContextHierarchy;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the block leasing of {@link SequenceGenerator} against a mocked {@link ElasticsearchClient}
+ * emulating the compare-and-set semantics of the counter document.
+ */
+@ExtendWith(SpringExtension.class)
+@ContextHierarchy({@ContextConfiguration(classes = {SequenceGeneratorTestConfig.class})})
+@TestPropertySource(properties = "elasticsearch.sequence.block.size=10")
+// Generators keep their leased block, a fresh context is needed for each emulated counter document
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class SequenceGeneratorTest {
+
+    @Autowired
+    @Qualifier("client")
+    private ElasticsearchClient client;
+
+    @Autowired
+    private SequenceGenerator sequenceGenerator;
+
+    @Autowired
+    private AutowireCapableBeanFactory beanFactory;
+
+    /**
+     * State of the emulated counter document. The legacy sequence number is 41, so the
+     * counter is expected to start at 42.
+     */
+    private Long counter;
+    private boolean counterFieldMissing;
+    private long counterSeqNo;
+    private long indexSeqNo;
+
+    @BeforeEach
+    public void init() throws Exception {
+        Mockito.clearInvocations(client);
+        counter = null;
+        counterFieldMissing = false;
+        counterSeqNo = 0;
+        indexSeqNo = 41;
+
+        when(client.get(any(GetRequest.class), eq(Object.class))).thenAnswer(invocation -> {
+            synchronized (this) {
+                if (counter == null) {
+                    return GetResponse.of(g -> g.index("olog_sequence").id(SequenceGenerator.COUNTER_ID).found(false));
+                }
+                long value = counter;
+                long seqNo = counterSeqNo;
+                if (counterFieldMissing) {
+                    return GetResponse.of(g -> g.index("olog_sequence").id(SequenceGenerator.COUNTER_ID).found(true)
+                            .seqNo(seqNo).primaryTerm(1L));
+                }
+                return GetResponse.of(g -> g.index("olog_sequence").id(SequenceGenerator.COUNTER_ID).found(true)
+                        .seqNo(seqNo).primaryTerm(1L)
+                        .fields(Map.of(SequenceGenerator.COUNTER_FIELD, JsonData.of(Json.createArrayBuilder().add(value).build()))));
+            }
+        });
+
+        when(client.index(any(IndexRequest.class))).thenAnswer(invocation -> {
+            IndexRequest<?> request = invocation.getArgument(0);
+            synchronized (this) {
+                long seqNo = indexSeqNo++;
+                if (SequenceGenerator.COUNTER_ID.equals(request.id())) {
+                    boolean created = OpType.Create.equals(request.opType());
+                    if ((created && counter != null) || (!created && request.ifSeqNo() != counterSeqNo)) {
+                        throw new ElasticsearchException("index",
+                                ErrorResponse.of(e -> e.status(409).error(c -> c.type("version_conflict_engine_exception").reason("conflict"))));
+                    }
+                    counter = ((Map<String, Long>) request.document()).get(SequenceGenerator.COUNTER_FIELD);
+                    counterFieldMissing = false;
+                    counterSeqNo = seqNo;
+                }
+                return IndexResponse.of(r -> r.index("olog_sequence").id("id").result(Result.Created)
+                        .seqNo(seqNo).primaryTerm(1L).version(1L)
+                        .shards(s -> s.total(1).successful(1).failed(0)));
+            }
+        });
+    }
+
+    @Test
+    public void testIdsHandedOutFromLeasedBlocks() throws Exception {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            ids.add(sequenceGenerator.getID());
+        }
+        // The counter starts above the legacy sequence number and ids are consecutive within blocks
+        assertEquals(42L, ids.get(0));
+        assertEquals(66L, ids.get(24));
+        // One legacy document to seed the counter, one create, then one lease per block of 10
+        verify(client, atMost(5)).index(any(IndexRequest.class));
+        assertEquals(72L, counter);
+    }
+
+    @Test
+    public void testReserveIds() throws Exception {
+        assertEquals(42L, sequenceGenerator.getID());
+        // Fits into the current block [42, 52)
+        assertEquals(43L, sequenceGenerator.reserveIDs(5));
+        // Does not fit, a dedicated block is leased
+        assertEquals(52L, sequenceGenerator.reserveIDs(25));
+        assertEquals(77L, counter);
+    }
+
+    @Test
+    public void testCounterWithoutFieldSeededOnce() throws Exception {
+        // A counter document written before the counter field was stored
+        counter = 0L;
+        counterFieldMissing = true;
+        when(client.search(any(SearchRequest.class), eq(Void.class))).thenReturn(SearchResponse.of(r -> r
+                .took(1L).timedOut(false)
+                .shards(s -> s.total(1).successful(1).failed(0))
+                .hits(h -> h.hits(List.of()))
+                .aggregations(SequenceGenerator.MAX_ID_AGGREGATION, a -> a.max(m -> m.value(99.0)))));
+
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            ids.add(sequenceGenerator.getID());
+        }
+        assertEquals(100L, ids.get(0));
+        assertEquals(124L, ids.get(24));
+        // Later leases continue from the stored counter
+        verify(client, times(1)).search(any(SearchRequest.class), eq(Void.class));
+        assertEquals(130L, counter);
+    }
+
+    @Test
+    public void testConcurrentInstancesNeverShareIds() throws Exception {
+        // A second generator using the same client, i.e. a second Olog instance sharing the sequence index
+        SequenceGenerator otherSequenceGenerator = beanFactory.createBean(SequenceGenerator.class);
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<Callable<List<Long>>> tasks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            SequenceGenerator generator = i % 2 == 0 ? sequenceGenerator : otherSequenceGenerator;
+            tasks.add(() -> {
+                List<Long> ids = new ArrayList<>();
+                for (int j = 0; j < 200; j++) {
+                    ids.add(generator.getID());
+                }
+                return ids;
+            });
+        }
+        Set<Long> allIds = new HashSet<>();
+        int count = 0;
+        for (Future<List<Long>> future : executorService.invokeAll(tasks)) {
+            List<Long> ids = future.get();
+            count += ids.size();
+            allIds.addAll(ids);
+        }
+        executorService.shutdown();
+        assertEquals(1600, count);
+        assertEquals(count, allIds.size());
+        assertTrue(allIds.stream().allMatch(id -> id >= 42L && id < counter));
+    }
+}
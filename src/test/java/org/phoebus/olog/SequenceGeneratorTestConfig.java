@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch.indices.ElasticsearchIndicesClient;
+import org.mockito.Mockito;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Profile;
+
+import static org.mockito.Mockito.when;
+
+@TestConfiguration
+@Profile("!ITtest")
+public class SequenceGeneratorTestConfig {
+
+    @Bean("client")
+    public ElasticsearchClient client() {
+        ElasticsearchClient client = Mockito.mock(ElasticsearchClient.class);
+        when(client.indices()).thenReturn(Mockito.mock(ElasticsearchIndicesClient.class));
+        return client;
+    }
+
+    @Bean
+    public SequenceGenerator sequenceGenerator() {
+        return new SequenceGenerator();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog;
+
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSFindIterable;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests {@link UploadRepository} with a mocked {@link GridFSBucket}.
+ */
+public class UploadRepositoryTest {
+
+    private UploadRepository uploadRepository;
+    private GridFSUploadStream uploadStream;
+    private final List<GridFSFile> parts = new ArrayList<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void init() {
+        GridFSBucket gridFSBucket = Mockito.mock(GridFSBucket.class);
+        GridFSFindIterable findIterable = Mockito.mock(GridFSFindIterable.class);
+        when(gridFSBucket.find(any(Bson.class))).thenReturn(findIterable);
+        when(findIterable.first()).thenReturn(new GridFSFile(new BsonString("upload-id"), "file.txt", 0, 4,
+                new Date(), new Document("meta-data", "text/plain").append(UploadRepository.LENGTH, 10L)));
+        when(findIterable.sort(any())).thenReturn(findIterable);
+        when(findIterable.into(any())).thenAnswer(invocation -> {
+            Collection<GridFSFile> target = invocation.getArgument(0);
+            target.addAll(parts);
+            return target;
+        });
+        uploadStream = Mockito.mock(GridFSUploadStream.class);
+        when(gridFSBucket.getChunkSizeBytes()).thenReturn(4);
+        when(gridFSBucket.openUploadStream(eq("upload-id"), any(GridFSUploadOptions.class))).thenReturn(uploadStream);
+        uploadRepository = new UploadRepository();
+        uploadRepository.uploadGridFSBucket = gridFSBucket;
+    }
+
+    @Test
+    public void testOffsetOfReceivedChunks() {
+        parts.add(part(0, 4));
+        parts.add(part(4, 3));
+
+        assertEquals(7, uploadRepository.findById("upload-id").orElseThrow().getOffset());
+
+        parts.add(part(8, 2));
+        assertThrows(IllegalStateException.class, () -> UploadRepository.offsetOf("upload-id", parts));
+    }
+
+    @Test
+    public void testChunkAppended() throws Exception {
+        parts.add(part(0, 4));
+
+        assertEquals(10, uploadRepository.append("upload-id", 4, new ByteArrayInputStream("456789".getBytes())));
+        verify(uploadStream).write(any(byte[].class), eq(0), eq(4));
+        verify(uploadStream).write(any(byte[].class), eq(0), eq(2));
+        verify(uploadStream).close();
+        verify(uploadStream, never()).abort();
+    }
+
+    @Test
+    public void testInterruptedChunkKept() {
+        InputStream interrupted = new SequenceInputStream(new ByteArrayInputStream("0123".getBytes()), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+
+        assertThrows(IOException.class, () -> uploadRepository.append("upload-id", 0, interrupted));
+        verify(uploadStream).write(any(byte[].class), eq(0), eq(4));
+        verify(uploadStream).close();
+        verify(uploadStream, never()).abort();
+    }
+
+    @Test
+    public void testChunkRejected() {
+        parts.add(part(0, 4));
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class, () ->
+                uploadRepository.append("upload-id", 0, new ByteArrayInputStream("0123".getBytes())));
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+
+        exception = assertThrows(ResponseStatusException.class, () ->
+                uploadRepository.append("upload-id", 4, new ByteArrayInputStream("4567890".getBytes())));
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, exception.getStatus());
+        verify(uploadStream).abort();
+        verify(uploadStream, never()).close();
+        verify(uploadStream).write(any(byte[].class), anyInt(), anyInt());
+    }
+
+    private static GridFSFile part(long offset, long length) {
+        return new GridFSFile(new BsonObjectId(), "upload-id", length, 4, new Date(),
+                new Document(UploadRepository.UPLOAD, "upload-id").append(UploadRepository.OFFSET, offset));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 European Spallation Source ERIC.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.phoebus.olog.entity;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.phoebus.olog.LogDocumentModule;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class AttributeTest {
+
+    @Test
+    public void testTypedValues() {
+        assertEquals(100.0, new Attribute("current", "100").getDoubleValue());
+        assertEquals(-1.5e-3, new Attribute("current", " -1.5e-3 ").getDoubleValue());
+        assertNull(new Attribute("current", "100 mA").getDoubleValue());
+        assertNull(new Attribute("current", "NaN").getDoubleValue());
+        assertNull(new Attribute("current", "1e999").getDoubleValue());
+        assertNull(new Attribute("current", null).getDoubleValue());
+
+        assertEquals(1577836800000L, new Attribute("start", "2020-01-01T00:00:00Z").getDateValue());
+        assertEquals(1577833200000L, new Attribute("start", "2020-01-01T00:00:00+01:00").getDateValue());
+        assertEquals(LocalDate.of(2020, 1, 1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                new Attribute("start", "2020-01-01").getDateValue());
+        assertEquals(new Attribute("start", "2020-01-01T10:00:00.000").getDateValue(),
+                new Attribute("start", "2020-01-01 10:00:00.000").getDateValue());
+        assertNull(new Attribute("start", "2020-13-01").getDateValue());
+        assertNull(new Attribute("start", "2020").getDateValue());
+    }
+
+    @Test
+    public void testTypedValuesOnlyInDocument() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        ObjectMapper documentMapper = LogDocumentModule.jsonpMapper().objectMapper();
+
+        // Not part of the REST API
+        Map<?, ?> json = objectMapper.readValue(objectMapper.writeValueAsString(new Attribute("current", "100")), Map.class);
+        assertFalse(json.containsKey("doubleValue"));
+        assertFalse(json.containsKey("dateValue"));
+
+        // Written to the Elasticsearch document, but not read back
+        json = documentMapper.readValue(documentMapper.writeValueAsString(new Attribute("current", "100")), Map.class);
+        assertEquals(100.0, json.get("doubleValue"));
+        assertFalse(json.containsKey("dateValue"));
+        Attribute attribute = documentMapper.readValue("{\"name\":\"current\",\"value\":\"5\",\"doubleValue\":100.0}", Attribute.class);
+        assertEquals(5.0, attribute.getDoubleValue());
+    }
+}
@@ -25,6 +25,7 @@ import org.phoebus.olog.entity.Log.LogBuilder;
 import java.time.Instant;
 import java.util.Set;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 
@@ -88,4 +89,19 @@ public class LogEntryGroupHelperTest {
         Property prop = LogEntryGroupHelper.getLogEntryGroupProperty(originalLog);
         assertNotNull(prop);
     }
+
+    @Test
+    public void testGetGroupId(){
+        Property groupProperty = LogEntryGroupHelper.createNewLogEntryProperty();
+        Log groupedLog = LogBuilder.createLog()
+                .owner("user")
+                .title("title")
+                .withLogbook(logbook1)
+                .withProperties(Set.of(property1, groupProperty))
+                .build();
+        assertEquals(groupProperty.getAttributes().iterator().next().getValue(), LogEntryGroupHelper.getGroupId(groupedLog));
+
+        groupedLog.setProperties(null);
+        assertNull(LogEntryGroupHelper.getGroupId(groupedLog));
+    }
 }
@@ -43,6 +43,17 @@ public class CommonmarkPreprocessorTest {
 
     }
 
+    @Test
+    public void testHtmlRenderedAndSanitized(){
+        Log log = LogBuilder.createLog()
+                .source("**BOLD** <script>alert(1)</script> [link](javascript:alert(1))")
+                .build();
+
+        log = commonmarkPreprocessor.process(log);
+        assertEquals("<p><strong>BOLD</strong> &lt;script&gt;alert(1)&lt;/script&gt; <a rel=\"nofollow\" href=\"\">link</a></p>\n",
+                log.getHtml());
+    }
+
     @Test
     public void testDescriptionNull(){
         Log log = LogBuilder.createLog()